@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell.benchmark;
+
+import com.evolveum.polygon.connector.powershell.PowerHellLocalLoopImpl;
+import com.evolveum.polygon.connector.powershell.PowerShellConfiguration;
+import org.identityconnectors.common.security.GuardedString;
+
+/**
+ * Connector configurations used by the benchmarks.
+ */
+public class BenchmarkConfigurations {
+
+    /**
+     * System property that specifies local shell for the long-running session benchmarks (space-separated command).
+     */
+    public static final String PROPERTY_LOCAL_SHELL = "benchmark.localShell";
+
+    private static final String DEFAULT_LOCAL_SHELL = "/bin/sh";
+
+    /**
+     * Configuration that executes the scripts through the fake WS-MAN server.
+     */
+    public static PowerShellConfiguration createWinRmConfiguration(FakeWsManServer server) {
+        PowerShellConfiguration configuration = new PowerShellConfiguration();
+        configuration.setScriptExecutionMechanism(PowerShellConfiguration.SCRIPT_EXECUTION_MECHANISM_WINRM);
+        configuration.setWinRmHost(server.getHost());
+        configuration.setWinRmPort(server.getPort());
+        configuration.setWinRmAuthenticationScheme(PowerShellConfiguration.WINDOWS_AUTHENTICATION_SCHEME_BASIC);
+        configuration.setWinRmUsername("benchmark");
+        configuration.setWinRmPassword(new GuardedString("benchmark".toCharArray()));
+        return configuration;
+    }
+
+    /**
+     * Configuration that executes long-running session scripts in a local shell. The fake WS-MAN server
+     * does not emulate the interactive PowerShell loop, therefore local shell is used as the stand-in.
+     * The shell is "/bin/sh" with plain framing, unless specified by benchmark.localShell system property.
+     */
+    public static PowerShellConfiguration createLocalConfiguration() {
+        PowerShellConfiguration configuration = new PowerShellConfiguration();
+        configuration.setScriptExecutionMechanism(PowerShellConfiguration.SCRIPT_EXECUTION_MECHANISM_LOCAL);
+        String localShell = System.getProperty(PROPERTY_LOCAL_SHELL, DEFAULT_LOCAL_SHELL);
+        configuration.setLocalShellCommand(localShell.split("\\s+"));
+        configuration.setLocalShellFraming(localShell.equals(DEFAULT_LOCAL_SHELL)
+                ? PowerHellLocalLoopImpl.FRAMING_PLAIN : PowerHellLocalLoopImpl.FRAMING_POWERSHELL);
+        return configuration;
+    }
+
+    /**
+     * Returns script that writes output of the specified size in the local stand-in shell.
+     */
+    public static String createLocalScript(int outputSize) {
+        if (System.getProperty(PROPERTY_LOCAL_SHELL) != null) {
+            return "'x' * " + outputSize;
+        }
+        return "printf '%0" + outputSize + "d' 0";
+    }
+
+    public static boolean isLocalLanguage(String scriptLanguage) {
+        return PowerShellConfiguration.SCRIPT_LANGUAGE_POWERHELL.equals(scriptLanguage)
+                || PowerShellConfiguration.SCRIPT_LANGUAGE_EXCHANGE.equals(scriptLanguage);
+    }
+}
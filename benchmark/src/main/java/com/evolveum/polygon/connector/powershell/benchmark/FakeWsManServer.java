@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for WS-Management (WinRM) endpoint.
+ *
+ * The server implements just enough of the WinRM shell protocol for the command-based
+ * PowerHell implementations: Create (shell), Command, Receive, Send, Signal and Delete.
+ * Every command completes immediately, its output is produced by the responder function
+ * and returned in the first Receive response. Credentials are not checked.
+ *
+ * Latency, output size and faults (errors, authentication failures, dropped connections,
+ * shell idle timeout) are configurable and they can be changed while the server is running.
+ */
+public class FakeWsManServer {
+
+    public static final String PATH = "/wsman";
+
+    private static final String ACTION_CREATE = "http://schemas.xmlsoap.org/ws/2004/09/transfer/Create";
+    private static final String ACTION_DELETE = "http://schemas.xmlsoap.org/ws/2004/09/transfer/Delete";
+    private static final String ACTION_COMMAND = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/Command";
+    private static final String ACTION_RECEIVE = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/Receive";
+    private static final String ACTION_SEND = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/Send";
+    private static final String ACTION_SIGNAL = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/Signal";
+
+    public static final String THREAD_NAME_PREFIX = "fake-wsman";
+
+    private static final String COMMAND_STATE_DONE = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Done";
+    private static final String WSMAN_FAULT_SHELL_NOT_FOUND = "2150858843";
+
+    private static final String NAMESPACES = "xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\""
+            + " xmlns:a=\"http://schemas.xmlsoap.org/ws/2004/08/addressing\""
+            + " xmlns:x=\"http://schemas.xmlsoap.org/ws/2004/09/transfer\""
+            + " xmlns:w=\"http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd\""
+            + " xmlns:rsp=\"http://schemas.microsoft.com/wbem/wsman/1/windows/shell\"";
+
+    private static final Pattern ACTION_PATTERN = Pattern.compile("<(?:\\w+:)?Action[^>]*>([^<]*)<");
+    private static final Pattern MESSAGE_ID_PATTERN = Pattern.compile("<(?:\\w+:)?MessageID[^>]*>([^<]*)<");
+    private static final Pattern SHELL_ID_PATTERN = Pattern.compile("<(?:\\w+:)?Selector\\s+Name=\"ShellId\"[^>]*>([^<]*)<");
+    private static final Pattern COMMAND_PATTERN = Pattern.compile("<(?:\\w+:)?Command>([^<]*)<");
+    private static final Pattern ARGUMENTS_PATTERN = Pattern.compile("<(?:\\w+:)?Arguments>([^<]*)<");
+    private static final Pattern COMMAND_ID_PATTERN = Pattern.compile("CommandId=\"([^\"]*)\"");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Shell> shells = new ConcurrentHashMap<>();
+
+    private volatile long latency = 0;
+    private volatile long latencyJitter = 0;
+    private volatile int outputSize = 16;
+    private volatile double errorRate = 0;
+    private volatile double authFailureRate = 0;
+    private volatile double dropRate = 0;
+    private volatile long shellIdleTimeout = 0;
+    private volatile Function<String, String> responder = this::defaultOutput;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong commandCount = new AtomicLong();
+    private final AtomicLong shellsCreated = new AtomicLong();
+    private final AtomicLong shellsDeleted = new AtomicLong();
+    private final AtomicLong shellsExpired = new AtomicLong();
+    private final AtomicLong faultsInjected = new AtomicLong();
+
+    public FakeWsManServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, THREAD_NAME_PREFIX);
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext(PATH, this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getHost() {
+        return server.getAddress().getAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Response latency in milliseconds. Random jitter (0 to latencyJitter) is added.
+     */
+    public void setLatency(long latency, long latencyJitter) {
+        this.latency = latency;
+        this.latencyJitter = latencyJitter;
+    }
+
+    /**
+     * Size of the output (in characters) produced by the default responder.
+     */
+    public void setOutputSize(int outputSize) {
+        this.outputSize = outputSize;
+    }
+
+    /**
+     * Fraction of commands that fail with non-zero exit code.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Fraction of requests that are rejected with HTTP 401.
+     */
+    public void setAuthFailureRate(double authFailureRate) {
+        this.authFailureRate = authFailureRate;
+    }
+
+    /**
+     * Fraction of requests whose connection is closed without any response.
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * Shells that are not used for this time (milliseconds) are closed by the server,
+     * as the real WinRM service does (IdleTimeout). Zero means no timeout.
+     */
+    public void setShellIdleTimeout(long shellIdleTimeout) {
+        this.shellIdleTimeout = shellIdleTimeout;
+    }
+
+    /**
+     * Function that produces command output from the command line.
+     */
+    public void setResponder(Function<String, String> responder) {
+        this.responder = responder;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getCommandCount() {
+        return commandCount.get();
+    }
+
+    public long getShellsCreated() {
+        return shellsCreated.get();
+    }
+
+    public long getShellsDeleted() {
+        return shellsDeleted.get();
+    }
+
+    public long getShellsExpired() {
+        return shellsExpired.get();
+    }
+
+    public long getFaultsInjected() {
+        return faultsInjected.get();
+    }
+
+    /**
+     * Returns number of shells that are open (created and neither deleted nor expired).
+     */
+    public int getOpenShells() {
+        expireShells();
+        return shells.size();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requestCount.incrementAndGet();
+            String request = readBody(exchange.getRequestBody());
+            delay();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (dropRate > 0 && random.nextDouble() < dropRate) {
+                faultsInjected.incrementAndGet();
+                // Close the connection without response
+                exchange.close();
+                return;
+            }
+            if (authFailureRate > 0 && random.nextDouble() < authFailureRate) {
+                faultsInjected.incrementAndGet();
+                exchange.getResponseHeaders().add("WWW-Authenticate", "Basic realm=\"WSMAN\"");
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+            expireShells();
+            String action = find(ACTION_PATTERN, request);
+            String messageId = find(MESSAGE_ID_PATTERN, request);
+            if (ACTION_CREATE.equals(action)) {
+                send(exchange, 200, createShell(messageId));
+                return;
+            }
+            String shellId = find(SHELL_ID_PATTERN, request);
+            Shell shell = shellId == null ? null : shells.get(shellId);
+            if (shell == null) {
+                send(exchange, 500, shellNotFound(messageId, shellId));
+                return;
+            }
+            shell.lastUsed = System.currentTimeMillis();
+            if (ACTION_COMMAND.equals(action)) {
+                send(exchange, 200, command(shell, messageId, request));
+            } else if (ACTION_RECEIVE.equals(action)) {
+                send(exchange, 200, receive(shell, messageId, find(COMMAND_ID_PATTERN, request)));
+            } else if (ACTION_SEND.equals(action)) {
+                send(exchange, 200, envelope(ACTION_SEND + "Response", messageId, "<rsp:SendResponse/>"));
+            } else if (ACTION_SIGNAL.equals(action)) {
+                send(exchange, 200, envelope(ACTION_SIGNAL + "Response", messageId, "<rsp:SignalResponse/>"));
+            } else if (ACTION_DELETE.equals(action)) {
+                shells.remove(shellId);
+                shellsDeleted.incrementAndGet();
+                send(exchange, 200, envelope(ACTION_DELETE + "Response", messageId, ""));
+            } else {
+                exchange.sendResponseHeaders(400, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String createShell(String messageId) {
+        String shellId = UUID.randomUUID().toString().toUpperCase();
+        shells.put(shellId, new Shell());
+        shellsCreated.incrementAndGet();
+        String body = "<x:ResourceCreated><a:Address>http://" + getHost() + ":" + getPort() + PATH + "</a:Address>"
+                + "<a:ReferenceParameters><w:ResourceURI>http://schemas.microsoft.com/wbem/wsman/1/windows/shell/cmd</w:ResourceURI>"
+                + "<w:SelectorSet><w:Selector Name=\"ShellId\">" + shellId + "</w:Selector></w:SelectorSet>"
+                + "</a:ReferenceParameters></x:ResourceCreated>"
+                + "<rsp:Shell><rsp:ShellId>" + shellId + "</rsp:ShellId></rsp:Shell>";
+        return envelope(ACTION_CREATE + "Response", messageId, body);
+    }
+
+    private String command(Shell shell, String messageId, String request) {
+        commandCount.incrementAndGet();
+        String commandLine = unescape(find(COMMAND_PATTERN, request));
+        String arguments = find(ARGUMENTS_PATTERN, request);
+        if (arguments != null) {
+            commandLine = commandLine + " " + unescape(arguments);
+        }
+        String commandId = UUID.randomUUID().toString().toUpperCase();
+        boolean error = errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+        if (error) {
+            faultsInjected.incrementAndGet();
+        }
+        shell.commands.put(commandId, new CommandResult(responder.apply(commandLine), error ? 1 : 0));
+        return envelope(ACTION_COMMAND + "Response", messageId,
+                "<rsp:CommandResponse><rsp:CommandId>" + commandId + "</rsp:CommandId></rsp:CommandResponse>");
+    }
+
+    private String receive(Shell shell, String messageId, String commandId) {
+        CommandResult result = commandId == null ? null : shell.commands.remove(commandId);
+        StringBuilder body = new StringBuilder("<rsp:ReceiveResponse>");
+        String stdout = "";
+        String stderr = "";
+        int exitCode = 0;
+        if (result != null) {
+            if (result.exitCode == 0) {
+                stdout = result.output;
+            } else {
+                stderr = "Simulated failure";
+            }
+            exitCode = result.exitCode;
+        }
+        appendStream(body, "stdout", commandId, stdout);
+        appendStream(body, "stderr", commandId, stderr);
+        body.append("<rsp:CommandState CommandId=\"").append(commandId).append("\" State=\"").append(COMMAND_STATE_DONE).append("\">");
+        body.append("<rsp:ExitCode>").append(exitCode).append("</rsp:ExitCode></rsp:CommandState>");
+        body.append("</rsp:ReceiveResponse>");
+        return envelope(ACTION_RECEIVE + "Response", messageId, body.toString());
+    }
+
+    private void appendStream(StringBuilder body, String name, String commandId, String data) {
+        if (!data.isEmpty()) {
+            body.append("<rsp:Stream Name=\"").append(name).append("\" CommandId=\"").append(commandId).append("\">");
+            body.append(Base64.getEncoder().encodeToString(data.getBytes(StandardCharsets.UTF_8)));
+            body.append("</rsp:Stream>");
+        }
+        body.append("<rsp:Stream Name=\"").append(name).append("\" CommandId=\"").append(commandId).append("\" End=\"true\"></rsp:Stream>");
+    }
+
+    private String shellNotFound(String messageId, String shellId) {
+        String message = "The request for the Windows Remote Shell with ShellId " + shellId
+                + " failed because the shell was not found on the server.";
+        String body = "<s:Fault><s:Code><s:Value>s:Sender</s:Value><s:Subcode><s:Value>w:InvalidSelectors</s:Value></s:Subcode></s:Code>"
+                + "<s:Reason><s:Text xml:lang=\"en-US\">" + message + "</s:Text></s:Reason>"
+                + "<s:Detail><f:WSManFault xmlns:f=\"http://schemas.microsoft.com/wbem/wsman/1/wsmanfault\" Code=\""
+                + WSMAN_FAULT_SHELL_NOT_FOUND + "\" Machine=\"fake\"><f:Message>" + message + "</f:Message></f:WSManFault></s:Detail>"
+                + "</s:Fault>";
+        return envelope("http://schemas.dmtf.org/wbem/wsman/1/wsman/fault", messageId, body);
+    }
+
+    private String envelope(String action, String relatesTo, String body) {
+        return "<s:Envelope " + NAMESPACES + "><s:Header>"
+                + "<a:Action>" + action + "</a:Action>"
+                + "<a:MessageID>uuid:" + UUID.randomUUID().toString().toUpperCase() + "</a:MessageID>"
+                + "<a:To>http://schemas.xmlsoap.org/ws/2004/08/addressing/role/anonymous</a:To>"
+                + (relatesTo == null ? "" : "<a:RelatesTo>" + relatesTo + "</a:RelatesTo>")
+                + "</s:Header><s:Body>" + body + "</s:Body></s:Envelope>";
+    }
+
+    private void expireShells() {
+        long timeout = shellIdleTimeout;
+        if (timeout <= 0) {
+            return;
+        }
+        long threshold = System.currentTimeMillis() - timeout;
+        shells.entrySet().removeIf(entry -> {
+            boolean expired = entry.getValue().lastUsed < threshold;
+            if (expired) {
+                shellsExpired.incrementAndGet();
+            }
+            return expired;
+        });
+    }
+
+    private void delay() {
+        long delay = latency;
+        if (latencyJitter > 0) {
+            delay += ThreadLocalRandom.current().nextLong(latencyJitter + 1);
+        }
+        if (delay <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String defaultOutput(String commandLine) {
+        int size = outputSize;
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append(sb.length() % 80 == 79 ? '\n' : (char) ('a' + sb.length() % 26));
+        }
+        return sb.toString();
+    }
+
+    private void send(HttpExchange exchange, int status, String response) throws IOException {
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/soap+xml;charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String find(Pattern pattern, String text) {
+        Matcher matcher = pattern.matcher(text);
+        return matcher.find() ? matcher.group(1).trim() : null;
+    }
+
+    private static String unescape(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.replace("&quot;", "\"").replace("&apos;", "'").replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+    }
+
+    private static class Shell {
+        private volatile long lastUsed = System.currentTimeMillis();
+        private final Map<String, CommandResult> commands = new ConcurrentHashMap<>();
+    }
+
+    private static class CommandResult {
+        private final String output;
+        private final int exitCode;
+
+        private CommandResult(String output, int exitCode) {
+            this.output = output;
+            this.exitCode = exitCode;
+        }
+    }
+}
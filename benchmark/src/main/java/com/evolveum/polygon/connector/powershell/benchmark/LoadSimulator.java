@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell.benchmark;
+
+import com.evolveum.polygon.connector.powershell.AsyncScriptExecutor;
+import com.evolveum.polygon.connector.powershell.ConnectorMetrics;
+import com.evolveum.polygon.connector.powershell.Histogram;
+import com.evolveum.polygon.connector.powershell.HostCircuitBreaker;
+import com.evolveum.polygon.connector.powershell.PowerShellConfiguration;
+import com.evolveum.polygon.connector.powershell.PowerShellConnector;
+import com.evolveum.polygon.connector.powershell.ScriptResultCacheRegistry;
+import com.evolveum.polygon.connector.powershell.SharedSessionRegistry;
+import com.evolveum.polygon.connector.powershell.WinRmBusRegistry;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.ScriptContext;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load and soak simulator. Drives many pooled connector instances from many concurrent
+ * callers against the fake WS-MAN server with injected latency and faults. As in the ConnId connector pool,
+ * each connector instance is used by one caller at a time. Callers wait for a free instance
+ * if there are fewer instances than callers.
+ *
+ * Reports throughput, tail latency and failures periodically. At the end it reports heap growth
+ * and the resources that were left behind after all the connector instances were disposed:
+ * open shells, CXF buses, circuit breakers, async executors, shared session owners, MBeans and threads.
+ * The process exits with status 1 if anything leaked.
+ *
+ * Options are specified as "--name=value" arguments, see {@link #OPTIONS} for the names and defaults.
+ */
+public class LoadSimulator {
+
+    private static final Map<String, String> OPTIONS = new LinkedHashMap<>();
+    static {
+        OPTIONS.put("connectors", "200");           // number of connector instances, each used by one caller at a time
+        OPTIONS.put("callers", "200");              // number of concurrent caller threads
+        OPTIONS.put("duration", "300");             // seconds
+        OPTIONS.put("reportInterval", "10");        // seconds
+        OPTIONS.put("language", PowerShellConfiguration.SCRIPT_LANGUAGE_POWERSHELL);
+        OPTIONS.put("poolSize", "10");              // session pool max size of each connector instance
+        OPTIONS.put("sessionSharing", "false");
+        OPTIONS.put("retryCount", "0");
+        OPTIONS.put("scriptTimeout", "0");          // milliseconds, 0 means no timeout
+        OPTIONS.put("latency", "50");               // milliseconds
+        OPTIONS.put("latencyJitter", "20");         // milliseconds
+        OPTIONS.put("outputSize", "1024");          // characters
+        OPTIONS.put("errorRate", "0");              // 0.0 - 1.0
+        OPTIONS.put("authFailureRate", "0");        // 0.0 - 1.0
+        OPTIONS.put("dropRate", "0");               // 0.0 - 1.0
+        OPTIONS.put("shellIdleTimeout", "0");       // milliseconds, 0 means that shells do not expire
+    }
+
+    // Time for the threads of disposed connectors to terminate
+    private static final long DISPOSE_GRACE_PERIOD = 5000L;
+
+    private final Map<String, String> options;
+    private final FakeWsManServer server;
+    private final List<PowerShellConnector> connectors = new ArrayList<>();
+    private final BlockingQueue<PowerShellConnector> idleConnectors = new LinkedBlockingQueue<>();
+
+    private final Histogram intervalLatency = new Histogram(Histogram.DURATION_BOUNDS);
+    private final Histogram totalLatency = new Histogram(Histogram.DURATION_BOUNDS);
+    private final LongAdder intervalFailures = new LongAdder();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>(); // key: exception class
+    private volatile boolean running = true;
+
+    public LoadSimulator(Map<String, String> options) throws Exception {
+        this.options = options;
+        this.server = new FakeWsManServer();
+        server.setLatency(getLong("latency"), getLong("latencyJitter"));
+        server.setOutputSize(getInt("outputSize"));
+        server.setErrorRate(getDouble("errorRate"));
+        server.setAuthFailureRate(getDouble("authFailureRate"));
+        server.setDropRate(getDouble("dropRate"));
+        server.setShellIdleTimeout(getLong("shellIdleTimeout"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(OPTIONS);
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (!arg.startsWith("--") || i < 0 || !OPTIONS.containsKey(arg.substring(2, i))) {
+                System.err.println("Unknown argument " + arg + ", supported options (with defaults): " + OPTIONS);
+                System.exit(2);
+            }
+            options.put(arg.substring(2, i), arg.substring(i + 1));
+        }
+        boolean leaked = new LoadSimulator(options).run();
+        System.exit(leaked ? 1 : 0);
+    }
+
+    /**
+     * Runs the simulation, returns true if any resources leaked.
+     */
+    public boolean run() throws Exception {
+        System.out.println("Options: " + options);
+        Set<Thread> baselineThreads = new HashSet<>(Thread.getAllStackTraces().keySet());
+        long baselineHeap = getUsedHeapAfterGc();
+
+        server.start();
+        for (int i = 0; i < getInt("connectors"); i++) {
+            PowerShellConnector connector = new PowerShellConnector();
+            connector.init(createConfiguration());
+            connectors.add(connector);
+        }
+        idleConnectors.addAll(connectors);
+
+        ExecutorService callers = Executors.newFixedThreadPool(getInt("callers"));
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        long start = System.currentTimeMillis();
+        long reportInterval = getLong("reportInterval");
+        reporter.scheduleAtFixedRate(() -> report(start), reportInterval, reportInterval, TimeUnit.SECONDS);
+        for (int i = 0; i < getInt("callers"); i++) {
+            callers.execute(this::call);
+        }
+        Thread.sleep(getLong("duration") * 1000L);
+        running = false;
+        callers.shutdown();
+        callers.awaitTermination(5, TimeUnit.MINUTES);
+        reporter.shutdownNow();
+        reporter.awaitTermination(1, TimeUnit.MINUTES);
+        long duration = System.currentTimeMillis() - start;
+        long loadedHeap = getUsedHeapAfterGc();
+
+        for (PowerShellConnector connector : connectors) {
+            connector.dispose();
+        }
+        connectors.clear();
+        idleConnectors.clear();
+        Thread.sleep(DISPOSE_GRACE_PERIOD);
+        long disposedHeap = getUsedHeapAfterGc();
+
+        System.out.println();
+        System.out.println("Total: " + totalLatency.getCount() + " calls in " + duration + " ms, "
+                + String.format("%.1f", totalLatency.getCount() * 1000.0 / duration) + " calls/s");
+        System.out.println("Latency (ms): " + formatLatency(totalLatency));
+        System.out.println("Failures: " + new TreeMap<>(failures));
+        System.out.println("Server: " + server.getRequestCount() + " requests, " + server.getCommandCount() + " commands, "
+                + server.getShellsCreated() + " shells created, " + server.getShellsDeleted() + " deleted, "
+                + server.getShellsExpired() + " expired, " + server.getFaultsInjected() + " faults injected");
+        System.out.println("Heap (MB): baseline " + toMegabytes(baselineHeap) + ", after load " + toMegabytes(loadedHeap)
+                + ", after dispose " + toMegabytes(disposedHeap));
+
+        boolean leaked = checkLeaks(baselineThreads);
+        server.stop();
+        return leaked;
+    }
+
+    private PowerShellConfiguration createConfiguration() {
+        PowerShellConfiguration configuration = BenchmarkConfigurations.createWinRmConfiguration(server);
+        configuration.setSessionPoolMaxSize(getInt("poolSize"));
+        configuration.setSessionSharingEnabled(getBoolean("sessionSharing"));
+        configuration.setScriptRetryCount(getInt("retryCount"));
+        if (getLong("scriptTimeout") > 0) {
+            configuration.setScriptTimeouts(new String[] { options.get("language") + "=" + getLong("scriptTimeout") });
+        }
+        configuration.setMetricsEnabled(true);
+        configuration.validate();
+        return configuration;
+    }
+
+    private void call() {
+        ScriptContext scriptCtx = new ScriptContext(options.get("language"), "Get-LoadTest", null);
+        OperationOptions operationOptions = new OperationOptionsBuilder()
+                .setOption(PowerShellConnector.OPTION_SCRIPT_IDEMPOTENT, true).build();
+        while (running) {
+            PowerShellConnector connector;
+            try {
+                connector = idleConnectors.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (connector == null) {
+                continue;
+            }
+            long startNanos = System.nanoTime();
+            try {
+                connector.runScriptOnResource(scriptCtx, operationOptions);
+            } catch (RuntimeException e) {
+                intervalFailures.increment();
+                failures.computeIfAbsent(e.getClass().getSimpleName(), key -> new LongAdder()).increment();
+            } finally {
+                idleConnectors.add(connector);
+            }
+            long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            intervalLatency.record(latency);
+            totalLatency.record(latency);
+        }
+    }
+
+    private void report(long start) {
+        long calls = intervalLatency.getCount();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println(String.format("[%4ds] %.1f calls/s, %d failures, latency (ms): %s, heap %d MB, %d threads, %d open shells",
+                (System.currentTimeMillis() - start) / 1000, calls / (double) getLong("reportInterval"),
+                intervalFailures.sumThenReset(), formatLatency(intervalLatency),
+                toMegabytes(runtime.totalMemory() - runtime.freeMemory()), Thread.activeCount(), server.getOpenShells()));
+        intervalLatency.reset();
+    }
+
+    private boolean checkLeaks(Set<Thread> baselineThreads) throws Exception {
+        boolean leaked = false;
+        if (server.getOpenShells() > 0) {
+            System.out.println("LEAK: " + server.getOpenShells() + " shells were not deleted");
+            leaked = true;
+        }
+        if (WinRmBusRegistry.getBusCount() > 0) {
+            System.out.println("LEAK: " + WinRmBusRegistry.getBusCount() + " CXF buses were not released");
+            leaked = true;
+        }
+        if (AsyncScriptExecutor.getExecutorCount() > 0) {
+            System.out.println("LEAK: " + AsyncScriptExecutor.getExecutorCount() + " async script executors were not released");
+            leaked = true;
+        }
+        if (HostCircuitBreaker.getBreakerCount() > 0) {
+            System.out.println("LEAK: " + HostCircuitBreaker.getBreakerCount() + " host circuit breakers were not released");
+            leaked = true;
+        }
+        if (SharedSessionRegistry.getOwnerCount() > 0) {
+            System.out.println("LEAK: " + SharedSessionRegistry.getOwnerCount() + " shared session owners were not released");
+            leaked = true;
+        }
+        if (ScriptResultCacheRegistry.getCacheCount() > 0) {
+            System.out.println("LEAK: " + ScriptResultCacheRegistry.getCacheCount() + " script result caches were not released");
+            leaked = true;
+        }
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        Set<ObjectName> mbeanNames = mbeanServer.queryNames(new ObjectName(ConnectorMetrics.JMX_DOMAIN + ":*"), null);
+        for (ObjectName mbeanName : mbeanNames) {
+            if ("SessionPool".equals(mbeanName.getKeyProperty("type"))) {
+                System.out.println("LEAK: session pool " + mbeanName + " was not closed, "
+                        + mbeanServer.getAttribute(mbeanName, "TotalSessions") + " sessions");
+            } else {
+                System.out.println("LEAK: MBean " + mbeanName + " was not unregistered");
+            }
+            leaked = true;
+        }
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && !baselineThreads.contains(thread) && !isServerThread(thread)) {
+                System.out.println("LEAK: thread " + thread.getName() + " (" + thread.getState() + ")");
+                leaked = true;
+            }
+        }
+        if (!leaked) {
+            System.out.println("No leaks detected");
+        }
+        return leaked;
+    }
+
+    private boolean isServerThread(Thread thread) {
+        // Threads of the fake server and JVM housekeeping threads are not connector leaks
+        return thread.getName().startsWith(FakeWsManServer.THREAD_NAME_PREFIX)
+                || thread.getName().startsWith("HTTP-Dispatcher")
+                || thread.getName().startsWith("Attach Listener");
+    }
+
+    private static String formatLatency(Histogram histogram) {
+        return String.format("p50 %d, p99 %d, p99.9 %d, max %d", histogram.getPercentile(50), histogram.getPercentile(99),
+                histogram.getPercentile(99.9), histogram.getMax());
+    }
+
+    private static long getUsedHeapAfterGc() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long toMegabytes(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+
+    private int getInt(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private long getLong(String name) {
+        return Long.parseLong(options.get(name));
+    }
+
+    private double getDouble(String name) {
+        return Double.parseDouble(options.get(name));
+    }
+
+    private boolean getBoolean(String name) {
+        return Boolean.parseBoolean(options.get(name));
+    }
+}
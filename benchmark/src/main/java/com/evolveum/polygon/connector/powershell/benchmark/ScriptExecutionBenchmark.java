@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell.benchmark;
+
+import com.evolveum.polygon.connector.powershell.PowerShellConfiguration;
+import com.evolveum.polygon.connector.powershell.PowerShellConnector;
+import org.identityconnectors.framework.common.objects.ScriptContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of the connector itself: session handling, argument rendering,
+ * logging and WinRM client (CXF) processing. The scripts are executed against in-process
+ * fake WS-MAN server with no latency, therefore the results do not include any Windows-side cost.
+ *
+ * The "powerhell" language is executed in a local stand-in shell, see {@link BenchmarkConfigurations}.
+ *
+ * Run with "-prof gc" to get allocation rate. Sample time mode reports latency percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ScriptExecutionBenchmark {
+
+    @Param({ PowerShellConfiguration.SCRIPT_LANGUAGE_CMD, PowerShellConfiguration.SCRIPT_LANGUAGE_POWERSHELL,
+            PowerShellConfiguration.SCRIPT_LANGUAGE_POWERHELL })
+    public String scriptLanguage;
+
+    @Param({ "16", "65536" })
+    public int outputSize;
+
+    @Param({ PowerShellConfiguration.ARGUMENT_STYLE_DASHED, PowerShellConfiguration.ARGUMENT_STYLE_VARIABLES })
+    public String argumentStyle;
+
+    private FakeWsManServer server;
+    private PowerShellConnector connector;
+    private ScriptContext scriptCtx;
+    private ScriptContext scriptCtxWithArguments;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        PowerShellConfiguration configuration;
+        String scriptText;
+        if (BenchmarkConfigurations.isLocalLanguage(scriptLanguage)) {
+            configuration = BenchmarkConfigurations.createLocalConfiguration();
+            scriptText = BenchmarkConfigurations.createLocalScript(outputSize);
+        } else {
+            server = new FakeWsManServer();
+            server.setOutputSize(outputSize);
+            server.start();
+            configuration = BenchmarkConfigurations.createWinRmConfiguration(server);
+            scriptText = "Get-Benchmark";
+        }
+        configuration.setPowershellArgumentStyle(argumentStyle);
+        configuration.setSessionPoolMaxSize(4);
+        configuration.validate();
+        connector = new PowerShellConnector();
+        connector.init(configuration);
+
+        scriptCtx = new ScriptContext(scriptLanguage, scriptText, null);
+        Map<String, Object> arguments = new HashMap<>();
+        arguments.put("name", "John O'Benchmark");
+        arguments.put("count", 42);
+        arguments.put("enabled", true);
+        scriptCtxWithArguments = new ScriptContext(scriptLanguage, scriptText, arguments);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connector.dispose();
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Benchmark
+    public Object runScript() {
+        return connector.runScriptOnResource(scriptCtx, null);
+    }
+
+    @Benchmark
+    public Object runScriptWithArguments() {
+        return connector.runScriptOnResource(scriptCtxWithArguments, null);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import java.util.Arrays;
+
+/**
+ * Operation timeout that adapts to the observed latency.
+ *
+ * The timeout is a multiple of the 99th percentile of the latency of recent operations,
+ * limited by minimal and maximal timeout. The maximal timeout is used until there are enough observations.
+ * Operations that timed out are observed too (with the time they took until the timeout),
+ * so that repeated timeouts make the timeout longer instead of keeping it too short for a slower host.
+ */
+public class AdaptiveTimeout {
+
+    private static final int WINDOW_SIZE = 100;
+    private static final int MIN_OBSERVATIONS = 20;
+    private static final double PERCENTILE = 99;
+
+    private final long minTimeout;
+    private final long maxTimeout;
+    private final double latencyFactor;
+
+    private final long[] latencies = new long[WINDOW_SIZE];
+    private int observations = 0;
+    private int next = 0;
+
+    public AdaptiveTimeout(long minTimeout, long maxTimeout, double latencyFactor) {
+        this.minTimeout = Math.min(minTimeout, maxTimeout);
+        this.maxTimeout = maxTimeout;
+        this.latencyFactor = latencyFactor;
+    }
+
+    /**
+     * Records latency of successful operation.
+     */
+    public synchronized void record(long latency) {
+        latencies[next] = latency;
+        next = (next + 1) % WINDOW_SIZE;
+        if (observations < WINDOW_SIZE) {
+            observations++;
+        }
+    }
+
+    /**
+     * Records operation that timed out after the specified time. The real latency is not known,
+     * it is at least the elapsed time.
+     */
+    public void recordTimeout(long elapsed) {
+        record(elapsed);
+    }
+
+    /**
+     * Returns current timeout in milliseconds.
+     */
+    public long getTimeout() {
+        long[] window;
+        synchronized (this) {
+            if (observations < MIN_OBSERVATIONS) {
+                return maxTimeout;
+            }
+            window = Arrays.copyOf(latencies, observations);
+        }
+        Arrays.sort(window);
+        int index = (int) Math.ceil(window.length * PERCENTILE / 100) - 1;
+        long timeout = (long) (window[Math.max(0, index)] * latencyFactor);
+        return Math.max(minTimeout, Math.min(maxTimeout, timeout));
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveTimeout(" + getTimeout() + " ms, " + minTimeout + "-" + maxTimeout + " ms)";
+    }
+}
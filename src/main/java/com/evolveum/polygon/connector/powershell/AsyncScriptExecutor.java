@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Executors for asynchronous script execution, one executor for each set of endpoints
+ * (endpoint URLs of the hosts that the scripts are spread over).
+ *
+ * The number of scripts that are executed on a host at the same time is limited, no matter how many
+ * connector instances submit them. The host is selected before the script takes a session (see {@link #enterHost(Collection)}),
+ * so the scripts that wait for a host do not hold sessions. The limit of a host is shared by all the executors that use the host.
+ * The executor has enough threads to use all its hosts up to the limit. Scripts that cannot be executed
+ * immediately wait in a bounded queue. The executors and the host limits are shared by all the connector
+ * instances and they are reference-counted.
+ */
+public class AsyncScriptExecutor {
+
+    private static final Log LOG = Log.getLog(AsyncScriptExecutor.class);
+
+    private static final Map<String, AsyncScriptExecutor> EXECUTORS = new HashMap<>(); // key: endpoints
+    private static final Map<String, HostLimit> HOST_LIMITS = new HashMap<>(); // key: endpoint, guarded by EXECUTORS
+    // Guards the in-flight counters of all the hosts, scripts wait for any of several hosts
+    private static final Object IN_FLIGHT_LOCK = new Object();
+    private static final ThreadLocal<AsyncScriptExecutor> CURRENT_EXECUTOR = new ThreadLocal<>();
+
+    private final String key;
+    private final List<String> endpoints;
+    private final Map<String, HostLimit> hostLimits = new HashMap<>();
+    private final ThreadPoolExecutor executor;
+    private int usageCount = 0; // guarded by EXECUTORS
+
+    private AsyncScriptExecutor(String key, List<String> endpoints, int maxInFlight, int queueCapacity) {
+        this.key = key;
+        this.endpoints = new ArrayList<>(endpoints);
+        int threads = maxInFlight * endpoints.size();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), new DaemonThreadFactory("powershell-connector-async-" + key));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns executor for the endpoints, creating it if needed. Limits are applied only when the executor
+     * (or the limit of the host) is created.
+     */
+    public static AsyncScriptExecutor acquire(List<String> endpoints, int maxInFlight, int queueCapacity) {
+        String key = String.join(",", endpoints);
+        synchronized (EXECUTORS) {
+            AsyncScriptExecutor asyncExecutor = EXECUTORS.get(key);
+            if (asyncExecutor == null) {
+                asyncExecutor = new AsyncScriptExecutor(key, endpoints, maxInFlight, queueCapacity);
+                for (String endpoint : endpoints) {
+                    HostLimit hostLimit = HOST_LIMITS.computeIfAbsent(endpoint, e -> new HostLimit(maxInFlight));
+                    hostLimit.usageCount++;
+                    asyncExecutor.hostLimits.put(endpoint, hostLimit);
+                }
+                EXECUTORS.put(key, asyncExecutor);
+                LOG.ok("Created async script executor for {0} ({1} scripts in flight per host)", key, maxInFlight);
+            }
+            asyncExecutor.usageCount++;
+            return asyncExecutor;
+        }
+    }
+
+    public void release() {
+        synchronized (EXECUTORS) {
+            usageCount--;
+            if (usageCount > 0) {
+                return;
+            }
+            EXECUTORS.remove(key);
+            for (String endpoint : endpoints) {
+                HostLimit hostLimit = HOST_LIMITS.get(endpoint);
+                if (hostLimit != null && --hostLimit.usageCount <= 0) {
+                    HOST_LIMITS.remove(endpoint);
+                }
+            }
+        }
+        LOG.ok("Shutting down async script executor for {0}", key);
+        // Let the scripts that were already submitted finish
+        executor.shutdown();
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                CURRENT_EXECUTOR.set(this);
+                try {
+                    return task.get();
+                } finally {
+                    CURRENT_EXECUTOR.remove();
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(new ConnectorException("Too many scripts waiting for execution on "+key, e));
+            return future;
+        }
+    }
+
+    /**
+     * Returns executor of the asynchronous script that the current thread executes, null if the thread
+     * does not execute asynchronous script.
+     */
+    public static AsyncScriptExecutor getCurrent() {
+        return CURRENT_EXECUTOR.get();
+    }
+
+    /**
+     * Waits until another asynchronous script can be executed on one of the hosts (endpoints).
+     * The host with the lowest number of scripts in flight is selected.
+     *
+     * @return permit of the selected host, it has to be released when the script is finished.
+     *         Null if the executor does not limit any of the hosts.
+     */
+    public HostPermit enterHost(Collection<String> candidateEndpoints) {
+        List<String> limited = new ArrayList<>();
+        for (String endpoint : candidateEndpoints) {
+            if (hostLimits.containsKey(endpoint)) {
+                limited.add(endpoint);
+            }
+        }
+        if (limited.isEmpty()) {
+            return null;
+        }
+        synchronized (IN_FLIGHT_LOCK) {
+            while (true) {
+                String selectedEndpoint = null;
+                HostLimit selectedLimit = null;
+                for (String endpoint : limited) {
+                    HostLimit hostLimit = hostLimits.get(endpoint);
+                    if (hostLimit.inFlight < hostLimit.maxInFlight
+                            && (selectedLimit == null || hostLimit.inFlight < selectedLimit.inFlight)) {
+                        selectedEndpoint = endpoint;
+                        selectedLimit = hostLimit;
+                    }
+                }
+                if (selectedLimit != null) {
+                    selectedLimit.inFlight++;
+                    return new HostPermit(selectedEndpoint, selectedLimit);
+                }
+                try {
+                    IN_FLIGHT_LOCK.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new OperationTimeoutException("Interrupted while waiting for execution on "+limited, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns number of executors that were acquired and not yet released.
+     */
+    public static int getExecutorCount() {
+        synchronized (EXECUTORS) {
+            return EXECUTORS.size();
+        }
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns number of scripts in flight on the host (endpoint), as seen by this executor.
+     */
+    public int getInFlight(String endpoint) {
+        HostLimit hostLimit = hostLimits.get(endpoint);
+        if (hostLimit == null) {
+            return 0;
+        }
+        synchronized (IN_FLIGHT_LOCK) {
+            return hostLimit.inFlight;
+        }
+    }
+
+    private static class HostLimit {
+        private final int maxInFlight;
+        private int inFlight = 0; // guarded by IN_FLIGHT_LOCK
+        private int usageCount = 0; // guarded by EXECUTORS
+
+        private HostLimit(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+        }
+    }
+
+    /**
+     * Permit to execute a script on the host. It can be released only once.
+     */
+    public static class HostPermit {
+        private final String endpoint;
+        private final HostLimit hostLimit;
+        private boolean released = false; // guarded by IN_FLIGHT_LOCK
+
+        private HostPermit(String endpoint, HostLimit hostLimit) {
+            this.endpoint = endpoint;
+            this.hostLimit = hostLimit;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public void release() {
+            synchronized (IN_FLIGHT_LOCK) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                hostLimit.inFlight--;
+                IN_FLIGHT_LOCK.notifyAll();
+            }
+        }
+    }
+}
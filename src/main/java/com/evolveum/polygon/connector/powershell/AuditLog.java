@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+/**
+ * Operation log of a connector instance. Long string parameters (script text, output)
+ * are truncated to the configured length, if set.
+ *
+ * In asynchronous mode the records are handed over to {@link AuditLogWriter}, therefore
+ * the thread that executes the script does not pay for formatting and writing of the records.
+ */
+public class AuditLog {
+
+    private final int maxLength;
+    private final boolean blockWhenFull;
+    private volatile AuditLogWriter writer;
+
+    /**
+     * Creates synchronous log.
+     */
+    public AuditLog(int maxLength) {
+        this.maxLength = maxLength;
+        this.blockWhenFull = false;
+        this.writer = null;
+    }
+
+    /**
+     * Creates asynchronous log.
+     */
+    public AuditLog(int maxLength, int queueCapacity, boolean blockWhenFull) {
+        this.maxLength = maxLength;
+        this.blockWhenFull = blockWhenFull;
+        this.writer = AuditLogWriter.acquire(queueCapacity);
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public void log(String format, Object... params) {
+        if (!OperationLog.isLogOperations()) {
+            return;
+        }
+        write(new AuditLogRecord(false, format, params, maxLength));
+    }
+
+    public void error(String format, Object... params) {
+        write(new AuditLogRecord(true, format, params, maxLength));
+    }
+
+    private void write(AuditLogRecord record) {
+        AuditLogWriter currentWriter = writer;
+        if (currentWriter == null) {
+            record.write();
+        } else {
+            currentWriter.enqueue(record, blockWhenFull);
+        }
+    }
+
+    /**
+     * Releases the asynchronous writer. The log is synchronous after it is closed.
+     */
+    public synchronized void close() {
+        if (writer != null) {
+            writer.release();
+            writer = null;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+/**
+ * Operation log record waiting to be written. Long string parameters (script text, output)
+ * are truncated when the record is written, not when it is created.
+ */
+public class AuditLogRecord {
+
+    private final boolean error;
+    private final String format;
+    private final Object[] params;
+    private final int maxLength;
+
+    public AuditLogRecord(boolean error, String format, Object[] params, int maxLength) {
+        this.error = error;
+        this.format = format;
+        this.params = params;
+        this.maxLength = maxLength;
+    }
+
+    public void write() {
+        Object[] truncatedParams = new Object[params.length];
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] instanceof String) {
+                truncatedParams[i] = OperationLog.truncate((String) params[i], maxLength);
+            } else {
+                truncatedParams[i] = params[i];
+            }
+        }
+        if (error) {
+            OperationLog.error(format, truncatedParams);
+        } else {
+            OperationLog.log(format, truncatedParams);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background writer of operation log records. The records are placed in a bounded queue
+ * by the threads that execute the scripts and they are formatted and written to
+ * the operation log by a single daemon thread.
+ *
+ * The writer is shared by all the connector instances and it is reference-counted.
+ * Queue capacity is applied only when the writer is created.
+ *
+ * Records that are enqueued after the writer is stopped are written by the calling thread,
+ * callers that wait for free space in the queue stop waiting when the writer is stopped.
+ */
+public class AuditLogWriter {
+
+    private static final Log LOG = Log.getLog(AuditLogWriter.class);
+
+    private static final long POLL_TIMEOUT = 1000L;
+
+    private static final Object WRITER_LOCK = new Object();
+    private static AuditLogWriter writer = null; // guarded by WRITER_LOCK
+    private static int usageCount = 0; // guarded by WRITER_LOCK
+
+    private final BlockingQueue<AuditLogRecord> queue;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Thread thread;
+    // Guards the stopped flag, so that no record is enqueued after the thread has finished
+    private final Object stateLock = new Object();
+    private boolean stopped = false; // guarded by stateLock
+    private int waitingCount = 0; // guarded by stateLock
+
+    private AuditLogWriter(int queueCapacity) {
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.thread = new DaemonThreadFactory("powershell-connector-audit-log").newThread(this::run);
+        this.thread.start();
+    }
+
+    public static AuditLogWriter acquire(int queueCapacity) {
+        synchronized (WRITER_LOCK) {
+            if (writer == null) {
+                writer = new AuditLogWriter(queueCapacity);
+                LOG.ok("Started audit log writer (queue capacity {0})", queueCapacity);
+            }
+            usageCount++;
+            return writer;
+        }
+    }
+
+    public void release() {
+        synchronized (WRITER_LOCK) {
+            usageCount--;
+            if (usageCount > 0) {
+                return;
+            }
+            writer = null;
+        }
+        LOG.ok("Stopping audit log writer");
+        // The thread writes the records that are still in the queue before it terminates
+        synchronized (stateLock) {
+            stopped = true;
+            stateLock.notifyAll();
+        }
+    }
+
+    /**
+     * Places the record in the queue. If the queue is full, the record is either dropped or
+     * the calling thread waits for free space. If the writer is stopped, the record is written
+     * by the calling thread.
+     */
+    public void enqueue(AuditLogRecord record, boolean blockWhenFull) {
+        synchronized (stateLock) {
+            while (!stopped) {
+                if (queue.offer(record)) {
+                    return;
+                }
+                if (!blockWhenFull) {
+                    droppedCount.incrementAndGet();
+                    return;
+                }
+                waitingCount++;
+                try {
+                    stateLock.wait(POLL_TIMEOUT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedCount.incrementAndGet();
+                    return;
+                } finally {
+                    waitingCount--;
+                }
+            }
+        }
+        record.write();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void run() {
+        long reportedDroppedCount = 0;
+        while (true) {
+            synchronized (stateLock) {
+                if (stopped && queue.isEmpty()) {
+                    return;
+                }
+            }
+            AuditLogRecord record;
+            try {
+                record = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (record != null) {
+                synchronized (stateLock) {
+                    if (waitingCount > 0) {
+                        // There is free space in the queue now
+                        stateLock.notifyAll();
+                    }
+                }
+            }
+            long currentDroppedCount = droppedCount.get();
+            if (currentDroppedCount != reportedDroppedCount) {
+                OperationLog.error("Operation log queue is full, dropped {0} records", currentDroppedCount - reportedDroppedCount);
+                reportedDroppedCount = currentDroppedCount;
+            }
+            if (record != null) {
+                try {
+                    record.write();
+                } catch (RuntimeException e) {
+                    LOG.error(e, "Cannot write operation log record: {0}", e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.common.logging.Log;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of one session owner (connector instance that owns the session pools, see {@link SharedSessionRegistry}),
+ * exposed as MBeans in the platform MBean server:
+ * <ul>
+ *     <li>com.evolveum.polygon.connector.powershell:type=ScriptStatistics,instance=...,host=...,language=...</li>
+ *     <li>com.evolveum.polygon.connector.powershell:type=SessionPool,instance=...,language=...</li>
+ *     <li>com.evolveum.polygon.connector.powershell:type=ScriptResultCache,instance=...,cache=...</li>
+ * </ul>
+ * The metrics of different resources are kept apart. All the MBeans are unregistered when the metrics
+ * are closed, so nothing is left in the MBean server after the connector instance is disposed.
+ * Failure to register MBean is not fatal, the statistics are still collected.
+ *
+ * {@link #NO_OP} metrics collect nothing and register nothing, they are used after the owner is disposed.
+ */
+public class ConnectorMetrics {
+
+    private static final Log LOG = Log.getLog(ConnectorMetrics.class);
+
+    public static final String JMX_DOMAIN = "com.evolveum.polygon.connector.powershell";
+
+    private static final AtomicLong INSTANCE_ID = new AtomicLong();
+    private static final AtomicLong CACHE_ID = new AtomicLong();
+
+    public static final ConnectorMetrics NO_OP = new ConnectorMetrics(false);
+
+    private final long instanceId = INSTANCE_ID.incrementAndGet();
+    private final Map<String, ScriptStatistics> scriptStatistics = new ConcurrentHashMap<>(); // key: host and language
+    private final Map<Object, ObjectName> names = new ConcurrentHashMap<>();
+    private final boolean enabled;
+    private volatile boolean closed = false;
+
+    public ConnectorMetrics() {
+        this(true);
+    }
+
+    private ConnectorMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns statistics for the host and script language, or null if these are no-op metrics.
+     */
+    public ScriptStatistics getScriptStatistics(String host, String scriptLanguage) {
+        if (!enabled) {
+            return null;
+        }
+        return scriptStatistics.computeIfAbsent(host + "/" + scriptLanguage, key -> {
+            ScriptStatistics statistics = new ScriptStatistics(host, scriptLanguage);
+            register(statistics, "type=ScriptStatistics,instance=" + instanceId + ",host=" + ObjectName.quote(host)
+                    + ",language=" + ObjectName.quote(scriptLanguage));
+            return statistics;
+        });
+    }
+
+    public void registerPool(PowerHellPool pool) {
+        register(pool, "type=SessionPool,instance=" + instanceId + ",language=" + ObjectName.quote(pool.getScriptLanguage()));
+    }
+
+    public void unregisterPool(PowerHellPool pool) {
+        unregister(pool);
+    }
+
+    /**
+     * Registers script result cache. The caches are shared by configuration (see {@link ScriptResultCacheRegistry}),
+     * not by session owner, therefore each cache gets its own name.
+     */
+    public void registerCache(ScriptResultCache cache) {
+        register(cache, "type=ScriptResultCache,instance=" + instanceId + ",cache=" + CACHE_ID.incrementAndGet());
+    }
+
+    public void unregisterCache(ScriptResultCache cache) {
+        unregister(cache);
+    }
+
+    /**
+     * Unregisters all the MBeans. Statistics are still collected, but they are no longer exposed.
+     */
+    public void close() {
+        closed = true;
+        for (Object mbean : new ArrayList<>(names.keySet())) {
+            unregister(mbean);
+        }
+    }
+
+    private void register(Object mbean, String properties) {
+        if (closed || !enabled) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":" + properties);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+            names.put(mbean, name);
+        } catch (JMException e) {
+            LOG.warn("Cannot register MBean {0}: {1}", properties, e.getMessage());
+        }
+    }
+
+    private void unregister(Object mbean) {
+        ObjectName name = names.remove(mbean);
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            LOG.warn("Cannot unregister MBean {0}: {1}", name, e.getMessage());
+        }
+    }
+}
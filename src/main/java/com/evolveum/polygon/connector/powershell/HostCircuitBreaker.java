@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Circuit breaker of one WinRM endpoint.
+ *
+ * The breakers are shared by all the connector instances that talk to the same endpoint,
+ * so failures observed by one instance protect the other instances too. The breakers are
+ * reference-counted, the breaker is forgotten when the last connector instance releases it.
+ *
+ * The breaker only keeps the state. The failure threshold and the ejection period are
+ * provided by the caller, therefore connector instances with different configuration can share the breaker.
+ */
+public class HostCircuitBreaker {
+
+    private static final Log LOG = Log.getLog(HostCircuitBreaker.class);
+
+    private static final Map<String, HostCircuitBreaker> BREAKERS = new HashMap<>();
+
+    private final String endpoint;
+    private int usageCount = 0; // guarded by BREAKERS
+    private int consecutiveFailures = 0;
+    private boolean open = false;
+    private long openUntil = 0;
+    // Trial that does not report the result in time does not block the endpoint forever
+    private long trialUntil = 0;
+
+    private HostCircuitBreaker(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Returns the breaker of the endpoint, creating it if needed.
+     */
+    public static HostCircuitBreaker acquire(String endpoint) {
+        synchronized (BREAKERS) {
+            HostCircuitBreaker breaker = BREAKERS.computeIfAbsent(endpoint, HostCircuitBreaker::new);
+            breaker.usageCount++;
+            return breaker;
+        }
+    }
+
+    public static void release(HostCircuitBreaker breaker) {
+        synchronized (BREAKERS) {
+            breaker.usageCount--;
+            LOG.ok("circuit breaker {0} release (usage count = {1})", breaker.endpoint, breaker.usageCount);
+            if (breaker.usageCount <= 0) {
+                BREAKERS.remove(breaker.endpoint, breaker);
+            }
+        }
+    }
+
+    /**
+     * Returns number of breakers that were acquired and not yet released.
+     */
+    public static int getBreakerCount() {
+        synchronized (BREAKERS) {
+            return BREAKERS.size();
+        }
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Returns true if the circuit is open, i.e. the endpoint is ejected.
+     */
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Returns time when the current ejection ends, zero if the circuit is closed.
+     */
+    public synchronized long getOpenUntil() {
+        return openUntil;
+    }
+
+    /**
+     * Returns true if the circuit is half-open: the ejection period is over and no trial is running.
+     */
+    public synchronized boolean isTrialAllowed(long now) {
+        return open && openUntil <= now && trialUntil <= now;
+    }
+
+    /**
+     * Starts the trial of half-open circuit, if it is allowed. No other trial is allowed until
+     * the result is recorded or the trial timeout passes.
+     *
+     * @return true if the trial was started
+     */
+    public synchronized boolean startTrial(long now, long trialTimeout) {
+        if (!isTrialAllowed(now)) {
+            return false;
+        }
+        trialUntil = now + trialTimeout;
+        return true;
+    }
+
+    /**
+     * Records communication failure or timeout. Opens the circuit after too many consecutive failures
+     * or if the trial of half-open circuit fails.
+     *
+     * @return number of consecutive failures
+     */
+    public synchronized int recordFailure(int failureThreshold, long ejectionPeriod) {
+        consecutiveFailures++;
+        if (!open && consecutiveFailures < failureThreshold) {
+            return consecutiveFailures;
+        }
+        if (!open) {
+            LOG.warn("Ejecting {0} for {1} ms after {2} communication failures", endpoint, ejectionPeriod, consecutiveFailures);
+        }
+        open = true;
+        openUntil = System.currentTimeMillis() + ejectionPeriod;
+        trialUntil = 0;
+        return consecutiveFailures;
+    }
+
+    /**
+     * Closes the circuit after successful communication.
+     */
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        if (!open) {
+            return;
+        }
+        LOG.info("Endpoint {0} is available again", endpoint);
+        open = false;
+        openUntil = 0;
+        trialUntil = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HostCircuitBreaker(" + endpoint + ", " + (open ? "open" : "closed") + ", " + consecutiveFailures + " failures)";
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+/**
+ * Request was rejected without contacting any host, because all the hosts are ejected
+ * (their circuit breakers are open, see {@link WinRmHostSelector}).
+ */
+public class HostsUnavailableException extends ConnectorIOException {
+
+    public HostsUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental JSON parser for script output produced by ConvertTo-Json.
+ *
+ * The output is parsed as it comes, one chunk at a time, therefore it can be used as a consumer
+ * of streamed output. The chunks may split the tokens at any position. Objects are parsed to maps
+ * (in the original order of properties), arrays to lists, strings to strings, integers to Long
+ * (or BigInteger if they do not fit), other numbers to Double, true/false to Boolean and null to null.
+ * One text buffer is reused for all the tokens and property names are shared between the objects,
+ * so large result sets do not allocate and retain more than needed.
+ *
+ * The result is a list of the objects that the script produced. ConvertTo-Json produces an array for several
+ * objects and a single value for one object, therefore top-level array is flattened to the result list
+ * and top-level single value is the only item of the result list. Several top-level values may follow each other.
+ */
+public class JsonOutputParser implements ScriptOutputConsumer {
+
+    // Number of characters around the error that are included in the error message
+    private static final int SNIPPET_LENGTH = 30;
+
+    private enum State {
+        VALUE, VALUE_OR_END, KEY, KEY_OR_END, COLON, COMMA_OR_END,
+        STRING, STRING_ESCAPE, STRING_UNICODE, NUMBER, LITERAL
+    }
+
+    private final List<Object> result = new ArrayList<>();
+    private final List<Object> containers = new ArrayList<>(); // stack of open lists and maps
+    private final List<String> keys = new ArrayList<>(); // stack of property names, one for each open container
+    private final Map<String, String> knownKeys = new HashMap<>();
+    private final StringBuilder token = new StringBuilder();
+
+    private State state = State.VALUE;
+    private boolean parsingKey = false;
+    private int unicodeDigits = 0;
+    private int unicodeValue = 0;
+    private long position = 0;
+    private String chunk = "";
+    private int chunkPosition = 0;
+
+    @Override
+    public void consume(String chunk) {
+        this.chunk = chunk;
+        chunkPosition = 0;
+        while (chunkPosition < chunk.length()) {
+            if (process(chunk.charAt(chunkPosition))) {
+                chunkPosition++;
+                position++;
+            }
+        }
+    }
+
+    /**
+     * Finishes parsing and returns the parsed objects.
+     */
+    public List<Object> getResult() {
+        if (state == State.NUMBER || state == State.LITERAL) {
+            finishToken();
+        }
+        if (!containers.isEmpty() || state != State.VALUE) {
+            throw error("Incomplete JSON");
+        }
+        return result;
+    }
+
+    /**
+     * Processes the character. Returns false if the character terminated a number or a literal
+     * and it has to be processed again in the new state.
+     */
+    private boolean process(char c) {
+        switch (state) {
+            case STRING:
+                if (c == '"') {
+                    finishString();
+                } else if (c == '\\') {
+                    state = State.STRING_ESCAPE;
+                } else {
+                    token.append(c);
+                }
+                return true;
+            case STRING_ESCAPE:
+                processEscape(c);
+                return true;
+            case STRING_UNICODE:
+                int digit = Character.digit(c, 16);
+                if (digit < 0) {
+                    throw error("Invalid unicode escape");
+                }
+                unicodeValue = unicodeValue * 16 + digit;
+                if (++unicodeDigits == 4) {
+                    token.append((char) unicodeValue);
+                    state = State.STRING;
+                }
+                return true;
+            case NUMBER:
+                if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                    token.append(c);
+                    return true;
+                }
+                finishToken();
+                return false;
+            case LITERAL:
+                if (c >= 'a' && c <= 'z') {
+                    token.append(c);
+                    return true;
+                }
+                finishToken();
+                return false;
+            default:
+                break;
+        }
+        if (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\uFEFF') {
+            return true;
+        }
+        switch (state) {
+            case VALUE:
+            case VALUE_OR_END:
+                if (c == ']' && state == State.VALUE_OR_END) {
+                    closeContainer();
+                } else {
+                    startValue(c);
+                }
+                break;
+            case KEY:
+            case KEY_OR_END:
+                if (c == '}' && state == State.KEY_OR_END) {
+                    closeContainer();
+                } else if (c == '"') {
+                    parsingKey = true;
+                    startString();
+                } else {
+                    throw error("Expected property name");
+                }
+                break;
+            case COLON:
+                if (c != ':') {
+                    throw error("Expected ':'");
+                }
+                state = State.VALUE;
+                break;
+            case COMMA_OR_END:
+                Object container = containers.get(containers.size() - 1);
+                if (c == ',') {
+                    state = container instanceof Map ? State.KEY : State.VALUE;
+                } else if ((c == ']' && container instanceof List) || (c == '}' && container instanceof Map)) {
+                    closeContainer();
+                } else {
+                    throw error("Expected ',' or end of " + (container instanceof Map ? "object" : "array"));
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unexpected state " + state);
+        }
+        return true;
+    }
+
+    private void startValue(char c) {
+        if (c == '{') {
+            openContainer(new LinkedHashMap<String, Object>(), State.KEY_OR_END);
+        } else if (c == '[') {
+            // Top-level array is flattened to the result
+            openContainer(containers.isEmpty() ? result : new ArrayList<>(), State.VALUE_OR_END);
+        } else if (c == '"') {
+            parsingKey = false;
+            startString();
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            token.setLength(0);
+            token.append(c);
+            state = State.NUMBER;
+        } else if (c >= 'a' && c <= 'z') {
+            token.setLength(0);
+            token.append(c);
+            state = State.LITERAL;
+        } else {
+            throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private void startString() {
+        token.setLength(0);
+        state = State.STRING;
+    }
+
+    private void processEscape(char c) {
+        state = State.STRING;
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                token.append(c);
+                break;
+            case 'b':
+                token.append('\b');
+                break;
+            case 'f':
+                token.append('\f');
+                break;
+            case 'n':
+                token.append('\n');
+                break;
+            case 'r':
+                token.append('\r');
+                break;
+            case 't':
+                token.append('\t');
+                break;
+            case 'u':
+                unicodeDigits = 0;
+                unicodeValue = 0;
+                state = State.STRING_UNICODE;
+                break;
+            default:
+                throw error("Invalid escape sequence '\\" + c + "'");
+        }
+    }
+
+    private void finishString() {
+        if (parsingKey) {
+            String key = token.toString();
+            String knownKey = knownKeys.putIfAbsent(key, key);
+            keys.set(keys.size() - 1, knownKey == null ? key : knownKey);
+            state = State.COLON;
+        } else {
+            addValue(token.toString());
+        }
+    }
+
+    private void finishToken() {
+        String text = token.toString();
+        if (state == State.LITERAL) {
+            switch (text) {
+                case "true":
+                    addValue(Boolean.TRUE);
+                    break;
+                case "false":
+                    addValue(Boolean.FALSE);
+                    break;
+                case "null":
+                    addValue(null);
+                    break;
+                default:
+                    throw error("Unexpected literal '" + text + "'");
+            }
+            return;
+        }
+        try {
+            if (text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0) {
+                addValue(Double.valueOf(text));
+            } else if (text.length() < 19) {
+                addValue(Long.valueOf(text));
+            } else {
+                BigInteger value = new BigInteger(text);
+                addValue(value.bitLength() < 64 ? (Object) value.longValue() : value);
+            }
+        } catch (NumberFormatException e) {
+            throw error("Invalid number '" + text + "'");
+        }
+    }
+
+    private void openContainer(Object container, State nextState) {
+        containers.add(container);
+        keys.add(null);
+        state = nextState;
+    }
+
+    private void closeContainer() {
+        Object container = containers.remove(containers.size() - 1);
+        keys.remove(keys.size() - 1);
+        if (container == result) {
+            state = State.VALUE;
+        } else {
+            addValue(container);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addValue(Object value) {
+        if (containers.isEmpty()) {
+            result.add(value);
+            state = State.VALUE;
+            return;
+        }
+        Object container = containers.get(containers.size() - 1);
+        if (container instanceof Map) {
+            ((Map<String, Object>) container).put(keys.get(keys.size() - 1), value);
+        } else {
+            ((List<Object>) container).add(value);
+        }
+        state = State.COMMA_OR_END;
+    }
+
+    private ConnectorException error(String message) {
+        String snippet = chunk.substring(Math.max(0, chunkPosition - SNIPPET_LENGTH), Math.min(chunk.length(), chunkPosition + SNIPPET_LENGTH));
+        return new ConnectorException("Cannot parse JSON output of the script: " + message + " at position " + position
+                + " near: " + snippet);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.ArgumentStyle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Transfer of large script arguments to a long-running session.
+ *
+ * Arguments longer than the threshold are not passed in the script command. They are encoded
+ * (base64, optionally gzip-compressed) and sent to the session in chunks by separate commands,
+ * which accumulate them in global variables. The last chunk decodes the value. The script command
+ * then refers to the variables instead of the values, and it removes the variables when it is finished.
+ * If the transfer fails part-way, the caller removes the variables by the cleanup command.
+ *
+ * Strings and byte arrays are transferred as they are. Other values are transferred as PowerShell literals,
+ * which are evaluated in the session. Therefore the arguments have the same values as if they were passed
+ * in the script command.
+ */
+public class LargeArgumentTransfer {
+
+    private static final String VARIABLE_PREFIX = "ConnectorArgument_";
+
+    private final Map<String, Object> inlineArguments = new LinkedHashMap<>();
+    private final Map<String, String> transferredVariables = new LinkedHashMap<>(); // key: argument name
+    private final List<String> transferCommands = new ArrayList<>();
+    private long transferredLength = 0;
+
+    /**
+     * @param threshold arguments with literal longer than this are transferred
+     * @param chunkSize maximal number of encoded characters in one transfer command
+     */
+    public LargeArgumentTransfer(Map<String, Object> arguments, int threshold, int chunkSize, boolean compress) {
+        if (arguments == null) {
+            return;
+        }
+        for (Map.Entry<String, Object> argument : arguments.entrySet()) {
+            Object value = argument.getValue();
+            if (value == null || PowerShellScriptUtil.toLiteral(value).length() <= threshold) {
+                inlineArguments.put(argument.getKey(), value);
+                continue;
+            }
+            String variableName = VARIABLE_PREFIX + transferredVariables.size();
+            transferredVariables.put(argument.getKey(), variableName);
+            addTransferCommands(variableName, value, chunkSize, compress);
+        }
+    }
+
+    /**
+     * Returns true if any argument is transferred.
+     */
+    public boolean isNeeded() {
+        return !transferredVariables.isEmpty();
+    }
+
+    /**
+     * Commands that transfer the arguments to the session. They have to be executed in order,
+     * in the same session as the script command, before the script command.
+     */
+    public List<String> getTransferCommands() {
+        return transferCommands;
+    }
+
+    /**
+     * Total number of transferred (encoded) characters.
+     */
+    public long getTransferredLength() {
+        return transferredLength;
+    }
+
+    /**
+     * Returns the script command with all the arguments applied: the arguments that are not transferred
+     * as literals, the transferred arguments as references to the variables.
+     */
+    public String getCommand(String command, ArgumentStyle argumentStyle) {
+        StringBuilder sb = new StringBuilder("try {\n");
+        if (argumentStyle == ArgumentStyle.VARIABLES) {
+            for (Map.Entry<String, String> variable : transferredVariables.entrySet()) {
+                sb.append("$").append(variable.getKey()).append(" = $global:").append(variable.getValue()).append("\n");
+            }
+            sb.append(PowerShellScriptUtil.applyArguments(command, inlineArguments, argumentStyle));
+        } else {
+            sb.append(PowerShellScriptUtil.applyArguments(command, inlineArguments, argumentStyle));
+            for (Map.Entry<String, String> variable : transferredVariables.entrySet()) {
+                if (argumentStyle == ArgumentStyle.PARAMETERS_SLASH) {
+                    sb.append(" /").append(variable.getKey()).append(":");
+                } else {
+                    sb.append(" -").append(variable.getKey()).append(" ");
+                }
+                sb.append("$global:").append(variable.getValue());
+            }
+        }
+        sb.append("\n} finally {\n").append(getCleanupCommand()).append("\n}");
+        return sb.toString();
+    }
+
+    /**
+     * Returns command that removes the transferred variables from the session. The script command
+     * removes them itself, this is needed only if the transfer fails before the script command is executed.
+     */
+    public String getCleanupCommand() {
+        return "Remove-Variable -Scope Global -ErrorAction SilentlyContinue -Name " + String.join(",", transferredVariables.values());
+    }
+
+    private void addTransferCommands(String variableName, Object value, int chunkSize, boolean compress) {
+        String variable = "$global:" + variableName;
+        String decoding;
+        byte[] data;
+        if (value instanceof byte[]) {
+            data = (byte[]) value;
+            decoding = "";
+        } else if (value instanceof String || value instanceof char[]) {
+            String stringValue = value instanceof char[] ? new String((char[]) value) : (String) value;
+            data = stringValue.getBytes(StandardCharsets.UTF_8);
+            decoding = "\n" + variable + " = [System.Text.Encoding]::UTF8.GetString(" + variable + ")";
+        } else {
+            // Assignment is evaluated as a whole, so single-item arrays are not unwrapped to scalars
+            data = (variable + " = " + PowerShellScriptUtil.toLiteral(value)).getBytes(StandardCharsets.UTF_8);
+            decoding = "\nInvoke-Expression ([System.Text.Encoding]::UTF8.GetString(" + variable + "))";
+        }
+        if (compress) {
+            data = gzip(data);
+            decoding = "\n" + variable + " = & { $in = New-Object System.IO.MemoryStream(,$global:" + variableName + ")"
+                    + "; $gzip = New-Object System.IO.Compression.GZipStream($in, [System.IO.Compression.CompressionMode]::Decompress)"
+                    + "; $out = New-Object System.IO.MemoryStream; $gzip.CopyTo($out); $gzip.Dispose(); ,$out.ToArray() }"
+                    + decoding;
+        }
+        String encoded = Base64.getEncoder().encodeToString(data);
+        transferredLength += encoded.length();
+        for (int start = 0; start < encoded.length() || start == 0; start += chunkSize) {
+            StringBuilder sb = new StringBuilder();
+            if (start == 0) {
+                sb.append(variable).append(" = New-Object System.Text.StringBuilder\n");
+            }
+            // Base64 does not contain quotes, no escaping is needed
+            sb.append("[void]").append(variable).append(".Append('")
+                    .append(encoded, start, Math.min(start + chunkSize, encoded.length())).append("')");
+            if (start + chunkSize >= encoded.length()) {
+                sb.append("\n").append(variable).append(" = [System.Convert]::FromBase64String(").append(variable).append(".ToString())");
+                sb.append(decoding);
+            }
+            transferCommands.add(sb.toString());
+        }
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            // Not expected, in-memory stream
+            throw new IllegalStateException("Cannot compress argument: " + e.getMessage(), e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return "LargeArgumentTransfer(" + transferredVariables.keySet() + ", " + transferredLength + " chars in "
+                + transferCommands.size() + " chunks)";
+    }
+}
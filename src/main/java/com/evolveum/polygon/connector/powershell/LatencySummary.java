@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of one latency series, exposed as composite data by {@link ScriptStatisticsMXBean}.
+ * Durations are in milliseconds.
+ */
+public class LatencySummary {
+
+    private final long count;
+    private final double mean;
+    private final long max;
+    private final long percentile50th;
+    private final long percentile95th;
+    private final long percentile99th;
+
+    @ConstructorProperties({"count", "mean", "max", "percentile50th", "percentile95th", "percentile99th"})
+    public LatencySummary(long count, double mean, long max, long percentile50th, long percentile95th, long percentile99th) {
+        this.count = count;
+        this.mean = mean;
+        this.max = max;
+        this.percentile50th = percentile50th;
+        this.percentile95th = percentile95th;
+        this.percentile99th = percentile99th;
+    }
+
+    public static LatencySummary of(Histogram histogram) {
+        return new LatencySummary(histogram.getCount(), histogram.getMean(), histogram.getMax(),
+                histogram.getPercentile(50), histogram.getPercentile(95), histogram.getPercentile(99));
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getPercentile50th() {
+        return percentile50th;
+    }
+
+    public long getPercentile95th() {
+        return percentile95th;
+    }
+
+    public long getPercentile99th() {
+        return percentile99th;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencySummary(" + count + " operations, mean " + mean + " ms, max " + max + " ms)";
+    }
+}
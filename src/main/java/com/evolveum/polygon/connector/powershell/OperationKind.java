@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+/**
+ * Kinds of operations executed in a session. Batches do not time out, they take time proportional
+ * to their size. Each of the other kinds has its own adaptive timeout. Only the latency of plain single scripts
+ * is used as the session latency (which is compared to the baseline when sessions are recycled).
+ * Latencies of the kinds are recorded as separate series (see {@link ScriptStatistics}).
+ */
+enum OperationKind {
+    SCRIPT, JSON_SCRIPT, BATCH, STREAMED;
+
+    boolean isTimed() {
+        return this != BATCH;
+    }
+}
@@ -37,4 +37,14 @@ public class OperationLog {
         return LOG.isInfo();
     }
 
+    /**
+     * Shortens long text (script or output) before it is logged. Zero maxLength means no truncation.
+     */
+    public static String truncate(String text, int maxLength) {
+        if (text == null || maxLength <= 0 || text.length() <= maxLength) {
+            return text;
+        }
+        return text.substring(0, maxLength) + "... (" + (text.length() - maxLength) + " more chars)";
+    }
+
 }
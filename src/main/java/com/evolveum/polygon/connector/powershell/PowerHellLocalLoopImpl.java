@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.ArgumentStyle;
+import com.evolveum.powerhell.PowerHell;
+import com.evolveum.powerhell.PowerHellCommunicationException;
+import com.evolveum.powerhell.PowerHellExecutionException;
+import com.evolveum.powerhell.PowerHellSecurityException;
+import org.identityconnectors.common.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long-running shell process on the local machine. This is a local equivalent of the PowerHell
+ * WinRM loop: the process is started once and the commands are sent to its standard input.
+ *
+ * Every command is followed by a boundary line that contains a random token. The output
+ * of the command is everything that the shell writes to standard output (and standard error)
+ * before the boundary. There are two framing modes:
+ * <ul>
+ *     <li>powershell: the command is base64-encoded and executed as a script block in a single line,
+ *     so multi-line scripts work with "pwsh -Command -". Errors are detected and reported
+ *     as PowerHellExecutionException: the command fails if it throws terminating error or if it
+ *     writes any error to the error stream. Errors suppressed by the command (e.g. by -ErrorAction
+ *     SilentlyContinue) are ignored. Error stream is not part of the output.</li>
+ *     <li>plain: the command is written as it is, followed by "echo" of the boundary. This works
+ *     with any shell (sh, bash, cmd) and it is suitable for stand-in shells in tests.
+ *     Errors are not detected.</li>
+ * </ul>
+ *
+ * Commands are executed one at a time. The shell can be disconnected while a command is running
+ * (e.g. a command that timed out). In that case the shell is killed, its streams are closed
+ * and the command fails.
+ */
+public class PowerHellLocalLoopImpl implements PowerHell {
+
+    private static final Log LOG = Log.getLog(PowerHellLocalLoopImpl.class);
+
+    public static final String FRAMING_POWERSHELL = "powershell";
+    public static final String FRAMING_PLAIN = "plain";
+
+    private static final String BOUNDARY_OK = "OK";
+    private static final String BOUNDARY_ERROR = "ERROR";
+    private static final long EXIT_TIMEOUT = 5000L;
+
+    private List<String> shellCommand;
+    private String framing = FRAMING_POWERSHELL;
+    private ArgumentStyle argumentStyle = ArgumentStyle.PARAMETERS_DASH;
+    private String initScriptlet;
+
+    // Guards the streams, a command holds it until its output is read
+    private final ReentrantLock commandLock = new ReentrantLock();
+    private volatile Process process;
+    private Writer processInput;
+    private BufferedReader processOutput;
+
+    public List<String> getShellCommand() {
+        return shellCommand;
+    }
+
+    public void setShellCommand(List<String> shellCommand) {
+        this.shellCommand = shellCommand;
+    }
+
+    public String getFraming() {
+        return framing;
+    }
+
+    public void setFraming(String framing) {
+        this.framing = framing;
+    }
+
+    public ArgumentStyle getArgumentStyle() {
+        return argumentStyle;
+    }
+
+    public void setArgumentStyle(ArgumentStyle argumentStyle) {
+        this.argumentStyle = argumentStyle;
+    }
+
+    public String getInitScriptlet() {
+        return initScriptlet;
+    }
+
+    public void setInitScriptlet(String initScriptlet) {
+        this.initScriptlet = initScriptlet;
+    }
+
+    @Override
+    public String getImplementationName() {
+        return "Local loop";
+    }
+
+    @Override
+    public void connect() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+        commandLock.lock();
+        try {
+            startShell();
+        } finally {
+            commandLock.unlock();
+        }
+    }
+
+    private void startShell() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+        LOG.ok("Starting local shell {0}", shellCommand);
+        ProcessBuilder processBuilder = new ProcessBuilder(shellCommand);
+        processBuilder.redirectErrorStream(true);
+        try {
+            process = processBuilder.start();
+        } catch (IOException e) {
+            throw new PowerHellCommunicationException("Cannot start local shell "+shellCommand+": "+e.getMessage(), e);
+        }
+        processInput = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+        processOutput = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        boolean connected = false;
+        try {
+            if (initScriptlet != null) {
+                runCommand(initScriptlet, null);
+            }
+            connected = true;
+        } finally {
+            if (!connected) {
+                // Nobody is going to disconnect the shell that failed to connect
+                destroy();
+            }
+        }
+    }
+
+    boolean isConnected() {
+        return process != null;
+    }
+
+    @Override
+    public String runCommand(String command, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+        commandLock.lock();
+        try {
+            return runCommandLocked(command, arguments);
+        } finally {
+            commandLock.unlock();
+        }
+    }
+
+    private String runCommandLocked(String command, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellCommunicationException {
+        Process currentProcess = process;
+        if (currentProcess == null) {
+            throw new PowerHellCommunicationException("Local shell is not connected", null);
+        }
+        String boundary = "PSLOOP-" + UUID.randomUUID().toString();
+        String fullCommand = PowerShellScriptUtil.applyArguments(command, arguments, argumentStyle);
+        try {
+            processInput.write(frame(fullCommand, boundary));
+            processInput.flush();
+            StringBuilder output = new StringBuilder();
+            while (true) {
+                String line = processOutput.readLine();
+                if (line == null) {
+                    throw new PowerHellCommunicationException("Local shell terminated unexpectedly"+exitStatus(currentProcess), null);
+                }
+                int boundaryIndex = line.indexOf(boundary);
+                if (boundaryIndex >= 0) {
+                    // Output without trailing newline ends on the boundary line
+                    if (boundaryIndex > 0) {
+                        if (output.length() > 0) {
+                            output.append("\n");
+                        }
+                        output.append(line, 0, boundaryIndex);
+                    }
+                    String status = line.substring(boundaryIndex + boundary.length()).trim();
+                    if (BOUNDARY_ERROR.equals(status)) {
+                        throw new PowerHellExecutionException(output.toString().trim(), null);
+                    }
+                    return output.toString();
+                }
+                if (output.length() > 0) {
+                    output.append("\n");
+                }
+                output.append(line);
+            }
+        } catch (IOException e) {
+            throw new PowerHellCommunicationException("Communication with local shell failed: "+e.getMessage(), e);
+        }
+    }
+
+    private String frame(String command, String boundary) {
+        if (FRAMING_PLAIN.equals(framing)) {
+            return command + "\n" + "echo " + boundary + " " + BOUNDARY_OK + "\n";
+        }
+        String encoded = Base64.getEncoder().encodeToString(command.getBytes(StandardCharsets.UTF_8));
+        // Non-terminating errors are redirected to the output stream and separated from the output (the shell
+        // would mix them with the output on its error stream), they are reported after the output.
+        // Only the errors that reach the error stream count, errors suppressed by the script (e.g. by
+        // -ErrorAction SilentlyContinue) are still added to $Error, but they do not fail the command.
+        return "$__loopErrors = New-Object System.Collections.ArrayList;"
+                + " try { . ([ScriptBlock]::Create([Text.Encoding]::UTF8.GetString([Convert]::FromBase64String('" + encoded + "'))))"
+                + " 2>&1 | ForEach-Object { if ($_ -is [System.Management.Automation.ErrorRecord]) { [void]$__loopErrors.Add($_) } else { $_ } }"
+                + " | Out-String -Stream;"
+                + " if ($__loopErrors.Count -gt 0) { Write-Output ($__loopErrors | Out-String); Write-Output '" + boundary + " " + BOUNDARY_ERROR + "' }"
+                + " else { Write-Output '" + boundary + " " + BOUNDARY_OK + "' } }"
+                + " catch { Write-Output ($_ | Out-String); Write-Output '" + boundary + " " + BOUNDARY_ERROR + "' }\n";
+    }
+
+    private String exitStatus(Process currentProcess) {
+        try {
+            return " (exit code " + currentProcess.exitValue() + ")";
+        } catch (IllegalThreadStateException e) {
+            return "";
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        Process currentProcess = process;
+        if (currentProcess == null) {
+            return;
+        }
+        if (!commandLock.tryLock()) {
+            // Command is still running, e.g. it timed out and it may never finish. Do not wait for it.
+            // The command fails with PowerHellCommunicationException when the shell is gone
+            // (unless a process started by the command keeps the output of the shell open).
+            LOG.ok("Killing local shell {0} with running command", shellCommand);
+            process = null;
+            currentProcess.destroyForcibly();
+            closeProcessStreams(currentProcess);
+            return;
+        }
+        try {
+            if (process != null) {
+                stopShell();
+            }
+        } finally {
+            commandLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the streams of the process directly, not the readers and writers: they are locked by the running
+     * command. The streams are released even if the running command never finishes.
+     */
+    private void closeProcessStreams(Process currentProcess) {
+        try {
+            currentProcess.getOutputStream().close();
+        } catch (IOException e) {
+            LOG.ok("Error closing local shell input: {0}", e.getMessage());
+        }
+        try {
+            currentProcess.getInputStream().close();
+        } catch (IOException e) {
+            LOG.ok("Error closing local shell output: {0}", e.getMessage());
+        }
+        try {
+            currentProcess.getErrorStream().close();
+        } catch (IOException e) {
+            LOG.ok("Error closing local shell error output: {0}", e.getMessage());
+        }
+    }
+
+    private void stopShell() {
+        LOG.ok("Stopping local shell {0}", shellCommand);
+        try {
+            processInput.write("exit\n");
+            processInput.close();
+        } catch (IOException e) {
+            // The process is probably dead already
+            LOG.ok("Error closing local shell input: {0}", e.getMessage());
+        }
+        try {
+            if (!process.waitFor(EXIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Local shell {0} did not exit, destroying it", shellCommand);
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+        }
+        try {
+            processOutput.close();
+        } catch (IOException e) {
+            LOG.ok("Error closing local shell output: {0}", e.getMessage());
+        }
+        process = null;
+        processInput = null;
+        processOutput = null;
+    }
+
+    private void destroy() {
+        LOG.ok("Destroying local shell {0}", shellCommand);
+        process.destroyForcibly();
+        try {
+            processInput.close();
+        } catch (IOException e) {
+            LOG.ok("Error closing local shell input: {0}", e.getMessage());
+        }
+        try {
+            processOutput.close();
+        } catch (IOException e) {
+            LOG.ok("Error closing local shell output: {0}", e.getMessage());
+        }
+        process = null;
+        processInput = null;
+        processOutput = null;
+    }
+}
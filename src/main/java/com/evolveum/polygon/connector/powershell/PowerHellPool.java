@@ -0,0 +1,720 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pool of PowerHell sessions for a single scripting language.
+ *
+ * Sessions are checked out for the duration of one script execution and then
+ * returned. At most maxSize sessions exist at any time. Threads that cannot get
+ * a session wait in FIFO order (the lock is fair) until a session is returned
+ * or the wait times out.
+ *
+ * Sessions can be recycled according to {@link SessionRecyclePolicy}. The replacement session
+ * is created in background while the old session is still used. When the replacement is ready,
+ * it takes the place of the old session, therefore the callers do not wait for the reconnect.
+ * If the old session is checked out at that time, it is disconnected when it is returned
+ * (the pool temporarily has one more session than maxSize).
+ *
+ * Some sessions can be reserved for high-priority callers (e.g. interactive provisioning), so that they
+ * do not wait for long-running bulk scripts. Normal-priority callers never use more than maxSize
+ * minus the reserved sessions. High-priority callers can use all the sessions and they are served
+ * before the waiting normal-priority callers.
+ *
+ * Callers can ask for a session of a specific host. If the pool is full and there is no idle session
+ * of the host, the least recently used idle session of another host is replaced.
+ */
+public class PowerHellPool implements PowerHellPoolMXBean {
+
+    private static final Log LOG = Log.getLog(PowerHellPool.class);
+
+    /**
+     * Creates and connects new sessions for the pool.
+     * Implementations throw ConnId exceptions if the session cannot be connected.
+     */
+    public interface SessionFactory {
+        /**
+         * @param host host of the session, null if the factory selects the host
+         */
+        PowerHellSession createSession(String scriptLanguage, String host);
+    }
+
+    /**
+     * Checks whether a session is still usable.
+     */
+    public interface SessionValidator {
+        boolean isValid(PowerHellSession session);
+    }
+
+    private final String scriptLanguage;
+    private final SessionFactory sessionFactory;
+    private final int minSize;
+    private final int maxSize;
+    private final long maxWait;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition sessionAvailable = lock.newCondition();
+    private final Condition highPrioritySessionAvailable = lock.newCondition();
+    private final Deque<PowerHellSession> idleSessions = new ArrayDeque<>();
+    private int totalSessions = 0;
+    private boolean closed = false;
+    private SessionValidator checkoutValidator = null;
+    private SessionRecyclePolicy recyclePolicy = null;
+    private ExecutorService recycleExecutor = null;
+    private final Set<PowerHellSession> recyclingSessions = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<PowerHellSession> retiredSessions = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int highPriorityReservedSize = 0;
+    private int highPriorityWaiting = 0;
+    // Sessions checked out by normal-priority callers, including the sessions that are being created
+    private int normalPriorityActive = 0;
+    private final Set<PowerHellSession> normalPrioritySessions = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * @param maxWait maximum time (in milliseconds) to wait for a session. Zero or negative means wait forever.
+     */
+    public PowerHellPool(String scriptLanguage, SessionFactory sessionFactory, int minSize, int maxSize, long maxWait) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum session pool size must be at least 1, but it was "+maxSize);
+        }
+        this.scriptLanguage = scriptLanguage;
+        this.sessionFactory = sessionFactory;
+        this.minSize = Math.max(0, Math.min(minSize, maxSize));
+        this.maxSize = maxSize;
+        this.maxWait = maxWait;
+    }
+
+    @Override
+    public String getScriptLanguage() {
+        return scriptLanguage;
+    }
+
+    @Override
+    public int getMinSize() {
+        return minSize;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets validator that is applied to idle sessions when they are checked out.
+     * Sessions that are not valid are discarded. The validator must be cheap,
+     * it is invoked while the pool is locked.
+     */
+    public void setCheckoutValidator(SessionValidator checkoutValidator) {
+        this.checkoutValidator = checkoutValidator;
+    }
+
+    /**
+     * Sets policy for recycling of sessions. Must be set before the pool is used.
+     */
+    public void setRecyclePolicy(SessionRecyclePolicy recyclePolicy) {
+        if (recyclePolicy == null || !recyclePolicy.isEnabled()) {
+            return;
+        }
+        this.recyclePolicy = recyclePolicy;
+        this.recycleExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("powershell-connector-recycle-" + scriptLanguage));
+    }
+
+    /**
+     * Sets number of sessions that are reserved for high-priority callers. At least one session
+     * is always left for normal-priority callers. Must be set before the pool is used.
+     */
+    public void setHighPriorityReservedSize(int highPriorityReservedSize) {
+        this.highPriorityReservedSize = Math.max(0, Math.min(highPriorityReservedSize, maxSize - 1));
+    }
+
+    @Override
+    public int getHighPriorityReservedSize() {
+        return highPriorityReservedSize;
+    }
+
+    /**
+     * Takes a session from the pool for a normal-priority caller, see {@link #checkout(boolean)}.
+     */
+    public PowerHellSession checkout() {
+        return checkout(false);
+    }
+
+    /**
+     * Takes a session of any host from the pool, see {@link #checkout(boolean, String)}.
+     */
+    public PowerHellSession checkout(boolean highPriority) {
+        return checkout(highPriority, null);
+    }
+
+    /**
+     * Takes a session from the pool, creating a new one if the pool is not yet full.
+     * The session must be given back by calling {@link #checkin(PowerHellSession)}
+     * or {@link #invalidate(PowerHellSession)}.
+     *
+     * @param highPriority if set to true then the reserved sessions can be used and the caller
+     *                     is served before the waiting normal-priority callers
+     * @param host host of the session, null if any host can be used
+     */
+    public PowerHellSession checkout(boolean highPriority, String host) {
+        long deadline = maxWait > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait) : 0;
+        List<PowerHellSession> discarded = new ArrayList<>();
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) {
+                    throw new ConnectorException("Session pool for "+scriptLanguage+" is closed");
+                }
+                if (highPriority || isNormalPriorityAllowed()) {
+                    PowerHellSession session = pollIdle(host);
+                    if (session != null) {
+                        if (checkoutValidator == null || checkoutValidator.isValid(session)) {
+                            if (!highPriority) {
+                                normalPriorityActive++;
+                                normalPrioritySessions.add(session);
+                            }
+                            signalIfAvailable();
+                            return session;
+                        }
+                        totalSessions--;
+                        forget(session);
+                        discarded.add(session);
+                        continue;
+                    }
+                    if (totalSessions >= maxSize && host != null && !idleSessions.isEmpty()) {
+                        // Only sessions of other hosts are idle, make room for the session of the host
+                        PowerHellSession replaced = idleSessions.pollLast();
+                        totalSessions--;
+                        forget(replaced);
+                        discarded.add(replaced);
+                    }
+                    if (totalSessions < maxSize) {
+                        totalSessions++;
+                        if (!highPriority) {
+                            normalPriorityActive++;
+                        }
+                        signalIfAvailable();
+                        break;
+                    }
+                }
+                if (highPriority) {
+                    highPriorityWaiting++;
+                    try {
+                        await(highPrioritySessionAvailable, deadline);
+                    } finally {
+                        highPriorityWaiting--;
+                        if (highPriorityWaiting == 0) {
+                            // Normal-priority callers may have been waiting only for this caller
+                            signalIfAvailable();
+                        }
+                    }
+                } else {
+                    await(sessionAvailable, deadline);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationTimeoutException("Interrupted while waiting for "+scriptLanguage+" session", e);
+        } finally {
+            lock.unlock();
+            for (PowerHellSession session : discarded) {
+                LOG.ok("Discarding {0}", session);
+                session.disconnect();
+            }
+        }
+        // Slot reserved, create the session outside of the lock. Connecting may take a long time.
+        PowerHellSession session;
+        try {
+            session = createReservedSession(host);
+        } catch (RuntimeException e) {
+            if (!highPriority) {
+                lock.lock();
+                try {
+                    normalPriorityActive--;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            throw e;
+        }
+        if (!highPriority) {
+            lock.lock();
+            try {
+                normalPrioritySessions.add(session);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Takes the most recently used idle session of the host (of any host if the host is null).
+     * Must be called under the lock.
+     */
+    private PowerHellSession pollIdle(String host) {
+        if (host == null) {
+            return idleSessions.pollFirst();
+        }
+        Iterator<PowerHellSession> iterator = idleSessions.iterator();
+        while (iterator.hasNext()) {
+            PowerHellSession session = iterator.next();
+            if (host.equals(session.getHost())) {
+                iterator.remove();
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Normal-priority callers cannot use the reserved sessions and they give way to the waiting high-priority callers.
+     * Must be called under the lock.
+     */
+    private boolean isNormalPriorityAllowed() {
+        return highPriorityWaiting == 0 && normalPriorityActive < maxSize - highPriorityReservedSize;
+    }
+
+    private void await(Condition condition, long deadline) throws InterruptedException {
+        if (maxWait > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new OperationTimeoutException("Timed out waiting for "+scriptLanguage+" session ("+maxSize+" sessions in use"
+                        + (highPriorityReservedSize > 0 ? ", "+highPriorityReservedSize+" reserved for high priority)" : ")"));
+            }
+            condition.awaitNanos(remaining);
+        } else {
+            condition.await();
+        }
+    }
+
+    /**
+     * Wakes up one waiting caller, high-priority callers first. Must be called under the lock.
+     */
+    private void signalAvailable() {
+        if (highPriorityWaiting > 0) {
+            highPrioritySessionAvailable.signal();
+        } else {
+            sessionAvailable.signal();
+        }
+    }
+
+    /**
+     * Passes the signal to another waiting caller if there are still sessions available,
+     * e.g. when several sessions were returned at once. Must be called under the lock.
+     */
+    private void signalIfAvailable() {
+        if (!idleSessions.isEmpty() || totalSessions < maxSize) {
+            signalAvailable();
+        }
+    }
+
+    /**
+     * Returns healthy session to the pool.
+     */
+    public void checkin(PowerHellSession session) {
+        boolean disconnect = false;
+        String recycleReason = null;
+        lock.lock();
+        try {
+            releaseNormalPriority(session);
+            if (closed) {
+                totalSessions--;
+                forget(session);
+                disconnect = true;
+            } else if (retiredSessions.remove(session)) {
+                // Replaced while it was checked out
+                disconnect = true;
+                totalSessions--;
+            } else {
+                idleSessions.addFirst(session);
+                if (recyclePolicy != null && !recyclingSessions.contains(session)) {
+                    recycleReason = recyclePolicy.getRecycleReason(session);
+                    if (recycleReason != null) {
+                        recyclingSessions.add(session);
+                    }
+                }
+            }
+            signalAvailable();
+        } finally {
+            lock.unlock();
+        }
+        if (disconnect) {
+            // Disconnecting may take a long time, it must not block the pool
+            LOG.ok("Disconnecting returned {0}", session);
+            session.disconnect();
+        }
+        if (recycleReason != null) {
+            LOG.info("Recycling {0}: {1}", session, recycleReason);
+            try {
+                recycleExecutor.execute(() -> replace(session));
+            } catch (RejectedExecutionException e) {
+                // Pool is being closed
+                forgetRecycling(session);
+            }
+        }
+    }
+
+    /**
+     * Creates replacement of the session and puts it in place of the session.
+     * The old session is still used while the replacement is being created.
+     */
+    private void replace(PowerHellSession oldSession) {
+        PowerHellSession replacement;
+        try {
+            replacement = sessionFactory.createSession(scriptLanguage, null);
+        } catch (RuntimeException e) {
+            LOG.warn("Cannot create replacement of {0}, will try again later: {1}", oldSession, e.getMessage());
+            forgetRecycling(oldSession);
+            return;
+        }
+        LOG.ok("Created {0} as replacement of {1}", replacement, oldSession);
+        PowerHellSession toDisconnect;
+        lock.lock();
+        try {
+            if (closed) {
+                toDisconnect = replacement;
+            } else if (!recyclingSessions.remove(oldSession)) {
+                // Old session was discarded meanwhile. Use the replacement as an ordinary new session.
+                if (totalSessions < maxSize) {
+                    totalSessions++;
+                    idleSessions.addFirst(replacement);
+                    toDisconnect = null;
+                } else {
+                    toDisconnect = replacement;
+                }
+            } else if (idleSessions.remove(oldSession)) {
+                idleSessions.addFirst(replacement);
+                toDisconnect = oldSession;
+            } else {
+                // Old session is checked out, it will be disconnected when returned
+                retiredSessions.add(oldSession);
+                totalSessions++;
+                idleSessions.addFirst(replacement);
+                toDisconnect = null;
+            }
+            signalAvailable();
+        } finally {
+            lock.unlock();
+        }
+        if (toDisconnect != null) {
+            LOG.ok("Disconnecting {0}", toDisconnect);
+            toDisconnect.disconnect();
+        }
+    }
+
+    private void forgetRecycling(PowerHellSession session) {
+        lock.lock();
+        try {
+            recyclingSessions.remove(session);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the session from the normal-priority limit, if it was checked out by normal-priority caller.
+     * Must be called under the lock.
+     */
+    private void releaseNormalPriority(PowerHellSession session) {
+        if (normalPrioritySessions.remove(session)) {
+            normalPriorityActive--;
+        }
+    }
+
+    /**
+     * Forgets recycling state of a session that is removed from the pool. Must be called under the lock.
+     */
+    private void forget(PowerHellSession session) {
+        recyclingSessions.remove(session);
+        retiredSessions.remove(session);
+    }
+
+    /**
+     * Removes broken session from the pool. The session is disconnected.
+     */
+    public void invalidate(PowerHellSession session) {
+        LOG.ok("Invalidating {0}", session);
+        discard(session);
+        session.disconnect();
+    }
+
+    /**
+     * Removes checked-out session from the pool without disconnecting it. The slot of the session
+     * is free for another session immediately. This is used for sessions that are still busy
+     * (e.g. with a script that timed out), the caller disconnects the session when it is no longer used.
+     */
+    public void discard(PowerHellSession session) {
+        lock.lock();
+        try {
+            totalSessions--;
+            releaseNormalPriority(session);
+            forget(session);
+            signalAvailable();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Creates sessions until the pool has at least minSize sessions.
+     */
+    public void fill() {
+        fill(minSize);
+    }
+
+    /**
+     * Creates sessions until the pool has at least the specified number of sessions (limited by maxSize).
+     */
+    public void fill(int size) {
+        int targetSize = Math.min(size, maxSize);
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || totalSessions >= targetSize) {
+                    return;
+                }
+                totalSessions++;
+            } finally {
+                lock.unlock();
+            }
+            checkin(createReservedSession(null));
+        }
+    }
+
+    private PowerHellSession createReservedSession(String host) {
+        try {
+            PowerHellSession session = sessionFactory.createSession(scriptLanguage, host);
+            LOG.ok("Created {0}", session);
+            return session;
+        } catch (RuntimeException e) {
+            lock.lock();
+            try {
+                totalSessions--;
+                signalAvailable();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Validates idle sessions that were not verified for at least the specified time.
+     * Sessions are checked out one at a time, so validation does not block the pool.
+     * Invalid sessions are removed from the pool.
+     *
+     * @return number of invalidated sessions
+     */
+    public int validateIdle(SessionValidator validator, long verifiedAge) {
+        int invalidated = 0;
+        int toValidate = getIdleSessions();
+        long threshold = System.currentTimeMillis() - verifiedAge;
+        for (int i = 0; i < toValidate; i++) {
+            PowerHellSession session;
+            lock.lock();
+            try {
+                // Least recently used sessions are at the end
+                session = idleSessions.pollLast();
+            } finally {
+                lock.unlock();
+            }
+            if (session == null) {
+                break;
+            }
+            if (session.getLastVerifiedTimestamp() > threshold) {
+                checkinLast(session);
+                continue;
+            }
+            boolean valid;
+            try {
+                valid = validator.isValid(session);
+            } catch (RuntimeException e) {
+                LOG.warn("Validation of {0} failed: {1}", session, e.getMessage());
+                valid = false;
+            }
+            if (valid) {
+                checkinLast(session);
+            } else {
+                invalidate(session);
+                invalidated++;
+            }
+        }
+        return invalidated;
+    }
+
+    /**
+     * Disconnects idle sessions that were not used for the specified time.
+     * The pool keeps at least minSize sessions.
+     *
+     * @return number of disconnected sessions
+     */
+    public int reapIdle(long idleTimeout) {
+        long threshold = System.currentTimeMillis() - idleTimeout;
+        List<PowerHellSession> toDisconnect = new ArrayList<>();
+        lock.lock();
+        try {
+            // Least recently used sessions are at the end
+            while (totalSessions > minSize) {
+                PowerHellSession session = idleSessions.peekLast();
+                if (session == null || session.getLastUsedTimestamp() > threshold) {
+                    break;
+                }
+                idleSessions.pollLast();
+                totalSessions--;
+                forget(session);
+                toDisconnect.add(session);
+            }
+            if (!toDisconnect.isEmpty()) {
+                signalAvailable();
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (PowerHellSession session : toDisconnect) {
+            LOG.ok("Disconnecting idle {0}", session);
+            session.disconnect();
+        }
+        return toDisconnect.size();
+    }
+
+    /**
+     * Returns validated session to the end of the idle sessions, so that it stays the least recently used one.
+     * The session is disconnected if the pool was closed or the session was replaced while it was validated.
+     */
+    private void checkinLast(PowerHellSession session) {
+        boolean disconnect = false;
+        lock.lock();
+        try {
+            if (closed) {
+                totalSessions--;
+                forget(session);
+                disconnect = true;
+            } else if (retiredSessions.remove(session)) {
+                // Replaced while it was validated
+                totalSessions--;
+                disconnect = true;
+            } else {
+                idleSessions.addLast(session);
+            }
+            signalAvailable();
+        } finally {
+            lock.unlock();
+        }
+        if (disconnect) {
+            LOG.ok("Disconnecting validated {0}", session);
+            session.disconnect();
+        }
+    }
+
+    /**
+     * Disconnects all idle sessions. Sessions that are checked out are disconnected when returned.
+     */
+    public void close() {
+        List<PowerHellSession> toDisconnect;
+        lock.lock();
+        try {
+            closed = true;
+            toDisconnect = new ArrayList<>(idleSessions);
+            totalSessions -= idleSessions.size();
+            idleSessions.clear();
+            sessionAvailable.signalAll();
+            highPrioritySessionAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (recycleExecutor != null) {
+            // Replacement that is being created is disconnected as soon as it is ready
+            recycleExecutor.shutdownNow();
+        }
+        for (PowerHellSession session : toDisconnect) {
+            session.disconnect();
+        }
+    }
+
+    @Override
+    public int getTotalSessions() {
+        lock.lock();
+        try {
+            return totalSessions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getIdleSessions() {
+        lock.lock();
+        try {
+            return idleSessions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getActiveSessions() {
+        lock.lock();
+        try {
+            return totalSessions - idleSessions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getWaitingThreads() {
+        lock.lock();
+        try {
+            return lock.getWaitQueueLength(sessionAvailable) + lock.getWaitQueueLength(highPrioritySessionAvailable);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getHighPriorityWaitingThreads() {
+        lock.lock();
+        try {
+            return highPriorityWaiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PowerHellPool(" + scriptLanguage + ", " + getTotalSessions() + "/" + maxSize + ")";
+    }
+}
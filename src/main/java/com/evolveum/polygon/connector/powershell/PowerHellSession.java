@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.PowerHell;
+import com.evolveum.powerhell.PowerHellCommunicationException;
+import com.evolveum.powerhell.PowerHellExecutionException;
+import com.evolveum.powerhell.PowerHellSecurityException;
+import org.apache.cxf.Bus;
+import org.apache.cxf.BusFactory;
+
+import java.util.Map;
+
+/**
+ * Connected PowerHell instance together with the bookkeeping data
+ * that the session pool needs.
+ *
+ * All the PowerHell operations are executed with the CXF bus of the resource
+ * set as the thread default bus. The bus is the thread default only while the operation runs,
+ * the previous default bus is restored afterwards. PowerHell does not allow to pass the bus explicitly,
+ * therefore this relies on the WinRM client (winrm4j) using the thread default bus when it creates
+ * its CXF client.
+ *
+ * The WinRM clients and CXF services themselves are not cached per endpoint. They are created inside PowerHell,
+ * which does not allow to supply them, so reusing them is out of reach of the connector. What the connector
+ * reuses are the sessions (PowerHell instances, see {@link PowerHellPool}) and the bus of the resource.
+ */
+public class PowerHellSession {
+
+    // Number of commands used to measure baseline latency of a fresh session
+    private static final int BASELINE_COMMANDS = 10;
+    // Weight of the last command in the average latency
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    private final String scriptLanguage;
+    private final String host;
+    private final PowerHell powerHell;
+    private final Bus bus;
+    private final long createTimestamp;
+    private long lastUsedTimestamp;
+    private long commandCount = 0;
+    private long lastVerifiedTimestamp;
+    private long baselineLatencySum = 0;
+    private int baselineLatencyCount = 0;
+    private double averageLatency = 0;
+
+    private Runnable disconnectListener;
+    private final ScriptFunctionRegistry functionRegistry = new ScriptFunctionRegistry();
+
+    /**
+     * @param bus CXF bus used by the WinRM clients, null for local execution
+     */
+    public PowerHellSession(String scriptLanguage, String host, PowerHell powerHell, Bus bus) {
+        this.scriptLanguage = scriptLanguage;
+        this.host = host;
+        this.powerHell = powerHell;
+        this.bus = bus;
+        this.createTimestamp = System.currentTimeMillis();
+        this.lastUsedTimestamp = createTimestamp;
+        this.lastVerifiedTimestamp = createTimestamp;
+    }
+
+    public String getScriptLanguage() {
+        return scriptLanguage;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Sets listener that is invoked after the session is disconnected.
+     */
+    public void setDisconnectListener(Runnable disconnectListener) {
+        this.disconnectListener = disconnectListener;
+    }
+
+    /**
+     * Functions defined in this session.
+     */
+    public ScriptFunctionRegistry getFunctionRegistry() {
+        return functionRegistry;
+    }
+
+    public PowerHell getPowerHell() {
+        return powerHell;
+    }
+
+    public long getCreateTimestamp() {
+        return createTimestamp;
+    }
+
+    public synchronized long getLastUsedTimestamp() {
+        return lastUsedTimestamp;
+    }
+
+    public synchronized long getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * Records that a command was executed in this session.
+     */
+    public synchronized void recordCommand() {
+        commandCount++;
+        lastUsedTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Records duration of successful command execution.
+     */
+    public synchronized void recordLatency(long latency) {
+        if (baselineLatencyCount < BASELINE_COMMANDS) {
+            baselineLatencySum += latency;
+            baselineLatencyCount++;
+            averageLatency = (double) baselineLatencySum / baselineLatencyCount;
+        } else {
+            averageLatency = averageLatency * (1 - LATENCY_SMOOTHING) + latency * LATENCY_SMOOTHING;
+        }
+    }
+
+    /**
+     * Returns average latency of the first commands executed in the session,
+     * or zero if not enough commands were executed yet.
+     */
+    public synchronized double getBaselineLatency() {
+        if (baselineLatencyCount < BASELINE_COMMANDS) {
+            return 0;
+        }
+        return (double) baselineLatencySum / baselineLatencyCount;
+    }
+
+    /**
+     * Returns exponential moving average of command latency.
+     */
+    public synchronized double getAverageLatency() {
+        return averageLatency;
+    }
+
+    public synchronized long getLastVerifiedTimestamp() {
+        return lastVerifiedTimestamp;
+    }
+
+    /**
+     * Records that the session was recently proven to work, e.g. by successful command execution.
+     */
+    public synchronized void markVerified() {
+        lastVerifiedTimestamp = System.currentTimeMillis();
+    }
+
+    public void connect() throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+        Bus previousBus = switchBus();
+        try {
+            powerHell.connect();
+        } finally {
+            restoreBus(previousBus);
+        }
+    }
+
+    public String runCommand(String command, Map<String, Object> arguments) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+        Bus previousBus = switchBus();
+        try {
+            return powerHell.runCommand(command, arguments);
+        } finally {
+            restoreBus(previousBus);
+        }
+    }
+
+    public void disconnect() {
+        Bus previousBus = switchBus();
+        try {
+            powerHell.disconnect();
+        } finally {
+            restoreBus(previousBus);
+            if (disconnectListener != null) {
+                disconnectListener.run();
+            }
+        }
+    }
+
+    /**
+     * Forcibly closes the session while a command is running, so that the command fails.
+     * Only local shells can be closed this way. WinRM commands cannot be interrupted,
+     * the session is left to finish the command.
+     *
+     * @return true if the session was closed
+     */
+    public boolean abort() {
+        if (!(powerHell instanceof PowerHellLocalLoopImpl)) {
+            return false;
+        }
+        powerHell.disconnect();
+        return true;
+    }
+
+    private Bus switchBus() {
+        if (bus == null) {
+            return null;
+        }
+        return BusFactory.getAndSetThreadDefaultBus(bus);
+    }
+
+    private void restoreBus(Bus previousBus) {
+        if (bus != null) {
+            BusFactory.setThreadDefaultBus(previousBus);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PowerHellSession(" + scriptLanguage + ", " + host + ", " + powerHell.getImplementationName() + ", " + commandCount + " commands)";
+    }
+}
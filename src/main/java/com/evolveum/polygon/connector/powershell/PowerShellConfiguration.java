@@ -22,6 +22,9 @@ import org.identityconnectors.framework.common.exceptions.ConfigurationException
 import org.identityconnectors.framework.spi.AbstractConfiguration;
 import org.identityconnectors.framework.spi.ConfigurationProperty;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * PowerShell connector configuration.
  *
@@ -66,11 +69,38 @@ public class PowerShellConfiguration extends AbstractConfiguration {
     public static final String SCRIPT_EXECUTION_MECHANISM_LOCAL = "local";
     // The "winrs" and "invoke-command" mechanisms may come later.
 
+    /**
+     * Command (and its arguments) that starts the long-running local shell for "powerhell" and "exchange"
+     * languages when the local execution mechanism is used.
+     * Default value: "pwsh", "-NoLogo", "-NoProfile", "-NonInteractive", "-Command", "-"
+     */
+    private String[] localShellCommand = null;
+
+    /**
+     * Framing of the commands sent to the long-running local shell.
+     * Possible values: "powershell" (PowerShell shells, detects errors), "plain" (any shell, e.g. stand-in shells for testing).
+     * Default value: "powershell"
+     */
+    private String localShellFraming = PowerHellLocalLoopImpl.FRAMING_POWERSHELL;
+
     /**
      * Hostname of the WinRM server. If not set the ordinary host will be used.
      */
     private String winRmHost = null;
 
+    /**
+     * Hostnames of several WinRM servers. If set, the scripts are spread over all these hosts
+     * and the winRmHost property is ignored. Hosts that fail are not used for hostEjectionPeriod.
+     */
+    private String[] winRmHosts = null;
+
+    /**
+     * Time (in milliseconds) for which a host is not used after communication failure.
+     * After this time the host is probed and it is used again if it responds.
+     * Default value: 30000
+     */
+    private long hostEjectionPeriod = 30000L;
+
     /**
      * Username used for WinRM authentication. If not set the bind DN will be used.
      */
@@ -120,6 +150,360 @@ public class PowerShellConfiguration extends AbstractConfiguration {
 
     private boolean disableCertificateChecks = false;
 
+    /**
+     * Maximal number of persistent HTTP connections to the WinRM service.
+     * The limit is set on the CXF bus of the resource, which is used by the WinRM client
+     * if the client takes the thread default bus (see PowerHellSession).
+     * Zero means default value of the HTTP client.
+     * Default value: 0
+     */
+    private int winRmMaxConnections = 0;
+
+    /**
+     * Time (in milliseconds) after which idle persistent HTTP connections to the WinRM service are closed.
+     * Zero means default value of the HTTP client.
+     * Default value: 0
+     */
+    private long winRmConnectionIdleTimeout = 0L;
+
+    /**
+     * Minimal number of sessions that are kept in the session pool for each script language.
+     * Default value: 0
+     */
+    private int sessionPoolMinSize = 0;
+
+    /**
+     * Maximal number of concurrent sessions for each script language.
+     * Default value: 1
+     */
+    private int sessionPoolMaxSize = 1;
+
+    /**
+     * Maximal time (in milliseconds) to wait for a free session. Zero means wait forever.
+     * Default value: 60000
+     */
+    private long sessionPoolMaxWait = 60000L;
+
+    /**
+     * Script languages for which the sessions are created and connected in the background
+     * when the connector is initialized. Scripts that need the session wait for the warm-up
+     * to finish. If not set, the sessions are created when first needed.
+     */
+    private String[] warmUpScriptLanguages = null;
+
+    /**
+     * Maximal number of scripts that are sent to the resource in a single request
+     * when a script batch is executed. Larger batches are split. Batches of the powershell language
+     * (which are passed on the command line) are also split so that they fit into the command line length limit.
+     * Default value: 100
+     */
+    private int scriptBatchSize = 100;
+
+    /**
+     * Size of the chunks (in bytes) used to transfer output of streamed scripts.
+     * Output that fits in one chunk is transferred without a temporary file on the resource.
+     * Default value: 262144
+     */
+    private int scriptOutputChunkSize = 262144;
+
+    /**
+     * Maximal length (in characters) of script output that is kept in memory by the spilling output consumer
+     * (see PowerShellConnector.createSpillingOutputConsumer()). Longer output is written to a local temporary file.
+     * If set to a positive value then the output of PowerShell-based scripts executed by runScriptOnResource
+     * is transferred in chunks (see scriptOutputChunkSize) and consumed by the spilling output consumer:
+     * the script returns a String if the output fits under the threshold, otherwise it returns the File
+     * with the output. The File is a local path, therefore the threshold must be used only if the connector
+     * runs in the same JVM as its caller (not on a remote connector server). The caller should delete the file
+     * when it is processed, files that are left are deleted when the connector instance is disposed.
+     * Zero means that the output is always returned as a String.
+     * Default value: 0
+     */
+    private int scriptOutputSpillThreshold = 0;
+
+    /**
+     * Directory for the temporary files with script output. If not set, the default temporary directory is used.
+     */
+    private String scriptOutputSpillDirectory = null;
+
+    /**
+     * Idle sessions that were not used nor verified for this time (in milliseconds) are probed
+     * with a lightweight command by the background maintenance, sessions that fail the probe are discarded.
+     * Zero disables the probes (except for the sessions with sessionKeepAliveIntervals).
+     * Probes do not count as use of the session, so they do not prevent sessionIdleTimeouts.
+     * Default value: 0
+     */
+    private long checkAliveInterval = 0L;
+
+    /**
+     * Maximal number of asynchronously submitted scripts that are executed on a single host at the same time.
+     * The limit is applied to the host that is selected for the script (identified by its endpoint URL,
+     * including scheme and port) and it is shared by all connector instances that use the host.
+     * Default value: 4
+     */
+    private int asyncMaxInFlightScriptsPerHost = 4;
+
+    /**
+     * Maximal number of asynchronously submitted scripts that wait for execution on the configured hosts.
+     * Scripts submitted above this limit fail immediately.
+     * Default value: 1000
+     */
+    private int asyncQueueCapacity = 1000;
+
+    /**
+     * Maximal number of cached outputs of read-only scripts. Scripts are cached only if they are
+     * marked as cacheable, either by "scriptCacheable" operation option or by "#cacheable" first line
+     * of the script. Zero disables the cache. The cache is shared by all the connector instances
+     * with the same configuration.
+     * Default value: 0
+     */
+    private int scriptResultCacheSize = 0;
+
+    /**
+     * Time (in milliseconds) for which the cached script outputs are valid.
+     * Default value: 60000
+     */
+    private long scriptResultCacheTtl = 60000L;
+
+    /**
+     * If set to true then scripts executed in long-running sessions ("powerhell", "exchange")
+     * are defined as PowerShell functions in the session when they are executed for the first time.
+     * Subsequent executions of the same script just invoke the function with the arguments.
+     * Only scripts longer than scriptFunctionMinLength are registered. Scripts with arguments
+     * are registered only if the "variables" argument style is used.
+     * Default value: false
+     */
+    private boolean scriptFunctionRegistryEnabled = false;
+
+    /**
+     * Minimal length of scripts that are registered as functions.
+     * Default value: 256
+     */
+    private int scriptFunctionMinLength = 256;
+
+    /**
+     * If set to true then the connector collects script execution statistics (latency, connect time,
+     * output size, successes, failures and timeouts) per host and script language, and it exposes them
+     * together with session pool gauges as MBeans in the platform MBean server. The MBeans of a connector
+     * instance are unregistered when the instance is disposed.
+     * Default value: false
+     */
+    private boolean metricsEnabled = false;
+
+    /**
+     * If set to true then the operation log records are written by a background thread.
+     * The threads that execute the scripts only place the records in a bounded queue.
+     * Default value: false
+     */
+    private boolean auditLogAsync = false;
+
+    /**
+     * Capacity of the operation log queue (number of records).
+     * The queue is shared by all the connector instances, the capacity is applied
+     * when the queue is created by the first connector instance.
+     * Default value: 10000
+     */
+    private int auditLogQueueCapacity = 10000;
+
+    /**
+     * If set to true then script execution waits for free space in the operation log queue when the queue is full.
+     * If set to false then the log records are dropped when the queue is full.
+     * Default value: false
+     */
+    private boolean auditLogBlockWhenFull = false;
+
+    /**
+     * Maximal length of script text and script output in the logs. Longer texts are truncated.
+     * Zero means that the texts are not truncated.
+     * Default value: 0
+     */
+    private int auditLogMaxLength = 0;
+
+    /**
+     * If set to true then the connector instances with the same configuration share the sessions.
+     * Sessions are leased from a process-wide registry instead of each connector instance
+     * having its own session pools. The total number of sessions then follows the number
+     * of concurrently executed scripts, not the number of pooled connector instances.
+     * Default value: false
+     */
+    private boolean sessionSharingEnabled = false;
+
+    /**
+     * Sessions are replaced by fresh sessions after they execute this number of commands.
+     * The replacement session is connected in background, script execution does not wait for it.
+     * Zero means no limit.
+     * Default value: 0
+     */
+    private long sessionRecycleMaxCommands = 0L;
+
+    /**
+     * Sessions are replaced by fresh sessions when they are older than this (in milliseconds).
+     * The replacement session is connected in background, script execution does not wait for it.
+     * Zero means no limit.
+     * Default value: 0
+     */
+    private long sessionRecycleMaxAge = 0L;
+
+    /**
+     * Sessions are replaced by fresh sessions when their average command latency is this number of times
+     * higher than the latency of the first commands executed in the session. E.g. value 3 means that
+     * the session is recycled when the commands are three times slower than they were when the session was fresh.
+     * Zero means that latency is not considered.
+     * Default value: 0
+     */
+    private double sessionRecycleLatencyFactor = 0;
+
+    /**
+     * Keepalive intervals for idle sessions, in the form "language=milliseconds", e.g. "exchange=300000".
+     * Idle sessions of the language that were not used or verified for the interval are pinged
+     * with a cheap command, so the server does not close them because of its idle timeout.
+     * Applies to long-running sessions only ("powerhell", "exchange").
+     */
+    private String[] sessionKeepAliveIntervals = null;
+
+    /**
+     * Idle timeouts of sessions, in the form "language=milliseconds", e.g. "powershell=600000".
+     * Sessions of the language that were not used for the timeout are disconnected to free
+     * the resources on the server. Session pool minimal size is still maintained.
+     */
+    private String[] sessionIdleTimeouts = null;
+
+    /**
+     * Interval (in milliseconds) of the background maintenance of sessions (keepalive, idle timeouts,
+     * probes of idle sessions and of ejected hosts). The maintenance runs only if any of these is needed,
+     * i.e. if checkAliveInterval, sessionKeepAliveIntervals or sessionIdleTimeouts are set, or if there
+     * are several WinRM hosts.
+     * Default value: 30000
+     */
+    private long sessionMaintenanceInterval = 30000L;
+
+    /**
+     * Number of retries of idempotent scripts that fail because of communication failure.
+     * The script is retried in a fresh session. Scripts are idempotent if they are marked
+     * by scriptIdempotent operation option or by "#idempotent" first line. Cacheable scripts
+     * are considered idempotent as well.
+     * Default value: 0 (no retries)
+     */
+    private int scriptRetryCount = 0;
+
+    /**
+     * Delay (in milliseconds) before the first retry. The delay is doubled for each subsequent retry,
+     * up to scriptRetryMaxDelay. Random jitter of up to half of the delay is applied.
+     * Default value: 1000
+     */
+    private long scriptRetryInitialDelay = 1000L;
+
+    /**
+     * Maximal delay (in milliseconds) between retries.
+     * Default value: 30000
+     */
+    private long scriptRetryMaxDelay = 30000L;
+
+    /**
+     * Number of consecutive communication failures or timeouts that open the circuit breaker of a host.
+     * The host is not used for hostEjectionPeriod, then one trial request is allowed to find out whether
+     * the host has recovered. Requests fail fast while all the hosts are ejected.
+     * A single host is never ejected, there is no other host to fail over to.
+     * Default value: 3
+     */
+    private int circuitBreakerFailureThreshold = 3;
+
+    /**
+     * Maximal script execution timeouts, in the form "language=milliseconds", e.g. "exchange=120000".
+     * The actual timeout adapts to the observed latency of the scripts of the language:
+     * it is the 99th percentile of recent latencies multiplied by scriptTimeoutLatencyFactor,
+     * but at least scriptTimeoutMin and at most the value specified here.
+     * Script that times out fails with OperationTimeoutException and its session is discarded.
+     * Scripts of languages that are not specified here do not time out.
+     * The timeouts apply to single scripts. Scripts with JSON output and scripts with streamed output
+     * have their own adaptive timeouts. Script batches do not time out, as their latency depends on their size.
+     */
+    private String[] scriptTimeouts = null;
+
+    /**
+     * Minimal script execution timeout (in milliseconds), see scriptTimeouts.
+     * Default value: 5000
+     */
+    private long scriptTimeoutMin = 5000L;
+
+    /**
+     * Multiple of the 99th percentile of the latency that is used as the script execution timeout, see scriptTimeouts.
+     * Default value: 5
+     */
+    private double scriptTimeoutLatencyFactor = 5;
+
+    /**
+     * If set to true then the connection test does not disconnect existing sessions.
+     * Connectivity and credentials are verified by separate short-lived probe sessions
+     * and the existing (warm) sessions stay in service. Idle long-running sessions are probed,
+     * only the sessions that fail the probe are discarded.
+     * If set to false then all sessions are disconnected and WinRM state is reset before the test.
+     * Shared sessions (sessionSharingEnabled) are used by other connector instances, they are never
+     * disconnected by the test, it always behaves as if this property was set to true.
+     * Default value: false
+     */
+    private boolean testKeepsSessions = false;
+
+    /**
+     * Script arguments with PowerShell representation longer than this (in characters) are transferred
+     * to long-running sessions ("powerhell", "exchange") in chunks, before the script is executed.
+     * The arguments are bound as variables in the session, therefore they do not hit WinRM
+     * command and envelope size limits. Zero means that all arguments are passed in the script command.
+     * Default value: 0
+     */
+    private int largeArgumentThreshold = 0;
+
+    /**
+     * Maximal size (in characters) of one chunk of transferred large argument, see largeArgumentThreshold.
+     * Default value: 65536
+     */
+    private int largeArgumentChunkSize = 65536;
+
+    /**
+     * If set to true then large arguments are compressed (gzip) before they are transferred.
+     * Default value: true
+     */
+    private boolean largeArgumentCompressionEnabled = true;
+
+    /**
+     * Maximal depth of nested objects in structured (JSON) script output. Deeper objects are converted to strings.
+     * Default value: 5
+     */
+    private int scriptOutputJsonDepth = 5;
+
+    /**
+     * Number of sessions (per script language) that are reserved for high-priority scripts,
+     * e.g. interactive provisioning. Normal-priority scripts, e.g. bulk reconciliation scripts,
+     * never use more than sessionPoolMaxSize minus this number of sessions. The priority of a script
+     * is specified by scriptHighPriority operation option or by "#highpriority" script prefix.
+     * High-priority scripts also get sessions before the waiting normal-priority scripts.
+     * Must be lower than sessionPoolMaxSize.
+     * Default value: 0
+     */
+    private int sessionPoolHighPriorityReserved = 0;
+
+    /**
+     * If set to true then structured (JSON) script output is transferred in chunks (see scriptOutputChunkSize)
+     * and parsed as it is transferred, so the complete JSON text is never held in memory.
+     * Streamed scripts have their own adaptive timeout (see scriptTimeouts).
+     * Default value: false
+     */
+    private boolean scriptOutputJsonStreamed = false;
+
+    /**
+     * Maximal total size (in bytes) of the cached script outputs. Least recently used outputs are evicted
+     * when the cache would be larger. The size is estimated as two bytes per character of the script and its output.
+     * Zero means no limit, only the number of cached outputs is limited (see scriptResultCacheSize).
+     * Default value: 10485760 (10 MiB)
+     */
+    private long scriptResultCacheMaxBytes = 10485760L;
+
+    /**
+     * Maximal size (in bytes) of one cached script output. Larger outputs are not cached.
+     * Zero means no limit.
+     * Default value: 1048576 (1 MiB)
+     */
+    private long scriptResultCacheMaxEntryBytes = 1048576L;
+
     @ConfigurationProperty(order = 100)
     public String getScriptExecutionMechanism() {
         return scriptExecutionMechanism;
@@ -129,6 +513,24 @@ public class PowerShellConfiguration extends AbstractConfiguration {
         this.scriptExecutionMechanism = scriptExecitionMechanism;
     }
 
+    @ConfigurationProperty(order = 121)
+    public String[] getLocalShellCommand() {
+        return localShellCommand;
+    }
+
+    public void setLocalShellCommand(String[] localShellCommand) {
+        this.localShellCommand = localShellCommand;
+    }
+
+    @ConfigurationProperty(order = 122)
+    public String getLocalShellFraming() {
+        return localShellFraming;
+    }
+
+    public void setLocalShellFraming(String localShellFraming) {
+        this.localShellFraming = localShellFraming;
+    }
+
     @ConfigurationProperty(order = 101)
     public String getWinRmHost() {
         return winRmHost;
@@ -138,6 +540,24 @@ public class PowerShellConfiguration extends AbstractConfiguration {
         this.winRmHost = winRmHost;
     }
 
+    @ConfigurationProperty(order = 125)
+    public String[] getWinRmHosts() {
+        return winRmHosts;
+    }
+
+    public void setWinRmHosts(String[] winRmHosts) {
+        this.winRmHosts = winRmHosts;
+    }
+
+    @ConfigurationProperty(order = 126)
+    public long getHostEjectionPeriod() {
+        return hostEjectionPeriod;
+    }
+
+    public void setHostEjectionPeriod(long hostEjectionPeriod) {
+        this.hostEjectionPeriod = hostEjectionPeriod;
+    }
+
     @ConfigurationProperty(order = 102)
     public String getWinRmUsername() {
         return winRmUsername;
@@ -210,11 +630,505 @@ public class PowerShellConfiguration extends AbstractConfiguration {
         this.disableCertificateChecks = disableCertificateChecks;
     }
 
+    @ConfigurationProperty(order = 119)
+    public int getWinRmMaxConnections() {
+        return winRmMaxConnections;
+    }
+
+    public void setWinRmMaxConnections(int winRmMaxConnections) {
+        this.winRmMaxConnections = winRmMaxConnections;
+    }
+
+    @ConfigurationProperty(order = 120)
+    public long getWinRmConnectionIdleTimeout() {
+        return winRmConnectionIdleTimeout;
+    }
+
+    public void setWinRmConnectionIdleTimeout(long winRmConnectionIdleTimeout) {
+        this.winRmConnectionIdleTimeout = winRmConnectionIdleTimeout;
+    }
+
+    @ConfigurationProperty(order = 110)
+    public int getSessionPoolMinSize() {
+        return sessionPoolMinSize;
+    }
+
+    public void setSessionPoolMinSize(int sessionPoolMinSize) {
+        this.sessionPoolMinSize = sessionPoolMinSize;
+    }
+
+    @ConfigurationProperty(order = 111)
+    public int getSessionPoolMaxSize() {
+        return sessionPoolMaxSize;
+    }
+
+    public void setSessionPoolMaxSize(int sessionPoolMaxSize) {
+        this.sessionPoolMaxSize = sessionPoolMaxSize;
+    }
+
+    @ConfigurationProperty(order = 112)
+    public long getSessionPoolMaxWait() {
+        return sessionPoolMaxWait;
+    }
+
+    public void setSessionPoolMaxWait(long sessionPoolMaxWait) {
+        this.sessionPoolMaxWait = sessionPoolMaxWait;
+    }
+
+    @ConfigurationProperty(order = 113)
+    public String[] getWarmUpScriptLanguages() {
+        return warmUpScriptLanguages;
+    }
+
+    public void setWarmUpScriptLanguages(String[] warmUpScriptLanguages) {
+        this.warmUpScriptLanguages = warmUpScriptLanguages;
+    }
+
+    @ConfigurationProperty(order = 114)
+    public int getScriptBatchSize() {
+        return scriptBatchSize;
+    }
+
+    public void setScriptBatchSize(int scriptBatchSize) {
+        this.scriptBatchSize = scriptBatchSize;
+    }
+
+    @ConfigurationProperty(order = 115)
+    public int getScriptOutputChunkSize() {
+        return scriptOutputChunkSize;
+    }
+
+    public void setScriptOutputChunkSize(int scriptOutputChunkSize) {
+        this.scriptOutputChunkSize = scriptOutputChunkSize;
+    }
+
+    @ConfigurationProperty(order = 116)
+    public int getScriptOutputSpillThreshold() {
+        return scriptOutputSpillThreshold;
+    }
+
+    public void setScriptOutputSpillThreshold(int scriptOutputSpillThreshold) {
+        this.scriptOutputSpillThreshold = scriptOutputSpillThreshold;
+    }
+
+    @ConfigurationProperty(order = 117)
+    public String getScriptOutputSpillDirectory() {
+        return scriptOutputSpillDirectory;
+    }
+
+    public void setScriptOutputSpillDirectory(String scriptOutputSpillDirectory) {
+        this.scriptOutputSpillDirectory = scriptOutputSpillDirectory;
+    }
+
+    @ConfigurationProperty(order = 118)
+    public long getCheckAliveInterval() {
+        return checkAliveInterval;
+    }
+
+    public void setCheckAliveInterval(long checkAliveInterval) {
+        this.checkAliveInterval = checkAliveInterval;
+    }
+
+    @ConfigurationProperty(order = 123)
+    public int getAsyncMaxInFlightScriptsPerHost() {
+        return asyncMaxInFlightScriptsPerHost;
+    }
+
+    public void setAsyncMaxInFlightScriptsPerHost(int asyncMaxInFlightScriptsPerHost) {
+        this.asyncMaxInFlightScriptsPerHost = asyncMaxInFlightScriptsPerHost;
+    }
+
+    @ConfigurationProperty(order = 124)
+    public int getAsyncQueueCapacity() {
+        return asyncQueueCapacity;
+    }
+
+    public void setAsyncQueueCapacity(int asyncQueueCapacity) {
+        this.asyncQueueCapacity = asyncQueueCapacity;
+    }
+
+    @ConfigurationProperty(order = 127)
+    public int getScriptResultCacheSize() {
+        return scriptResultCacheSize;
+    }
+
+    public void setScriptResultCacheSize(int scriptResultCacheSize) {
+        this.scriptResultCacheSize = scriptResultCacheSize;
+    }
+
+    @ConfigurationProperty(order = 128)
+    public long getScriptResultCacheTtl() {
+        return scriptResultCacheTtl;
+    }
+
+    public void setScriptResultCacheTtl(long scriptResultCacheTtl) {
+        this.scriptResultCacheTtl = scriptResultCacheTtl;
+    }
+
+    @ConfigurationProperty(order = 129)
+    public boolean isScriptFunctionRegistryEnabled() {
+        return scriptFunctionRegistryEnabled;
+    }
+
+    public void setScriptFunctionRegistryEnabled(boolean scriptFunctionRegistryEnabled) {
+        this.scriptFunctionRegistryEnabled = scriptFunctionRegistryEnabled;
+    }
+
+    @ConfigurationProperty(order = 130)
+    public int getScriptFunctionMinLength() {
+        return scriptFunctionMinLength;
+    }
+
+    public void setScriptFunctionMinLength(int scriptFunctionMinLength) {
+        this.scriptFunctionMinLength = scriptFunctionMinLength;
+    }
+
+    @ConfigurationProperty(order = 131)
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    @ConfigurationProperty(order = 132)
+    public boolean isAuditLogAsync() {
+        return auditLogAsync;
+    }
+
+    public void setAuditLogAsync(boolean auditLogAsync) {
+        this.auditLogAsync = auditLogAsync;
+    }
+
+    @ConfigurationProperty(order = 133)
+    public int getAuditLogQueueCapacity() {
+        return auditLogQueueCapacity;
+    }
+
+    public void setAuditLogQueueCapacity(int auditLogQueueCapacity) {
+        this.auditLogQueueCapacity = auditLogQueueCapacity;
+    }
+
+    @ConfigurationProperty(order = 134)
+    public boolean isAuditLogBlockWhenFull() {
+        return auditLogBlockWhenFull;
+    }
+
+    public void setAuditLogBlockWhenFull(boolean auditLogBlockWhenFull) {
+        this.auditLogBlockWhenFull = auditLogBlockWhenFull;
+    }
+
+    @ConfigurationProperty(order = 135)
+    public int getAuditLogMaxLength() {
+        return auditLogMaxLength;
+    }
+
+    public void setAuditLogMaxLength(int auditLogMaxLength) {
+        this.auditLogMaxLength = auditLogMaxLength;
+    }
+
+    @ConfigurationProperty(order = 136)
+    public boolean isSessionSharingEnabled() {
+        return sessionSharingEnabled;
+    }
+
+    public void setSessionSharingEnabled(boolean sessionSharingEnabled) {
+        this.sessionSharingEnabled = sessionSharingEnabled;
+    }
+
+    @ConfigurationProperty(order = 137)
+    public long getSessionRecycleMaxCommands() {
+        return sessionRecycleMaxCommands;
+    }
+
+    public void setSessionRecycleMaxCommands(long sessionRecycleMaxCommands) {
+        this.sessionRecycleMaxCommands = sessionRecycleMaxCommands;
+    }
+
+    @ConfigurationProperty(order = 138)
+    public long getSessionRecycleMaxAge() {
+        return sessionRecycleMaxAge;
+    }
+
+    public void setSessionRecycleMaxAge(long sessionRecycleMaxAge) {
+        this.sessionRecycleMaxAge = sessionRecycleMaxAge;
+    }
+
+    @ConfigurationProperty(order = 139)
+    public double getSessionRecycleLatencyFactor() {
+        return sessionRecycleLatencyFactor;
+    }
+
+    public void setSessionRecycleLatencyFactor(double sessionRecycleLatencyFactor) {
+        this.sessionRecycleLatencyFactor = sessionRecycleLatencyFactor;
+    }
+
+    @ConfigurationProperty(order = 140)
+    public String[] getSessionKeepAliveIntervals() {
+        return sessionKeepAliveIntervals;
+    }
+
+    public void setSessionKeepAliveIntervals(String[] sessionKeepAliveIntervals) {
+        this.sessionKeepAliveIntervals = sessionKeepAliveIntervals;
+    }
+
+    @ConfigurationProperty(order = 141)
+    public String[] getSessionIdleTimeouts() {
+        return sessionIdleTimeouts;
+    }
+
+    public void setSessionIdleTimeouts(String[] sessionIdleTimeouts) {
+        this.sessionIdleTimeouts = sessionIdleTimeouts;
+    }
+
+    @ConfigurationProperty(order = 142)
+    public long getSessionMaintenanceInterval() {
+        return sessionMaintenanceInterval;
+    }
+
+    public void setSessionMaintenanceInterval(long sessionMaintenanceInterval) {
+        this.sessionMaintenanceInterval = sessionMaintenanceInterval;
+    }
+
+    @ConfigurationProperty(order = 143)
+    public int getScriptRetryCount() {
+        return scriptRetryCount;
+    }
+
+    public void setScriptRetryCount(int scriptRetryCount) {
+        this.scriptRetryCount = scriptRetryCount;
+    }
+
+    @ConfigurationProperty(order = 144)
+    public long getScriptRetryInitialDelay() {
+        return scriptRetryInitialDelay;
+    }
+
+    public void setScriptRetryInitialDelay(long scriptRetryInitialDelay) {
+        this.scriptRetryInitialDelay = scriptRetryInitialDelay;
+    }
+
+    @ConfigurationProperty(order = 145)
+    public long getScriptRetryMaxDelay() {
+        return scriptRetryMaxDelay;
+    }
+
+    public void setScriptRetryMaxDelay(long scriptRetryMaxDelay) {
+        this.scriptRetryMaxDelay = scriptRetryMaxDelay;
+    }
+
+    @ConfigurationProperty(order = 146)
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    @ConfigurationProperty(order = 147)
+    public String[] getScriptTimeouts() {
+        return scriptTimeouts;
+    }
+
+    public void setScriptTimeouts(String[] scriptTimeouts) {
+        this.scriptTimeouts = scriptTimeouts;
+    }
+
+    @ConfigurationProperty(order = 148)
+    public long getScriptTimeoutMin() {
+        return scriptTimeoutMin;
+    }
+
+    public void setScriptTimeoutMin(long scriptTimeoutMin) {
+        this.scriptTimeoutMin = scriptTimeoutMin;
+    }
+
+    @ConfigurationProperty(order = 149)
+    public double getScriptTimeoutLatencyFactor() {
+        return scriptTimeoutLatencyFactor;
+    }
+
+    public void setScriptTimeoutLatencyFactor(double scriptTimeoutLatencyFactor) {
+        this.scriptTimeoutLatencyFactor = scriptTimeoutLatencyFactor;
+    }
+
+    @ConfigurationProperty(order = 150)
+    public boolean isTestKeepsSessions() {
+        return testKeepsSessions;
+    }
+
+    public void setTestKeepsSessions(boolean testKeepsSessions) {
+        this.testKeepsSessions = testKeepsSessions;
+    }
+
+    @ConfigurationProperty(order = 151)
+    public int getLargeArgumentThreshold() {
+        return largeArgumentThreshold;
+    }
+
+    public void setLargeArgumentThreshold(int largeArgumentThreshold) {
+        this.largeArgumentThreshold = largeArgumentThreshold;
+    }
+
+    @ConfigurationProperty(order = 152)
+    public int getLargeArgumentChunkSize() {
+        return largeArgumentChunkSize;
+    }
+
+    public void setLargeArgumentChunkSize(int largeArgumentChunkSize) {
+        this.largeArgumentChunkSize = largeArgumentChunkSize;
+    }
+
+    @ConfigurationProperty(order = 153)
+    public boolean isLargeArgumentCompressionEnabled() {
+        return largeArgumentCompressionEnabled;
+    }
+
+    public void setLargeArgumentCompressionEnabled(boolean largeArgumentCompressionEnabled) {
+        this.largeArgumentCompressionEnabled = largeArgumentCompressionEnabled;
+    }
+
+    @ConfigurationProperty(order = 154)
+    public int getScriptOutputJsonDepth() {
+        return scriptOutputJsonDepth;
+    }
+
+    public void setScriptOutputJsonDepth(int scriptOutputJsonDepth) {
+        this.scriptOutputJsonDepth = scriptOutputJsonDepth;
+    }
+
+    @ConfigurationProperty(order = 155)
+    public int getSessionPoolHighPriorityReserved() {
+        return sessionPoolHighPriorityReserved;
+    }
+
+    public void setSessionPoolHighPriorityReserved(int sessionPoolHighPriorityReserved) {
+        this.sessionPoolHighPriorityReserved = sessionPoolHighPriorityReserved;
+    }
+
+    @ConfigurationProperty(order = 156)
+    public boolean isScriptOutputJsonStreamed() {
+        return scriptOutputJsonStreamed;
+    }
+
+    public void setScriptOutputJsonStreamed(boolean scriptOutputJsonStreamed) {
+        this.scriptOutputJsonStreamed = scriptOutputJsonStreamed;
+    }
+
+    @ConfigurationProperty(order = 157)
+    public long getScriptResultCacheMaxBytes() {
+        return scriptResultCacheMaxBytes;
+    }
+
+    public void setScriptResultCacheMaxBytes(long scriptResultCacheMaxBytes) {
+        this.scriptResultCacheMaxBytes = scriptResultCacheMaxBytes;
+    }
+
+    @ConfigurationProperty(order = 158)
+    public long getScriptResultCacheMaxEntryBytes() {
+        return scriptResultCacheMaxEntryBytes;
+    }
+
+    public void setScriptResultCacheMaxEntryBytes(long scriptResultCacheMaxEntryBytes) {
+        this.scriptResultCacheMaxEntryBytes = scriptResultCacheMaxEntryBytes;
+    }
+
+    /**
+     * Parses values in the form "language=milliseconds".
+     */
+    public static Map<String,Long> parseLanguageDurations(String[] values, String propertyName) {
+        Map<String,Long> durations = new HashMap<>();
+        if (values == null) {
+            return durations;
+        }
+        for (String value : values) {
+            int index = value.indexOf('=');
+            if (index <= 0) {
+                throw new ConfigurationException("Wrong value '"+value+"' of "+propertyName+", expected language=milliseconds");
+            }
+            try {
+                durations.put(value.substring(0, index).trim(), Long.parseLong(value.substring(index + 1).trim()));
+            } catch (NumberFormatException e) {
+                throw new ConfigurationException("Wrong value '"+value+"' of "+propertyName+", expected language=milliseconds", e);
+            }
+        }
+        return durations;
+    }
+
     @Override
     public void validate() {
         if (WINDOWS_AUTHENTICATION_SCHEME_CREDSSP.equals(winRmAuthenticationScheme) && winRmDomain == null) {
             throw new ConfigurationException("Domain name is required if CredSSP is used");
         }
+        if (localShellFraming != null && !PowerHellLocalLoopImpl.FRAMING_POWERSHELL.equals(localShellFraming)
+                && !PowerHellLocalLoopImpl.FRAMING_PLAIN.equals(localShellFraming)) {
+            throw new ConfigurationException("Unknown local shell framing "+localShellFraming);
+        }
+        if (winRmMaxConnections < 0) {
+            throw new ConfigurationException("WinRM maximal connections must not be negative");
+        }
+        if (sessionPoolMaxSize < 1) {
+            throw new ConfigurationException("Session pool maximal size must be at least 1");
+        }
+        if (sessionPoolMinSize < 0 || sessionPoolMinSize > sessionPoolMaxSize) {
+            throw new ConfigurationException("Session pool minimal size must be between 0 and maximal size");
+        }
+        if (scriptBatchSize < 1) {
+            throw new ConfigurationException("Script batch size must be at least 1");
+        }
+        if (asyncMaxInFlightScriptsPerHost < 1) {
+            throw new ConfigurationException("Maximal number of asynchronous scripts in flight must be at least 1");
+        }
+        if (asyncQueueCapacity < 1) {
+            throw new ConfigurationException("Asynchronous script queue capacity must be at least 1");
+        }
+        if (scriptOutputChunkSize < 1) {
+            throw new ConfigurationException("Script output chunk size must be at least 1");
+        }
+        if (auditLogQueueCapacity < 1) {
+            throw new ConfigurationException("Operation log queue capacity must be at least 1");
+        }
+        if (sessionRecycleLatencyFactor != 0 && sessionRecycleLatencyFactor <= 1) {
+            throw new ConfigurationException("Session recycle latency factor must be greater than 1 (or zero to disable it)");
+        }
+        parseLanguageDurations(sessionKeepAliveIntervals, "sessionKeepAliveIntervals");
+        parseLanguageDurations(sessionIdleTimeouts, "sessionIdleTimeouts");
+        if (sessionMaintenanceInterval < 1) {
+            throw new ConfigurationException("Session maintenance interval must be at least 1");
+        }
+        if (scriptRetryCount < 0) {
+            throw new ConfigurationException("Script retry count must not be negative");
+        }
+        if (scriptRetryInitialDelay < 0 || scriptRetryMaxDelay < scriptRetryInitialDelay) {
+            throw new ConfigurationException("Script retry delays must not be negative and maximal delay must not be lower than initial delay");
+        }
+        if (circuitBreakerFailureThreshold < 1) {
+            throw new ConfigurationException("Circuit breaker failure threshold must be at least 1");
+        }
+        parseLanguageDurations(scriptTimeouts, "scriptTimeouts");
+        if (scriptTimeoutLatencyFactor <= 1) {
+            throw new ConfigurationException("Script timeout latency factor must be greater than 1");
+        }
+        if (auditLogMaxLength < 0) {
+            throw new ConfigurationException("Operation log maximal length must not be negative");
+        }
+        if (largeArgumentThreshold < 0) {
+            throw new ConfigurationException("Large argument threshold must not be negative");
+        }
+        if (largeArgumentChunkSize < 1) {
+            throw new ConfigurationException("Large argument chunk size must be positive");
+        }
+        if (scriptOutputJsonDepth < 1 || scriptOutputJsonDepth > 100) {
+            throw new ConfigurationException("Script output JSON depth must be between 1 and 100");
+        }
+        if (sessionPoolHighPriorityReserved < 0 || sessionPoolHighPriorityReserved >= sessionPoolMaxSize) {
+            throw new ConfigurationException("Number of sessions reserved for high priority must not be negative and it must be lower than maximal session pool size");
+        }
+        if (scriptResultCacheMaxBytes < 0 || scriptResultCacheMaxEntryBytes < 0) {
+            throw new ConfigurationException("Script result cache sizes must not be negative");
+        }
     }
 
 }
@@ -20,7 +20,6 @@ import com.evolveum.polygon.common.GuardedStringAccessor;
 import com.evolveum.polygon.common.SchemaUtil;
 import com.evolveum.powerhell.*;
 import org.apache.cxf.Bus;
-import org.apache.cxf.BusFactory;
 import org.apache.cxf.transport.https.httpclient.DefaultHostnameVerifier;
 import org.apache.http.client.config.AuthSchemes;
 import org.identityconnectors.common.logging.Log;
@@ -35,9 +34,23 @@ import org.identityconnectors.framework.spi.operations.TestOp;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLSession;
+import java.io.File;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @ConnectorClass(displayNameKey = "connector.powershell.display", configurationClass = PowerShellConfiguration.class)
 public class PowerShellConnector implements PoolableConnector, TestOp, ScriptOnResourceOp {
@@ -45,19 +58,110 @@ public class PowerShellConnector implements PoolableConnector, TestOp, ScriptOnR
     private static final Log LOG = Log.getLog(PowerShellConnector.class);
 
     private static final String PING_COMMAND = "hostname.exe";
+    private static final String PROBE_COMMAND = "$true";
     private static final String EXCHANGE_INIT_SCRIPT = "Add-PSSnapin *Exchange*";
+    private static final String LOCAL_HOST = "localhost";
+
+    /**
+     * Operation option that marks the script as read-only script with cacheable output (Boolean).
+     */
+    public static final String OPTION_SCRIPT_CACHEABLE = "scriptCacheable";
+
+    /**
+     * Script prefix (first line) that marks the script as read-only script with cacheable output.
+     */
+    public static final String SCRIPT_PREFIX_CACHEABLE = "#cacheable";
+
+    /**
+     * Operation option that marks the script as idempotent, which means that the script can be safely retried (Boolean).
+     */
+    public static final String OPTION_SCRIPT_IDEMPOTENT = "scriptIdempotent";
+
+    /**
+     * Script prefix (first line) that marks the script as idempotent.
+     */
+    public static final String SCRIPT_PREFIX_IDEMPOTENT = "#idempotent";
+
+    /**
+     * Operation option that requests structured script output (Boolean). The script output is converted
+     * to JSON on the resource and the result is a list of the output objects, parsed to maps and lists.
+     * Supported only for PowerShell-based languages. Structured results are not cached.
+     */
+    public static final String OPTION_SCRIPT_OUTPUT_JSON = "scriptOutputJson";
+
+    /**
+     * Script prefix (first line) that requests structured script output.
+     */
+    public static final String SCRIPT_PREFIX_JSON = "#json";
+
+    /**
+     * Operation option that marks the script as high-priority script (Boolean), e.g. interactive provisioning.
+     * High-priority scripts can use the sessions reserved by sessionPoolHighPriorityReserved and they get
+     * sessions before the waiting normal-priority scripts.
+     */
+    public static final String OPTION_SCRIPT_HIGH_PRIORITY = "scriptHighPriority";
+
+    /**
+     * Script prefix (first line) that marks the script as high-priority script.
+     */
+    public static final String SCRIPT_PREFIX_HIGH_PRIORITY = "#highpriority";
+
+    private static final String[] SCRIPT_PREFIXES = { SCRIPT_PREFIX_CACHEABLE, SCRIPT_PREFIX_IDEMPOTENT, SCRIPT_PREFIX_JSON,
+            SCRIPT_PREFIX_HIGH_PRIORITY };
+
+    private static final String[] DEFAULT_LOCAL_SHELL_COMMAND = { "pwsh", "-NoLogo", "-NoProfile", "-NonInteractive", "-Command", "-" };
+
+    // Maximal length of batch script passed on the command line. It is sent as base64-encoded UTF-16 (EncodedCommand),
+    // which is 8/3 times longer, and it has to fit into the Windows command line limit (32767 characters).
+    private static final int MAX_COMMAND_LINE_BATCH_LENGTH = 10000;
+
+    // Properties of CXF AsyncHTTPConduitFactory. The async conduit is used by WinRM client for NTLM and CredSSP.
+    private static final String BUS_PROPERTY_USE_ASYNC = "use.async.http.conduit";
+    private static final String BUS_PROPERTY_MAX_CONNECTIONS = "org.apache.cxf.transport.http.async.MAX_CONNECTIONS";
+    private static final String BUS_PROPERTY_MAX_PER_HOST_CONNECTIONS = "org.apache.cxf.transport.http.async.MAX_PER_HOST_CONNECTIONS";
+    private static final String BUS_PROPERTY_CONNECTION_MAX_IDLE = "org.apache.cxf.transport.http.async.CONNECTION_MAX_IDLE";
 
     private PowerShellConfiguration configuration;
 
-    private String winRmUsername;
-    private String winRmHost;
-    private HostnameVerifier hostnameVerifier;
-    private Map<String,PowerHell> powerHellMap = new HashMap<>(); // key: scripting language
+    // WinRM state is initialized once and then read without locking, see initWinRm()
+    private volatile String winRmUsername;
+    private volatile WinRmHostSelector hostSelector;
+    private volatile ConnectorMetrics metrics; // only in session owner, if metrics are enabled
+    private volatile HostnameVerifier hostnameVerifier;
+    private final Map<String,PowerHellPool> powerHellPoolMap = new ConcurrentHashMap<>(); // key: scripting language
+    private ExecutorService warmUpExecutor;
+    private ScheduledExecutorService maintenanceExecutor;
+    private volatile ExecutorService timeoutExecutor;
+    private final Map<String,AdaptiveTimeout> adaptiveTimeoutMap = new ConcurrentHashMap<>(); // key: scripting language and operation kind
+    private final Map<String,Future<?>> warmUpMap = new ConcurrentHashMap<>(); // key: scripting language
+
+    private volatile boolean disposed = false;
+    private AsyncScriptExecutor asyncScriptExecutor;
+    private ScriptResultCache scriptResultCache;
+    private String scriptResultCacheKey;
+    // Files with spilled script output that were returned by this instance, deleted when it is disposed
+    private final Set<File> spilledFiles = ConcurrentHashMap.newKeySet();
+    private AuditLog auditLog;
+
+    private final boolean isSharedSessionOwner;
+    private PowerShellConnector sharedSessionOwner;
+    private String sharedSessionKey;
+
+    private final Map<String,String> busKeyMap = new HashMap<>(); // key: host, guarded by this
+    private final Map<String,Bus> busMap = new ConcurrentHashMap<>(); // key: host
+    private volatile boolean isWinRmInitialized;
 
-    private boolean busInitialized = false;
-    private boolean isWinRmInitialized;
+    public PowerShellConnector() {
+        this(false);
+    }
 
-    private static int busUsageCount = 0;
+    /**
+     * @param isSharedSessionOwner true for private connector instance that owns the sessions
+     *                             shared by connector instances (see {@link SharedSessionRegistry})
+     */
+    PowerShellConnector(boolean isSharedSessionOwner) {
+        this.isSharedSessionOwner = isSharedSessionOwner;
+    }
 
     @Override
     public Configuration getConfiguration() {
@@ -68,95 +172,1201 @@ public class PowerShellConnector implements PoolableConnector, TestOp, ScriptOnR
     public void init(Configuration configuration) {
         LOG.info("Initializing {0} connector instance {1}", this.getClass().getSimpleName(), this);
         this.configuration = (PowerShellConfiguration)configuration;
+        if (this.configuration.isAuditLogAsync()) {
+            auditLog = new AuditLog(this.configuration.getAuditLogMaxLength(), this.configuration.getAuditLogQueueCapacity(),
+                    this.configuration.isAuditLogBlockWhenFull());
+        } else {
+            auditLog = new AuditLog(this.configuration.getAuditLogMaxLength());
+        }
+        if (this.configuration.isSessionSharingEnabled() && !isSharedSessionOwner) {
+            sharedSessionKey = SharedSessionRegistry.createKey(getEffectiveConfiguration());
+            sharedSessionOwner = SharedSessionRegistry.acquire(sharedSessionKey, this.configuration);
+        } else {
+            startWarmUp();
+            startMaintenance();
+        }
+        if (this.configuration.getScriptResultCacheSize() > 0 && !isSharedSessionOwner) {
+            // Shared by the connector instances with the same configuration, the owner of shared sessions
+            // does not execute the scripts itself
+            scriptResultCacheKey = SharedSessionRegistry.createKey(getEffectiveConfiguration());
+            scriptResultCache = ScriptResultCacheRegistry.acquire(scriptResultCacheKey, this.configuration);
+        }
+    }
+
+    /**
+     * Returns connector instance that owns the sessions. This is the session owner
+     * if the sessions are shared, or this instance otherwise.
+     */
+    private PowerShellConnector getSessionOwner() {
+        return sharedSessionOwner != null ? sharedSessionOwner : this;
+    }
+
+    /**
+     * Describes the configuration. Connector instances with the same effective configuration can share
+     * the sessions. All the configuration properties (except sessionSharingEnabled) are included, even
+     * those that are applied by each instance: the owner is created from the configuration of the first
+     * instance, therefore instances that differ in any behaviour must not share it.
+     */
+    private String getEffectiveConfiguration() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(configuration.getScriptExecutionMechanism()).append('|');
+        sb.append(Arrays.toString(configuration.getLocalShellCommand())).append('|');
+        sb.append(configuration.getLocalShellFraming()).append('|');
+        sb.append(getWinRmHosts()).append('|');
+        sb.append(configuration.getHostEjectionPeriod()).append('|');
+        sb.append(getWinRmUsername()).append('|');
+        sb.append(configuration.getWinRmDomain()).append('|');
+        sb.append(SharedSessionRegistry.digestPassword(configuration.getWinRmPassword())).append('|');
+        sb.append(configuration.getWinRmAuthenticationScheme()).append('|');
+        sb.append(configuration.getWinRmPort()).append('|');
+        sb.append(configuration.isWinRmUseHttps()).append('|');
+        sb.append(configuration.getPowershellArgumentStyle()).append('|');
+        sb.append(configuration.isDisableCertificateChecks()).append('|');
+        sb.append(configuration.getWinRmMaxConnections()).append('|');
+        sb.append(configuration.getWinRmConnectionIdleTimeout()).append('|');
+        sb.append(configuration.getSessionPoolMinSize()).append('|');
+        sb.append(configuration.getSessionPoolMaxSize()).append('|');
+        sb.append(configuration.getSessionPoolMaxWait()).append('|');
+        sb.append(Arrays.toString(configuration.getWarmUpScriptLanguages())).append('|');
+        sb.append(configuration.getScriptBatchSize()).append('|');
+        sb.append(configuration.getScriptOutputChunkSize()).append('|');
+        sb.append(configuration.getScriptOutputSpillThreshold()).append('|');
+        sb.append(configuration.getScriptOutputSpillDirectory()).append('|');
+        sb.append(configuration.getCheckAliveInterval()).append('|');
+        sb.append(configuration.getAsyncMaxInFlightScriptsPerHost()).append('|');
+        sb.append(configuration.getAsyncQueueCapacity()).append('|');
+        sb.append(configuration.getScriptResultCacheSize()).append('|');
+        sb.append(configuration.getScriptResultCacheTtl()).append('|');
+        sb.append(configuration.isScriptFunctionRegistryEnabled()).append('|');
+        sb.append(configuration.getScriptFunctionMinLength()).append('|');
+        sb.append(configuration.isMetricsEnabled()).append('|');
+        sb.append(configuration.isAuditLogAsync()).append('|');
+        sb.append(configuration.getAuditLogQueueCapacity()).append('|');
+        sb.append(configuration.isAuditLogBlockWhenFull()).append('|');
+        sb.append(configuration.getAuditLogMaxLength()).append('|');
+        sb.append(configuration.getSessionRecycleMaxCommands()).append('|');
+        sb.append(configuration.getSessionRecycleMaxAge()).append('|');
+        sb.append(configuration.getSessionRecycleLatencyFactor()).append('|');
+        sb.append(Arrays.toString(configuration.getSessionKeepAliveIntervals())).append('|');
+        sb.append(Arrays.toString(configuration.getSessionIdleTimeouts())).append('|');
+        sb.append(configuration.getSessionMaintenanceInterval()).append('|');
+        sb.append(configuration.getScriptRetryCount()).append('|');
+        sb.append(configuration.getScriptRetryInitialDelay()).append('|');
+        sb.append(configuration.getScriptRetryMaxDelay()).append('|');
+        sb.append(configuration.getCircuitBreakerFailureThreshold()).append('|');
+        sb.append(Arrays.toString(configuration.getScriptTimeouts())).append('|');
+        sb.append(configuration.getScriptTimeoutMin()).append('|');
+        sb.append(configuration.getScriptTimeoutLatencyFactor()).append('|');
+        sb.append(configuration.isTestKeepsSessions()).append('|');
+        sb.append(configuration.getLargeArgumentThreshold()).append('|');
+        sb.append(configuration.getLargeArgumentChunkSize()).append('|');
+        sb.append(configuration.isLargeArgumentCompressionEnabled()).append('|');
+        sb.append(configuration.getScriptOutputJsonDepth()).append('|');
+        sb.append(configuration.getSessionPoolHighPriorityReserved()).append('|');
+        sb.append(configuration.isScriptOutputJsonStreamed()).append('|');
+        sb.append(configuration.getScriptResultCacheMaxBytes()).append('|');
+        sb.append(configuration.getScriptResultCacheMaxEntryBytes());
+        return sb.toString();
+    }
+
+    private void startWarmUp() {
+        String[] warmUpScriptLanguages = configuration.getWarmUpScriptLanguages();
+        if (warmUpScriptLanguages == null || warmUpScriptLanguages.length == 0) {
+            return;
+        }
+        warmUpExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("powershell-connector-warmup"));
+        for (String scriptLanguage : warmUpScriptLanguages) {
+            warmUpMap.put(scriptLanguage, warmUpExecutor.submit(() -> warmUp(scriptLanguage)));
+        }
+        // No more tasks, the thread terminates when the warm-up is done
+        warmUpExecutor.shutdown();
+    }
+
+    /**
+     * Background maintenance runs only if there is something to maintain: idle session probes,
+     * keepalive, idle timeouts, or probes of ejected hosts (there are several WinRM hosts).
+     * Otherwise there is no maintenance thread.
+     */
+    private boolean isMaintenanceNeeded() {
+        return configuration.getCheckAliveInterval() > 0
+                || !PowerShellConfiguration.parseLanguageDurations(configuration.getSessionKeepAliveIntervals(), "sessionKeepAliveIntervals").isEmpty()
+                || !PowerShellConfiguration.parseLanguageDurations(configuration.getSessionIdleTimeouts(), "sessionIdleTimeouts").isEmpty()
+                || (!isScriptingLocal() && new HashSet<>(getWinRmHosts()).size() > 1);
+    }
+
+    boolean isMaintenanceRunning() {
+        return maintenanceExecutor != null;
+    }
+
+    private void startMaintenance() {
+        if (!isMaintenanceNeeded()) {
+            LOG.ok("No background maintenance of sessions is needed");
+            return;
+        }
+        long interval = configuration.getSessionMaintenanceInterval();
+        maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("powershell-connector-maintenance"));
+        maintenanceExecutor.scheduleWithFixedDelay(this::maintainSessions, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Probes ejected hosts, keeps idle sessions alive, discards broken sessions
+     * and disconnects sessions that are idle for too long.
+     */
+    private void maintainSessions() {
+        try {
+            probeEjectedHosts();
+        } catch (RuntimeException e) {
+            LOG.warn(e, "Probing of ejected hosts failed: {0}", e.getMessage());
+        }
+        Map<String,Long> keepAliveIntervals = PowerShellConfiguration.parseLanguageDurations(
+                configuration.getSessionKeepAliveIntervals(), "sessionKeepAliveIntervals");
+        Map<String,Long> idleTimeouts = PowerShellConfiguration.parseLanguageDurations(
+                configuration.getSessionIdleTimeouts(), "sessionIdleTimeouts");
+        for (PowerHellPool pool : powerHellPoolMap.values()) {
+            String scriptLanguage = pool.getScriptLanguage();
+            try {
+                Long idleTimeout = idleTimeouts.get(scriptLanguage);
+                if (idleTimeout != null && idleTimeout > 0) {
+                    int disconnected = pool.reapIdle(idleTimeout);
+                    if (disconnected > 0) {
+                        LOG.ok("Disconnected {0} idle {1} sessions", disconnected, scriptLanguage);
+                    }
+                }
+                if (!PowerShellScriptUtil.isLoopLanguage(scriptLanguage)) {
+                    // Nothing to check, new WinRM command is created for every script
+                    continue;
+                }
+                long verifiedAge = configuration.getCheckAliveInterval();
+                Long keepAliveInterval = keepAliveIntervals.get(scriptLanguage);
+                if (keepAliveInterval != null && keepAliveInterval > 0) {
+                    verifiedAge = Math.min(verifiedAge, keepAliveInterval);
+                }
+                if (verifiedAge > 0) {
+                    int invalidated = pool.validateIdle(this::probeSession, verifiedAge);
+                    if (invalidated > 0) {
+                        LOG.info("Discarded {0} broken {1} sessions", invalidated, scriptLanguage);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // Do not let the exception cancel the maintenance
+                LOG.warn(e, "Maintenance of {0} sessions failed: {1}", scriptLanguage, e.getMessage());
+            }
+        }
+    }
+
+    private void warmUp(String scriptLanguage) {
+        LOG.ok("Warming up {0} sessions", scriptLanguage);
+        try {
+            PowerHellPool pool = getPowerHellPool(scriptLanguage);
+            pool.fill(Math.max(1, pool.getMinSize()));
+            LOG.ok("Warm-up of {0} sessions finished", scriptLanguage);
+        } catch (RuntimeException e) {
+            // Not fatal. The sessions will be created when needed, and the error will be reported at that time.
+            LOG.warn(e, "Warm-up of {0} sessions failed: {1}", scriptLanguage, e.getMessage());
+        }
+    }
+
+    /**
+     * Waits until background warm-up of the sessions is finished (if there is any).
+     * This avoids creating another session while the warm-up session is still connecting.
+     */
+    private void waitForWarmUp(String scriptLanguage) {
+        Future<?> warmUpFuture = warmUpMap.get(scriptLanguage);
+        if (warmUpFuture == null || warmUpFuture.isDone()) {
+            return;
+        }
+        LOG.ok("Waiting for warm-up of {0} sessions", scriptLanguage);
+        try {
+            warmUpFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationTimeoutException("Interrupted while waiting for warm-up of "+scriptLanguage+" sessions", e);
+        } catch (ExecutionException e) {
+            // Should not happen, warmUp() does not throw. Just go on, we will create the session ourselves.
+            LOG.warn(e, "Warm-up of {0} sessions failed: {1}", scriptLanguage, e.getMessage());
+        }
     }
 
     @Override
     public void dispose() {
-        for (Map.Entry<String,PowerHell> entry: powerHellMap.entrySet()) {
-            entry.getValue().disconnect();
+        disposed = true;
+        if (sharedSessionOwner != null) {
+            SharedSessionRegistry.release(sharedSessionKey);
+            sharedSessionOwner = null;
         }
-        if (busInitialized) {
-            disposeBus();
-            busInitialized = false;
+        if (auditLog != null) {
+            auditLog.close();
+        }
+        for (File file : spilledFiles) {
+            deleteSpilledFile(file);
+        }
+        if (scriptResultCacheKey != null) {
+            ScriptResultCacheRegistry.release(scriptResultCacheKey);
+            scriptResultCacheKey = null;
+        }
+        synchronized (this) {
+            if (asyncScriptExecutor != null) {
+                asyncScriptExecutor.release();
+                asyncScriptExecutor = null;
+            }
+        }
+        if (warmUpExecutor != null) {
+            warmUpExecutor.shutdownNow();
+            warmUpExecutor = null;
+        }
+        if (maintenanceExecutor != null) {
+            maintenanceExecutor.shutdownNow();
+            maintenanceExecutor = null;
+        }
+        synchronized (this) {
+            if (timeoutExecutor != null) {
+                // Let the scripts that timed out finish, so that their sessions are discarded properly
+                timeoutExecutor.shutdown();
+                timeoutExecutor = null;
+            }
+        }
+        warmUpMap.clear();
+        closePowerHellPools();
+        synchronized (this) {
+            for (String busKey : busKeyMap.values()) {
+                WinRmBusRegistry.release(busKey);
+            }
+            busKeyMap.clear();
+            busMap.clear();
+            if (hostSelector != null) {
+                hostSelector.close();
+                hostSelector = null;
+            }
+            isWinRmInitialized = false;
+            if (metrics != null) {
+                metrics.close();
+                metrics = null;
+            }
         }
     }
 
     @Override
     public void test() {
         LOG.info("Test {0} connector instance {1}", this.getClass().getSimpleName(), this);
-        cleanupScriptingBeforeTest();
-        checkAlive();
-        pingScripting();
+        // Shared sessions and WinRM state belong to the session owner
+        PowerShellConnector owner = getSessionOwner();
+        if (configuration.isTestKeepsSessions() || sharedSessionOwner != null) {
+            // Shared sessions are used by other connector instances, they are never torn down by the test
+            owner.probeIdleSessions();
+        } else {
+            owner.cleanupScriptingBeforeTest();
+        }
+        owner.pingScripting();
     }
 
+    /**
+     * Checks only the local state, as this is invoked whenever the connector instance is taken from the pool.
+     * Sessions and hosts are checked by the background maintenance.
+     */
     @Override
     public void checkAlive() {
-//        TODO;
+        if (sharedSessionOwner != null) {
+            sharedSessionOwner.checkAlive();
+            return;
+        }
+        if (disposed) {
+            throw new ConnectorException("Connector instance "+this+" was disposed");
+        }
+    }
+
+    /**
+     * Probes ejected hosts with expired ejection period. Hosts that respond are used again.
+     */
+    private void probeEjectedHosts() {
+        WinRmHostSelector selector = hostSelector;
+        if (selector == null) {
+            return;
+        }
+        for (String host : selector.getHostsToProbe()) {
+            LOG.ok("Probing ejected host {0}", host);
+            try {
+                PowerHellSession session = createPowerHellSession(PowerShellConfiguration.SCRIPT_LANGUAGE_CMD, host);
+                try {
+                    session.runCommand(PING_COMMAND, null);
+                    selector.recordSuccess(host);
+                } finally {
+                    session.disconnect();
+                }
+            } catch (PowerHellException | RuntimeException e) {
+                LOG.ok("Probe of host {0} failed: {1}", host, e.getMessage());
+                selector.recordFailure(host);
+            }
+        }
+    }
+
+    /**
+     * Probes all idle long-running sessions, sessions that fail the probe are discarded.
+     */
+    private void probeIdleSessions() {
+        for (PowerHellPool pool : powerHellPoolMap.values()) {
+            if (!PowerShellScriptUtil.isLoopLanguage(pool.getScriptLanguage())) {
+                continue;
+            }
+            int invalidated = pool.validateIdle(this::probeSession, 0);
+            if (invalidated > 0) {
+                LOG.info("Discarded {0} broken {1} sessions", invalidated, pool.getScriptLanguage());
+            }
+        }
+    }
+
+    private boolean probeSession(PowerHellSession session) {
+        try {
+            session.runCommand(PROBE_COMMAND, null);
+            session.markVerified();
+            return true;
+        } catch (PowerHellException e) {
+            LOG.ok("Probe of {0} failed: {1}", session, e.getMessage());
+            return false;
+        }
     }
 
     @Override
     public Object runScriptOnResource(ScriptContext scriptCtx, OperationOptions options) {
+        boolean cacheable = hasOption(options, OPTION_SCRIPT_CACHEABLE) || hasScriptPrefix(scriptCtx, SCRIPT_PREFIX_CACHEABLE);
+        // Read-only scripts are idempotent
+        boolean idempotent = cacheable || hasOption(options, OPTION_SCRIPT_IDEMPOTENT) || hasScriptPrefix(scriptCtx, SCRIPT_PREFIX_IDEMPOTENT);
+        boolean json = hasOption(options, OPTION_SCRIPT_OUTPUT_JSON) || hasScriptPrefix(scriptCtx, SCRIPT_PREFIX_JSON);
+        boolean highPriority = hasOption(options, OPTION_SCRIPT_HIGH_PRIORITY) || hasScriptPrefix(scriptCtx, SCRIPT_PREFIX_HIGH_PRIORITY);
+        scriptCtx = stripScriptPrefixes(scriptCtx);
+        if (json) {
+            if (!PowerShellScriptUtil.isPowerShellLanguage(scriptCtx.getScriptLanguage())) {
+                throw new UnsupportedOperationException("Structured output is not supported for "+scriptCtx.getScriptLanguage()+" language");
+            }
+            return runScriptOnResourceStructured(scriptCtx, idempotent, highPriority);
+        }
+        if (!cacheable || scriptResultCache == null) {
+            return runScriptOnResourceUncached(scriptCtx, idempotent, highPriority);
+        }
+        String cacheKey = ScriptResultCache.createKey(scriptCtx);
+        String cachedOutput = scriptResultCache.get(cacheKey);
+        if (cachedOutput != null) {
+            LOG.ok("Returning cached output of {0} script: {1}", scriptCtx.getScriptLanguage(), scriptCtx.getScriptText());
+            return cachedOutput;
+        }
+        Object output = runScriptOnResourceUncached(scriptCtx, idempotent, highPriority);
+        if (output instanceof String) {
+            scriptResultCache.put(cacheKey, (String) output);
+        }
+        return output;
+    }
+
+    private boolean hasOption(OperationOptions options, String optionName) {
+        return options != null && options.getOptions() != null && Boolean.TRUE.equals(options.getOptions().get(optionName));
+    }
+
+    private boolean hasScriptPrefix(ScriptContext scriptCtx, String prefix) {
+        String text = scriptCtx.getScriptText();
+        // Prefixes may be combined, each of them on its own line
+        while (text != null && isScriptPrefix(text)) {
+            if (getFirstLine(text).equals(prefix)) {
+                return true;
+            }
+            text = stripFirstLine(text);
+        }
+        return false;
+    }
+
+    /**
+     * The whole first line must be the prefix, so ordinary comments (e.g. "#jsonData") are not taken as prefixes.
+     */
+    private boolean isScriptPrefix(String text) {
+        String firstLine = getFirstLine(text);
+        for (String prefix : SCRIPT_PREFIXES) {
+            if (firstLine.equals(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getFirstLine(String text) {
+        int newline = text.indexOf('\n');
+        return (newline < 0 ? text : text.substring(0, newline)).trim();
+    }
+
+    private ScriptContext stripScriptPrefixes(ScriptContext scriptCtx) {
+        String text = scriptCtx.getScriptText();
+        if (text == null || !isScriptPrefix(text)) {
+            return scriptCtx;
+        }
+        while (isScriptPrefix(text)) {
+            text = stripFirstLine(text);
+        }
+        return new ScriptContext(scriptCtx.getScriptLanguage(), text, scriptCtx.getScriptArguments());
+    }
+
+    private String stripFirstLine(String text) {
+        int newline = text.indexOf('\n');
+        return newline < 0 ? "" : text.substring(newline + 1);
+    }
+
+    /**
+     * Returns script result cache (for diagnostics), null if the cache is disabled.
+     */
+    public ScriptResultCache getScriptResultCache() {
+        return scriptResultCache;
+    }
+
+    /**
+     * Executes the script. If scriptOutputSpillThreshold is set, the output of PowerShell-based scripts is streamed
+     * to the spilling output consumer, so the memory used for the output stays bounded. The result is either String
+     * or File (with output longer than the threshold). The File is valid until the connector instance is disposed.
+     */
+    private Object runScriptOnResourceUncached(ScriptContext scriptCtx, boolean idempotent, boolean highPriority) {
         String scriptLanguage = scriptCtx.getScriptLanguage();
-        PowerHell powerHell = getPowerHell(scriptLanguage);
+        Supplier<Object> execution;
+        if (configuration.getScriptOutputSpillThreshold() > 0 && PowerShellScriptUtil.isPowerShellLanguage(scriptLanguage)) {
+            execution = () -> executeInSession(scriptLanguage, highPriority, OperationKind.STREAMED, session -> {
+                SpillingOutputConsumer consumer = createSpillingOutputConsumer();
+                try {
+                    runScriptStreamed(session, scriptCtx, consumer, false);
+                    consumer.close();
+                } catch (RuntimeException e) {
+                    consumer.discard();
+                    throw e;
+                }
+                Object result = consumer.getResult();
+                if (result instanceof File) {
+                    // Files deleted by the callers are forgotten, so the set does not grow
+                    spilledFiles.removeIf(file -> !file.exists());
+                    spilledFiles.add((File) result);
+                }
+                return result;
+            });
+        } else {
+            execution = () -> executeInSession(scriptLanguage, highPriority, OperationKind.SCRIPT,
+                    session -> runScript(session, scriptCtx, false));
+        }
+        if (idempotent) {
+            return executeWithRetry(execution);
+        }
+        return execution.get();
+    }
+
+    /**
+     * Executes the script with the output converted to JSON and parses the output. The output is streamed
+     * (if scriptOutputJsonStreamed is set), the streamed output is parsed as it is transferred.
+     */
+    private List<Object> runScriptOnResourceStructured(ScriptContext scriptCtx, boolean idempotent, boolean highPriority) {
+        boolean streamed = configuration.isScriptOutputJsonStreamed();
+        OperationKind kind = streamed ? OperationKind.STREAMED : OperationKind.JSON_SCRIPT;
+        Supplier<List<Object>> execution = () -> executeInSession(scriptCtx.getScriptLanguage(), highPriority, kind, session -> {
+            JsonOutputParser parser = new JsonOutputParser();
+            if (streamed) {
+                runScriptStreamed(session, scriptCtx, parser, true);
+            } else {
+                String output = runScript(session, scriptCtx, true);
+                if (output != null) {
+                    parser.consume(output);
+                }
+            }
+            return parser.getResult();
+        });
+        if (idempotent) {
+            return executeWithRetry(execution);
+        }
+        return execution.get();
+    }
+
+    /**
+     * Executes the operation, retrying it after communication failures (see {@link ScriptRetryPolicy}).
+     */
+    private <T> T executeWithRetry(Supplier<T> operation) {
+        return new ScriptRetryPolicy(configuration.getScriptRetryCount(), configuration.getScriptRetryInitialDelay(),
+                configuration.getScriptRetryMaxDelay()).execute(operation);
+    }
 
+    /**
+     * Executes the operation in a session taken from the session pool. The session is returned to the pool
+     * when the operation is finished. If the operation fails because of communication failure, the session
+     * is discarded and its host is ejected. If all the hosts are ejected, the operation fails fast
+     * without waiting for a session.
+     *
+     * If there is a timeout for the script language and operation kind, the operation is executed by another thread
+     * and the calling thread waits for the result only until the timeout. Operation that timed out is left
+     * to finish in background (local shells are killed, so it finishes soon). Its session keeps its pool slot
+     * until the operation finishes, then it is discarded. Therefore there are never more operations running
+     * in background than the pool size.
+     *
+     * Asynchronous scripts are limited per host. Their host is selected (and its limit is applied) before
+     * the session is taken, so the scripts that wait for a host do not hold sessions. The host is released
+     * when the operation finishes, even if it timed out.
+     *
+     * @param highPriority if set to true then the session is taken from the sessions reserved for high-priority scripts
+     */
+    private <T> T executeInSession(String scriptLanguage, boolean highPriority, OperationKind kind, Function<PowerHellSession,T> operation) {
+        PowerHellPool pool = getPowerHellPool(scriptLanguage);
+        WinRmHostSelector selector = getSessionOwner().hostSelector;
+        if (selector != null) {
+            selector.checkAvailable();
+        }
+        AsyncScriptExecutor asyncExecutor = AsyncScriptExecutor.getCurrent();
+        AsyncScriptExecutor.HostPermit hostPermit = null;
+        String host = null;
+        if (asyncExecutor != null) {
+            Map<String,String> hosts = getAvailableHostsByEndpoint();
+            hostPermit = asyncExecutor.enterHost(hosts.keySet());
+            if (hostPermit != null) {
+                host = hosts.get(hostPermit.getEndpoint());
+            }
+        }
+        PowerHellSession session;
+        try {
+            session = checkoutSession(pool, highPriority, host);
+        } catch (RuntimeException e) {
+            if (hostPermit != null) {
+                hostPermit.release();
+            }
+            throw e;
+        }
+        ScriptStatistics statistics = getScriptStatistics(session.getHost(), scriptLanguage);
+        AdaptiveTimeout timeout = kind.isTimed() ? getAdaptiveTimeout(scriptLanguage, kind) : null;
+        long startTimestamp = System.currentTimeMillis();
+        CompletableFuture<T> future = null;
+        RuntimeException failure = null;
+        try {
+            T result;
+            if (timeout == null) {
+                result = operation.apply(session);
+            } else {
+                future = CompletableFuture.supplyAsync(() -> operation.apply(session), getSessionOwner().getTimeoutExecutor());
+                result = waitForResult(future, timeout.getTimeout(), session);
+            }
+            long latency = System.currentTimeMillis() - startTimestamp;
+            if (kind == OperationKind.SCRIPT) {
+                session.recordLatency(latency);
+            }
+            if (timeout != null) {
+                timeout.record(latency);
+            }
+            recordHostSuccess(session.getHost());
+            if (statistics != null) {
+                statistics.recordSuccess(kind, System.currentTimeMillis() - startTimestamp);
+            }
+            return result;
+        } catch (RuntimeException e) {
+            failure = e;
+            if (statistics != null) {
+                statistics.recordFailure(kind, System.currentTimeMillis() - startTimestamp, e);
+            }
+            throw e;
+        } finally {
+            boolean timedOut = future != null && !future.isDone();
+            if (timedOut) {
+                // Timed out, the session is still busy. It keeps its pool slot until the operation finishes.
+                recordHostFailure(session.getHost());
+                timeout.recordTimeout(System.currentTimeMillis() - startTimestamp);
+                if (session.abort()) {
+                    LOG.ok("Killed {0} after script timeout", session);
+                }
+                AsyncScriptExecutor.HostPermit timedOutHostPermit = hostPermit;
+                future.whenComplete((result, e) -> {
+                    LOG.ok("Discarding {0} after timed out script finished", session);
+                    if (result instanceof File) {
+                        // Nobody is going to read the spilled output
+                        deleteSpilledFile((File) result);
+                    }
+                    pool.invalidate(session);
+                    if (timedOutHostPermit != null) {
+                        timedOutHostPermit.release();
+                    }
+                });
+            } else if (failure instanceof ConnectorIOException) {
+                recordHostFailure(session.getHost());
+                pool.invalidate(session);
+            } else {
+                pool.checkin(session);
+            }
+            if (hostPermit != null && !timedOut) {
+                hostPermit.release();
+            }
+        }
+    }
+
+    private <T> T waitForResult(CompletableFuture<T> future, long timeout, PowerHellSession session) {
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            auditLog.error("{0} Script ERR timeout after {1} ms", session.getHost(), timeout);
+            throw new OperationTimeoutException("Script execution on "+session.getHost()+" timed out after "+timeout+" ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationTimeoutException("Interrupted while waiting for script execution on "+session.getHost(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ConnectorException("Script execution failed: "+cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Returns timeout for operations of the kind with scripts of the language, or null if scripts of the language
+     * do not time out. Each kind of operation has its own timeout, as the latencies of the kinds differ.
+     */
+    private AdaptiveTimeout getAdaptiveTimeout(String scriptLanguage, OperationKind kind) {
+        if (configuration.getScriptTimeouts() == null) {
+            return null;
+        }
+        String key = scriptLanguage + "/" + kind;
+        AdaptiveTimeout timeout = adaptiveTimeoutMap.get(key);
+        if (timeout != null) {
+            return timeout;
+        }
+        Long maxTimeout = PowerShellConfiguration.parseLanguageDurations(configuration.getScriptTimeouts(), "scriptTimeouts").get(scriptLanguage);
+        if (maxTimeout == null || maxTimeout <= 0) {
+            return null;
+        }
+        return adaptiveTimeoutMap.computeIfAbsent(key, k -> new AdaptiveTimeout(configuration.getScriptTimeoutMin(),
+                maxTimeout, configuration.getScriptTimeoutLatencyFactor()));
+    }
+
+    /**
+     * Returns executor of operations that time out. Sessions of operations that timed out stay in their pools
+     * until the operations finish, therefore there is no need for more threads than the sessions
+     * of the languages that time out.
+     */
+    private ExecutorService getTimeoutExecutor() {
+        ExecutorService executor = timeoutExecutor;
+        if (executor != null) {
+            return executor;
+        }
+        synchronized (this) {
+            if (timeoutExecutor == null) {
+                timeoutExecutor = createTimeoutExecutor();
+            }
+            return timeoutExecutor;
+        }
+    }
+
+    private ExecutorService createTimeoutExecutor() {
+        int languages = PowerShellConfiguration.parseLanguageDurations(configuration.getScriptTimeouts(), "scriptTimeouts").size();
+        int maxThreads = Math.max(1, languages * configuration.getSessionPoolMaxSize());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new DaemonThreadFactory("powershell-connector-script"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void recordHostSuccess(String host) {
+        WinRmHostSelector selector = getSessionOwner().hostSelector;
+        if (selector != null) {
+            selector.recordSuccess(host);
+        }
+    }
+
+    private void recordHostFailure(String host) {
+        WinRmHostSelector selector = getSessionOwner().hostSelector;
+        if (selector != null) {
+            selector.recordFailure(host);
+        }
+    }
+
+    /**
+     * Converts PowerHell exception to ConnId exception. Communication failures are converted
+     * to ConnectorIOException, which causes the session to be discarded.
+     */
+    private RuntimeException processPowerHellException(String message, PowerHellException e) {
+        if (e instanceof PowerHellCommunicationException) {
+            return new ConnectorIOException(message+": "+e.getMessage(), e);
+        }
+        if (e instanceof PowerHellSecurityException) {
+            return new ConnectorSecurityException(message+": "+e.getMessage(), e);
+        }
+        return new ConnectorException(message+": "+e.getMessage(), e);
+    }
+
+    /**
+     * Submits the script for asynchronous execution. The calling thread is not blocked.
+     * The script is executed by executor that is shared by all the connector instances
+     * that use the same hosts. The number of scripts executed on a host is limited
+     * (asyncMaxInFlightScriptsPerHost), the limit is shared by all the connector instances that use the host.
+     * The script is executed on the available host with the lowest number of scripts in flight.
+     * Session pool limits still apply, therefore the session pool should be large enough
+     * for the expected concurrency.
+     *
+     * @return future that completes with the script output or with the exception thrown by the script execution.
+     */
+    public CompletableFuture<Object> runScriptOnResourceAsync(ScriptContext scriptCtx, OperationOptions options) {
+        return getAsyncScriptExecutor().submit(() -> runScriptOnResource(scriptCtx, options));
+    }
+
+    private synchronized AsyncScriptExecutor getAsyncScriptExecutor() {
+        if (asyncScriptExecutor == null) {
+            List<String> endpoints = new ArrayList<>();
+            for (String host : isScriptingLocal() ? Collections.singletonList(LOCAL_HOST) : getWinRmHosts()) {
+                endpoints.add(getHostEndpoint(host));
+            }
+            asyncScriptExecutor = AsyncScriptExecutor.acquire(endpoints, configuration.getAsyncMaxInFlightScriptsPerHost(),
+                    configuration.getAsyncQueueCapacity());
+        }
+        return asyncScriptExecutor;
+    }
+
+    /**
+     * Executes the script and passes its output to the consumer in chunks, as it is transferred from the resource.
+     * The complete output is never held in memory. Supported only for PowerShell-based languages.
+     * If structured output is requested, the consumer receives JSON text (which can be parsed by {@link JsonOutputParser}).
+     */
+    public void runScriptOnResource(ScriptContext scriptCtx, OperationOptions options, ScriptOutputConsumer consumer) {
+        String scriptLanguage = scriptCtx.getScriptLanguage();
+        if (!PowerShellScriptUtil.isPowerShellLanguage(scriptLanguage)) {
+            throw new UnsupportedOperationException("Streamed output is not supported for "+scriptLanguage+" language");
+        }
+        boolean json = hasOption(options, OPTION_SCRIPT_OUTPUT_JSON) || hasScriptPrefix(scriptCtx, SCRIPT_PREFIX_JSON);
+        boolean highPriority = hasOption(options, OPTION_SCRIPT_HIGH_PRIORITY) || hasScriptPrefix(scriptCtx, SCRIPT_PREFIX_HIGH_PRIORITY);
+        ScriptContext effectiveScriptCtx = stripScriptPrefixes(scriptCtx);
+        executeInSession(scriptLanguage, highPriority, OperationKind.STREAMED, session -> {
+            runScriptStreamed(session, effectiveScriptCtx, consumer, json);
+            return null;
+        });
+    }
+
+    /**
+     * Creates consumer for {@link #runScriptOnResource(ScriptContext, OperationOptions, ScriptOutputConsumer)}
+     * that keeps the output in memory up to scriptOutputSpillThreshold characters and writes longer output
+     * to a local temporary file (in scriptOutputSpillDirectory). The caller owns the file and has to delete it.
+     */
+    public SpillingOutputConsumer createSpillingOutputConsumer() {
+        String spillDirectory = configuration.getScriptOutputSpillDirectory();
+        return new SpillingOutputConsumer(configuration.getScriptOutputSpillThreshold(),
+                spillDirectory == null ? null : new File(spillDirectory));
+    }
+
+    private void deleteSpilledFile(File file) {
+        spilledFiles.remove(file);
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Cannot delete spilled script output {0}", file);
+        }
+    }
+
+    private void runScriptStreamed(PowerHellSession session, ScriptContext scriptCtx, ScriptOutputConsumer consumer, boolean json) {
+        String scriptLanguage = session.getScriptLanguage();
         String command = scriptCtx.getScriptText();
-        OperationLog.log("{0} Script REQ {1}: {2}", winRmHost, scriptLanguage, command);
-        LOG.ok("Executing {0} script on {0} as {1} using {2}: {3}", scriptLanguage, winRmHost, winRmUsername, powerHell.getImplementationName(), command);
+        auditLog.log("{0} Script REQ {1} (streamed): {2}", session.getHost(), scriptLanguage, command);
+        if (LOG.isOk()) {
+            LOG.ok("Executing streamed {0} script on {1} as {2} using {3}: {4}", scriptLanguage, session.getHost(), winRmUsername,
+                    session.getPowerHell().getImplementationName(), OperationLog.truncate(command, auditLog.getMaxLength()));
+        }
+
+        String functionName = null;
+        String effectiveCommand = command;
+        if (isFunctionRegistryApplicable(session, scriptCtx)) {
+            functionName = ScriptFunctionRegistry.getFunctionName(command);
+            effectiveCommand = session.getFunctionRegistry().getInvocationCommand(functionName, command);
+        }
+
+        long length;
+        try {
+
+            session.recordCommand();
+            LargeArgumentTransfer transfer = transferLargeArguments(session, scriptCtx.getScriptArguments());
+            effectiveCommand = transfer == null
+                    ? PowerShellScriptUtil.applyArguments(effectiveCommand, scriptCtx.getScriptArguments(), getArgumentStyle())
+                    : transfer.getCommand(effectiveCommand, getArgumentStyle());
+            ScriptOutputStreamer streamer = new ScriptOutputStreamer(session, configuration.getScriptOutputChunkSize());
+            length = streamer.run(json ? toJsonCommand(effectiveCommand) : effectiveCommand, consumer);
+            session.markVerified();
+            if (functionName != null) {
+                session.getFunctionRegistry().markDefined(functionName);
+            }
+
+        } catch (PowerHellException e) {
+            auditLog.error("{0} Script ERR {1}", session.getHost(), e.getMessage());
+            throw processPowerHellException("Script execution failed", e);
+        }
+
+        recordOutputSize(session, length);
+        auditLog.log("{0} Script RES {1}", session.getHost(), length == 0 ? "no output" : ("output "+length+" bytes (streamed)"));
+    }
+
+    /**
+     * @param json if set to true then the output is converted to JSON
+     */
+    private String runScript(PowerHellSession session, ScriptContext scriptCtx, boolean json) {
+        String scriptLanguage = session.getScriptLanguage();
+        PowerHell powerHell = session.getPowerHell();
+
+        String command = scriptCtx.getScriptText();
+        auditLog.log("{0} Script REQ {1}: {2}", session.getHost(), scriptLanguage, command);
+        if (LOG.isOk()) {
+            LOG.ok("Executing {0} script on {1} as {2} using {3}: {4}", scriptLanguage, session.getHost(), winRmUsername,
+                    powerHell.getImplementationName(), OperationLog.truncate(command, auditLog.getMaxLength()));
+        }
+
+        String functionName = null;
+        String effectiveCommand = command;
+        if (isFunctionRegistryApplicable(session, scriptCtx)) {
+            functionName = ScriptFunctionRegistry.getFunctionName(command);
+            effectiveCommand = session.getFunctionRegistry().getInvocationCommand(functionName, command);
+        }
 
         String output;
         try {
 
-            output = powerHell.runCommand(command, scriptCtx.getScriptArguments());
+            session.recordCommand();
+            Map<String,Object> arguments = scriptCtx.getScriptArguments();
+            LargeArgumentTransfer transfer = transferLargeArguments(session, arguments);
+            if (transfer != null) {
+                // All the arguments are applied by the transfer
+                effectiveCommand = transfer.getCommand(effectiveCommand, getArgumentStyle());
+                arguments = null;
+            }
+            if (json) {
+                // Arguments have to be applied inside the conversion
+                effectiveCommand = toJsonCommand(PowerShellScriptUtil.applyArguments(effectiveCommand, arguments, getArgumentStyle()));
+                arguments = null;
+            }
+            output = session.runCommand(effectiveCommand, arguments);
+            session.markVerified();
+            if (functionName != null) {
+                session.getFunctionRegistry().markDefined(functionName);
+            }
 
         } catch (PowerHellException e) {
-            OperationLog.error("{0} Script ERR {1}", winRmHost, e.getMessage());
-            throw new ConnectorException("Script execution failed: "+e.getMessage(), e);
+            auditLog.error("{0} Script ERR {1}", session.getHost(), e.getMessage());
+            throw processPowerHellException("Script execution failed", e);
         }
 
-        OperationLog.log("{0} Script RES {1}", winRmHost, (output==null||output.isEmpty())?"no output":("output "+output.length()+" chars"));
-        LOG.ok("Script returned output\n{0}", output);
+        recordOutputSize(session, output == null ? 0 : output.length());
+        auditLog.log("{0} Script RES {1}", session.getHost(), (output==null||output.isEmpty())?"no output":("output "+output.length()+" chars"));
+        if (LOG.isOk()) {
+            LOG.ok("Script returned output\n{0}", OperationLog.truncate(output, auditLog.getMaxLength()));
+        }
 
         return output;
     }
 
-    private PowerHell getPowerHell(String scriptLanguage) {
+    /**
+     * Returns command that converts output of the command (with arguments already applied) to compact JSON.
+     */
+    private String toJsonCommand(String command) {
+        return "& {\n" + command + "\n} | ConvertTo-Json -Compress -Depth " + configuration.getScriptOutputJsonDepth();
+    }
+
+    /**
+     * Transfers large arguments to the session, if needed. Arguments can be transferred only to long-running
+     * sessions, other sessions do not keep any state between the commands.
+     *
+     * @return the transfer, or null if no argument was transferred.
+     */
+    private LargeArgumentTransfer transferLargeArguments(PowerHellSession session, Map<String,Object> arguments)
+            throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+        if (configuration.getLargeArgumentThreshold() <= 0 || arguments == null || arguments.isEmpty()
+                || !PowerShellScriptUtil.isLoopLanguage(session.getScriptLanguage())) {
+            return null;
+        }
+        LargeArgumentTransfer transfer = new LargeArgumentTransfer(arguments, configuration.getLargeArgumentThreshold(),
+                configuration.getLargeArgumentChunkSize(), configuration.isLargeArgumentCompressionEnabled());
+        if (!transfer.isNeeded()) {
+            return null;
+        }
+        auditLog.log("{0} Script REQ transfer of large arguments: {1}", session.getHost(), transfer);
+        boolean transferred = false;
+        try {
+            for (String transferCommand : transfer.getTransferCommands()) {
+                session.runCommand(transferCommand, null);
+            }
+            transferred = true;
+        } finally {
+            if (!transferred) {
+                // The session goes back to the pool, the chunks transferred so far must not stay in it
+                cleanupLargeArguments(session, transfer);
+            }
+        }
+        return transfer;
+    }
+
+    private void cleanupLargeArguments(PowerHellSession session, LargeArgumentTransfer transfer) {
+        try {
+            session.runCommand(transfer.getCleanupCommand(), null);
+        } catch (PowerHellException | RuntimeException e) {
+            // Not fatal, the transfer failure is reported. Broken session is discarded anyway.
+            LOG.warn("Cleanup of large arguments in {0} failed: {1}", session, e.getMessage());
+        }
+    }
+
+    /**
+     * Scripts can be registered as functions only in long-running sessions. The arguments must be passed
+     * as variables, as appended dashed arguments would be passed to the function instead of the script commands.
+     */
+    private boolean isFunctionRegistryApplicable(PowerHellSession session, ScriptContext scriptCtx) {
+        if (!configuration.isScriptFunctionRegistryEnabled()) {
+            return false;
+        }
+        if (!PowerShellScriptUtil.isLoopLanguage(session.getScriptLanguage())) {
+            return false;
+        }
+        if (scriptCtx.getScriptText() == null || scriptCtx.getScriptText().length() < configuration.getScriptFunctionMinLength()) {
+            return false;
+        }
+        Map<String,Object> arguments = scriptCtx.getScriptArguments();
+        return arguments == null || arguments.isEmpty() || getArgumentStyle() == ArgumentStyle.VARIABLES;
+    }
+
+    /**
+     * Executes several scripts in as few round trips as possible. All the scripts must use
+     * the same PowerShell-based script language (powershell, powerhell or exchange).
+     * The scripts are framed into a single script (see {@link ScriptBatch}) and executed
+     * in one session. Failure of one script does not stop execution of the following scripts.
+     *
+     * The batch is executed with high priority if it is requested by the options or by a prefix of any script.
+     * The batch is retried after communication failures only if it is idempotent as a whole: if it is requested
+     * by the options or if all the scripts are idempotent (or cacheable). Otherwise the scripts that were already
+     * executed would be executed again.
+     *
+     * @return one result for each script context, in the same order.
+     */
+    public List<ScriptBatchResult> runScriptBatchOnResource(List<ScriptContext> scriptCtxs, OperationOptions options) {
+        if (scriptCtxs.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String scriptLanguage = scriptCtxs.get(0).getScriptLanguage();
+        boolean idempotent = true;
+        boolean anyHighPriority = false;
+        List<ScriptContext> effectiveScriptCtxs = new ArrayList<>(scriptCtxs.size());
+        for (ScriptContext scriptCtx : scriptCtxs) {
+            if (!Objects.equals(scriptLanguage, scriptCtx.getScriptLanguage())) {
+                throw new IllegalArgumentException("All scripts in a batch must use the same language, but got "+scriptLanguage+" and "+scriptCtx.getScriptLanguage());
+            }
+            idempotent = idempotent && (hasScriptPrefix(scriptCtx, SCRIPT_PREFIX_IDEMPOTENT) || hasScriptPrefix(scriptCtx, SCRIPT_PREFIX_CACHEABLE));
+            anyHighPriority = anyHighPriority || hasScriptPrefix(scriptCtx, SCRIPT_PREFIX_HIGH_PRIORITY);
+            effectiveScriptCtxs.add(stripScriptPrefixes(scriptCtx));
+        }
+        idempotent = idempotent || hasOption(options, OPTION_SCRIPT_IDEMPOTENT) || hasOption(options, OPTION_SCRIPT_CACHEABLE);
+        boolean highPriority = anyHighPriority || hasOption(options, OPTION_SCRIPT_HIGH_PRIORITY);
+        if (!PowerShellScriptUtil.isPowerShellLanguage(scriptLanguage)) {
+            throw new UnsupportedOperationException("Script batches are not supported for "+scriptLanguage+" language");
+        }
+        // Long-running sessions read the commands from a stream. Other sessions pass the command
+        // on the command line (as EncodedCommand), which is limited in length.
+        int maxLength = PowerShellScriptUtil.isLoopLanguage(scriptLanguage) ? 0 : MAX_COMMAND_LINE_BATCH_LENGTH;
+        List<ScriptBatch> batches = ScriptBatch.split(effectiveScriptCtxs, configuration.getScriptBatchSize(), maxLength, getArgumentStyle());
+        Supplier<List<ScriptBatchResult>> execution = () -> executeInSession(scriptLanguage, highPriority, OperationKind.BATCH, session -> {
+            List<ScriptBatchResult> results = new ArrayList<>(scriptCtxs.size());
+            for (ScriptBatch batch : batches) {
+                results.addAll(runScriptBatch(session, batch));
+            }
+            return results;
+        });
+        if (idempotent) {
+            return executeWithRetry(execution);
+        }
+        return execution.get();
+    }
+
+    private List<ScriptBatchResult> runScriptBatch(PowerHellSession session, ScriptBatch batch) {
+        String command = batch.getScriptText(getArgumentStyle());
+        auditLog.log("{0} Script REQ {1}: batch of {2} scripts", session.getHost(), session.getScriptLanguage(), batch.size());
+        if (LOG.isOk()) {
+            LOG.ok("Executing batch of {0} {1} scripts on {2} as {3}:\n{4}", batch.size(), session.getScriptLanguage(), session.getHost(),
+                    winRmUsername, OperationLog.truncate(command, auditLog.getMaxLength()));
+        }
+
+        String output;
+        try {
+
+            session.recordCommand();
+            // Arguments are already applied to the scripts in the batch
+            output = session.runCommand(command, null);
+
+        } catch (PowerHellException e) {
+            auditLog.error("{0} Script ERR {1}", session.getHost(), e.getMessage());
+            throw processPowerHellException("Script batch execution failed", e);
+        }
+
+        recordOutputSize(session, output == null ? 0 : output.length());
+        List<ScriptBatchResult> results = batch.parseOutput(output);
+        auditLog.log("{0} Script RES batch of {1} scripts, output {2} chars", session.getHost(), batch.size(), output == null ? 0 : output.length());
+        return results;
+    }
+
+    /**
+     * @param host host of the session, null if any host can be used
+     */
+    private PowerHellSession checkoutSession(PowerHellPool pool, boolean highPriority, String host) {
+        getSessionOwner().waitForWarmUp(pool.getScriptLanguage());
+        return pool.checkout(highPriority, host);
+    }
+
+    /**
+     * Returns the hosts that can be used for new sessions, by their endpoints.
+     * All the hosts are returned if all of them are ejected, as one of them may be tried.
+     */
+    private Map<String,String> getAvailableHostsByEndpoint() {
+        WinRmHostSelector selector = getSessionOwner().hostSelector;
+        Map<String,String> allHosts = new LinkedHashMap<>();
+        Map<String,String> availableHosts = new LinkedHashMap<>();
+        for (String host : isScriptingLocal() ? Collections.singletonList(LOCAL_HOST) : getWinRmHosts()) {
+            String endpoint = getHostEndpoint(host);
+            allHosts.put(endpoint, host);
+            if (selector == null || selector.isAvailable(host)) {
+                availableHosts.put(endpoint, host);
+            }
+        }
+        return availableHosts.isEmpty() ? allHosts : availableHosts;
+    }
+
+    private PowerHellPool getPowerHellPool(String scriptLanguage) {
         if (scriptLanguage == null) {
             throw new IllegalArgumentException("Script language not specified");
         }
-        PowerHell powerHell = powerHellMap.get(scriptLanguage);
-        if (powerHell == null) {
-            powerHell = createPowerHell(scriptLanguage);
-            try {
-                powerHell.connect();
-            } catch (PowerHellExecutionException e) {
-                throw new ConnectorException("Cannot connect PowerHell "+powerHell.getImplementationName()+": "+e.getMessage(), e);
-            } catch (PowerHellSecurityException e) {
-                throw new ConnectorSecurityException("Cannot connect PowerHell "+powerHell.getImplementationName()+": "+e.getMessage(), e);
-            } catch (PowerHellCommunicationException e) {
-                throw new ConnectorIOException("Cannot connect PowerHell "+powerHell.getImplementationName()+": "+e.getMessage(), e);
+        if (sharedSessionOwner != null) {
+            return sharedSessionOwner.getPowerHellPool(scriptLanguage);
+        }
+        return powerHellPoolMap.computeIfAbsent(scriptLanguage, this::createPowerHellPool);
+    }
+
+    private PowerHellPool createPowerHellPool(String scriptLanguage) {
+        PowerHellPool pool = new PowerHellPool(scriptLanguage, this::createPooledSession,
+                configuration.getSessionPoolMinSize(), configuration.getSessionPoolMaxSize(),
+                configuration.getSessionPoolMaxWait());
+        pool.setHighPriorityReservedSize(configuration.getSessionPoolHighPriorityReserved());
+        pool.setRecyclePolicy(new SessionRecyclePolicy(configuration.getSessionRecycleMaxCommands(),
+                configuration.getSessionRecycleMaxAge(), configuration.getSessionRecycleLatencyFactor()));
+        // Sessions of ejected hosts are not used, the requests fail fast or they try another host
+        pool.setCheckoutValidator(session -> {
+            WinRmHostSelector selector = hostSelector;
+            return selector == null || selector.isAvailable(session.getHost());
+        });
+        if (configuration.isMetricsEnabled()) {
+            getMetrics().registerPool(pool);
+        }
+        return pool;
+    }
+
+    private void closePowerHellPools() {
+        ConnectorMetrics poolMetrics;
+        synchronized (this) {
+            poolMetrics = metrics;
+        }
+        for (PowerHellPool pool: powerHellPoolMap.values()) {
+            pool.close();
+            if (poolMetrics != null) {
+                poolMetrics.unregisterPool(pool);
             }
-            powerHellMap.put(scriptLanguage, powerHell);
         }
-        return powerHell;
+        powerHellPoolMap.clear();
+    }
+
+    /**
+     * Creates session for the session pool. The host is selected if it is not specified.
+     */
+    private PowerHellSession createPooledSession(String scriptLanguage, String host) {
+        initWinRm();
+        if (host == null) {
+            host = isScriptingLocal() ? LOCAL_HOST : hostSelector.selectHost();
+        }
+        return createPowerHellSession(scriptLanguage, host);
     }
 
-    private PowerHell createPowerHell(String scriptLanguage) {
-        if (!isWinRmInitialized) {
-            initWinRm();
+    private PowerHellSession createPowerHellSession(String scriptLanguage, String host) {
+        PowerHell powerHell = createPowerHell(scriptLanguage, host);
+        PowerHellSession session = new PowerHellSession(scriptLanguage, host, powerHell, getBus(host));
+        WinRmHostSelector selector = hostSelector;
+        ScriptStatistics statistics = getScriptStatistics(host, scriptLanguage);
+        long startTimestamp = System.currentTimeMillis();
+        try {
+            session.connect();
+        } catch (PowerHellExecutionException e) {
+            recordConnectFailure(statistics);
+            throw new ConnectorException("Cannot connect PowerHell "+powerHell.getImplementationName()+": "+e.getMessage(), e);
+        } catch (PowerHellSecurityException e) {
+            recordConnectFailure(statistics);
+            throw new ConnectorSecurityException("Cannot connect PowerHell "+powerHell.getImplementationName()+": "+e.getMessage(), e);
+        } catch (PowerHellCommunicationException e) {
+            recordConnectFailure(statistics);
+            recordHostFailure(host);
+            throw new ConnectorIOException("Cannot connect PowerHell "+powerHell.getImplementationName()+" to "+host+": "+e.getMessage(), e);
+        }
+        if (statistics != null) {
+            statistics.recordConnect(System.currentTimeMillis() - startTimestamp);
+        }
+        if (selector != null) {
+            selector.sessionCreated(host);
+            session.setDisconnectListener(() -> selector.sessionClosed(host));
+        }
+        return session;
+    }
+
+    private void recordConnectFailure(ScriptStatistics statistics) {
+        if (statistics != null) {
+            statistics.recordConnectFailure();
+        }
+    }
+
+    /**
+     * Returns statistics for the host and script language, or null if metrics are not enabled
+     * or the session owner was disposed.
+     */
+    private ScriptStatistics getScriptStatistics(String host, String scriptLanguage) {
+        if (!configuration.isMetricsEnabled()) {
+            return null;
         }
+        return getSessionOwner().getMetrics().getScriptStatistics(host, scriptLanguage);
+    }
+
+    /**
+     * Returns metrics of this session owner. The metrics are scoped to the owner, so that the statistics
+     * of different resources are not merged, and they are closed when the owner is disposed.
+     * Disposed instance returns no-op metrics, so late operations do not register new MBeans
+     * (closed metrics ignore the registrations that race with the disposal).
+     * The metrics are created once, then they are returned without locking.
+     */
+    private ConnectorMetrics getMetrics() {
+        if (disposed) {
+            return ConnectorMetrics.NO_OP;
+        }
+        ConnectorMetrics current = metrics;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (disposed) {
+                return ConnectorMetrics.NO_OP;
+            }
+            if (metrics == null) {
+                metrics = new ConnectorMetrics();
+            }
+            return metrics;
+        }
+    }
+
+    private void recordOutputSize(PowerHellSession session, long size) {
+        ScriptStatistics statistics = getScriptStatistics(session.getHost(), session.getScriptLanguage());
+        if (statistics != null) {
+            statistics.recordOutputSize(size);
+        }
+    }
+
+    private Bus getBus(String host) {
+        return busMap.get(host);
+    }
+
+    private PowerHell createPowerHell(String scriptLanguage, String host) {
+        initWinRm();
         PowerHell powerHell;
         switch (scriptLanguage) {
             case PowerShellConfiguration.SCRIPT_LANGUAGE_CMD:
-                powerHell = createCmdPowerHell();
+                powerHell = createCmdPowerHell(host);
                 break;
             case PowerShellConfiguration.SCRIPT_LANGUAGE_POWERSHELL:
-                powerHell = createPowershellPowerHell();
+                powerHell = createPowershellPowerHell(host);
                 break;
             case PowerShellConfiguration.SCRIPT_LANGUAGE_EXCHANGE:
-                powerHell = createLoopPowerHell(EXCHANGE_INIT_SCRIPT);
+                powerHell = createLoopPowerHell(host, EXCHANGE_INIT_SCRIPT);
                 break;
             case PowerShellConfiguration.SCRIPT_LANGUAGE_POWERHELL:
-                powerHell = createLoopPowerHell(null);
+                powerHell = createLoopPowerHell(host, null);
                 break;
             default:
                 throw new IllegalArgumentException("Unknown script language "+scriptLanguage);
@@ -165,10 +1375,10 @@ public class PowerShellConnector implements PoolableConnector, TestOp, ScriptOnR
         return powerHell;
     }
 
-    private PowerHell createCmdPowerHell() {
+    private PowerHell createCmdPowerHell(String host) {
         if (isScriptingWinRm()) {
             PowerHellWinRmExecImpl powerHell = new PowerHellWinRmExecImpl();
-            setWinRmParameters(powerHell);
+            setWinRmParameters(powerHell, host);
             return powerHell;
         } else if (isScriptingLocal()) {
             PowerHellLocalExecImpl powerHell = new PowerHellLocalExecImpl();
@@ -179,10 +1389,10 @@ public class PowerShellConnector implements PoolableConnector, TestOp, ScriptOnR
         }
     }
 
-    private PowerHell createPowershellPowerHell() {
+    private PowerHell createPowershellPowerHell(String host) {
         if (isScriptingWinRm()) {
             PowerHellWinRmExecPowerShellImpl powerHell = new PowerHellWinRmExecPowerShellImpl();
-            setWinRmParameters(powerHell);
+            setWinRmParameters(powerHell, host);
             return powerHell;
         } else if (isScriptingLocal()) {
             PowerHellLocalExecPowerShellImpl powerHell = new PowerHellLocalExecPowerShellImpl();
@@ -193,14 +1403,25 @@ public class PowerShellConnector implements PoolableConnector, TestOp, ScriptOnR
         }
     }
 
-    private PowerHell createLoopPowerHell(String initSctip) {
+    private PowerHell createLoopPowerHell(String host, String initSctip) {
         if (isScriptingWinRm()) {
             PowerHellWinRmLoopImpl powerHell = new PowerHellWinRmLoopImpl();
-            setWinRmParameters(powerHell);
+            setWinRmParameters(powerHell, host);
             powerHell.setInitScriptlet(initSctip);
             return powerHell;
         } else if (isScriptingLocal()) {
-            throw new UnsupportedOperationException("PowerHell loop is not supported for local script execution mechanism");
+            PowerHellLocalLoopImpl powerHell = new PowerHellLocalLoopImpl();
+            String[] shellCommand = configuration.getLocalShellCommand();
+            if (shellCommand == null || shellCommand.length == 0) {
+                shellCommand = DEFAULT_LOCAL_SHELL_COMMAND;
+            }
+            powerHell.setShellCommand(Arrays.asList(shellCommand));
+            if (configuration.getLocalShellFraming() != null) {
+                powerHell.setFraming(configuration.getLocalShellFraming());
+            }
+            powerHell.setArgumentStyle(getArgumentStyle());
+            powerHell.setInitScriptlet(initSctip);
+            return powerHell;
         } else {
             throw new IllegalArgumentException("Unknown scripting execution mechanism "+configuration.getScriptExecutionMechanism());
         }
@@ -214,11 +1435,11 @@ public class PowerShellConnector implements PoolableConnector, TestOp, ScriptOnR
         return PowerShellConfiguration.SCRIPT_EXECUTION_MECHANISM_LOCAL.equals(configuration.getScriptExecutionMechanism());
     }
 
-    private void setWinRmParameters(AbstractPowerHellWinRmImpl powerHell) {
+    private void setWinRmParameters(AbstractPowerHellWinRmImpl powerHell, String host) {
         setCommonParameters(powerHell);
         String winRmDomain = configuration.getWinRmDomain();
         powerHell.setDomainName(winRmDomain);
-        powerHell.setEndpointUrl(getWinRmEndpointUrl());
+        powerHell.setEndpointUrl(getWinRmEndpointUrl(host));
         powerHell.setUserName(winRmUsername);
         powerHell.setPassword(getWinRmPassword());
         powerHell.setAuthenticationScheme(getAuthenticationScheme());
@@ -266,13 +1487,35 @@ public class PowerShellConnector implements PoolableConnector, TestOp, ScriptOnR
         throw new ConfigurationException("Unknown authentication scheme: "+configuration.getWinRmAuthenticationScheme());
     }
 
+    /**
+     * Initializes WinRM state once. Later calls (on every new session) return without locking.
+     */
     private void initWinRm() {
-        if (!busInitialized) {
-            initBus();
-            busInitialized = true;
+        if (isWinRmInitialized) {
+            return;
         }
+        synchronized (this) {
+            if (!isWinRmInitialized) {
+                initWinRmLocked();
+            }
+        }
+    }
+
+    private void initWinRmLocked() {
         winRmUsername = getWinRmUsername();
-        winRmHost = getWinRmHost();
+        if (isScriptingWinRm()) {
+            List<String> hosts = getWinRmHosts();
+            hostSelector = new WinRmHostSelector(hosts, this::getWinRmEndpointUrl, configuration.getHostEjectionPeriod(),
+                    configuration.getCircuitBreakerFailureThreshold());
+            for (String host : hosts) {
+                if (!busKeyMap.containsKey(host)) {
+                    Map<String,Object> busProperties = getBusProperties();
+                    String busKey = WinRmBusRegistry.createKey(getWinRmEndpointUrl(host) + "|" + winRmUsername, busProperties);
+                    busMap.put(host, WinRmBusRegistry.acquire(busKey, busProperties));
+                    busKeyMap.put(host, busKey);
+                }
+            }
+        }
 
         if (configuration.isDisableCertificateChecks()) {
             hostnameVerifier = new AllowAllHostnameVerifier();
@@ -305,72 +1548,92 @@ public class PowerShellConnector implements PoolableConnector, TestOp, ScriptOnR
 
 
 
+    /**
+     * Pings all the hosts. Each host is pinged using a separate short-lived session.
+     */
     private void pingScripting() {
-        String command = PING_COMMAND;
-        PowerHell powerHell = getPowerHell(PowerShellConfiguration.SCRIPT_LANGUAGE_CMD);
+        initWinRm();
+        List<String> hosts = isScriptingLocal() ? Collections.singletonList(LOCAL_HOST) : hostSelector.getHosts();
+        for (String host : hosts) {
+            PowerHellSession session = createPowerHellSession(PowerShellConfiguration.SCRIPT_LANGUAGE_CMD, host);
+            try {
+                pingScripting(session, PING_COMMAND);
+            } finally {
+                session.disconnect();
+            }
+            // Host is reachable, it can be used again if it was ejected
+            recordHostSuccess(host);
+        }
+    }
 
-        OperationLog.log("{0} Script REQ ping cmd: {1}", winRmHost, command);
-        LOG.ok("Executing ping cmd script on {0} as {1}: {2}", winRmHost, winRmUsername, command);
+    private void pingScripting(PowerHellSession session, String command) {
+        String host = session.getHost();
+
+        auditLog.log("{0} Script REQ ping cmd: {1}", host, command);
+        LOG.ok("Executing ping cmd script on {0} as {1}: {2}", host, winRmUsername, command);
 
         try {
 
-            String output = powerHell.runCommand(PING_COMMAND, null);
+            String output = session.runCommand(command, null);
 
-            OperationLog.log("{0} Script RES ping: {1}", winRmHost, output);
+            auditLog.log("{0} Script RES ping: {1}", host, output);
 
         } catch (PowerHellExecutionException e) {
-            OperationLog.error("{0} Script ERR ping status={1}: {2}", winRmHost, e.getExitCode(), e.getMessage());
+            auditLog.error("{0} Script ERR ping status={1}: {2}", host, e.getExitCode(), e.getMessage());
             LOG.error("Script ping error, exit status = {0}\nOUT:\n{1}\nERR:\n{2}", e.getExitCode(), e.getStdout(), e.getStderr());
             throw new ConnectorException("Ping script execution failed (status code "+e.getExitCode()+"): "+e.getMessage(), e);
         } catch (PowerHellSecurityException | PowerHellCommunicationException e) {
-            OperationLog.error("{0} Script ERR ping: {2}", winRmHost, e.getMessage());
+            auditLog.error("{0} Script ERR ping: {1}", host, e.getMessage());
             throw new ConnectorException("Ping script execution failed: "+e.getMessage(), e);
         }
     }
 
-    private void cleanupScriptingBeforeTest() {
-        for (Map.Entry<String,PowerHell> entry: powerHellMap.entrySet()) {
-            entry.getValue().disconnect();
-        }
-        powerHellMap.clear();
+    private synchronized void cleanupScriptingBeforeTest() {
+        closePowerHellPools();
         winRmUsername = null;
-        winRmHost = null;
+        if (hostSelector != null) {
+            hostSelector.close();
+            hostSelector = null;
+        }
         hostnameVerifier = null;
         isWinRmInitialized = false;
     }
 
 
-    /*
-     * Init and dispose methods for the CXF bus. These are based on static usage
-     * counter and static default bus. Which means that the bus will be reused by
-     * all the connector instances (even those that have different configuration).
-     * But as  WinRmTool tool creates new WinRmClient for each invocation which
-     * in turn creates a new CXF service then this approach should be safe.
-     * This is the best that we can do as ConnId does not provide any
-     * connector context that we could use to store per-resource bus instance.
+    /**
+     * Bus properties for the HTTP connection pool. There is one bus per endpoint,
+     * therefore the connection pool of the bus is effectively per-endpoint pool.
+     * The properties are applied to the async conduit, which is used for NTLM/CredSSP.
+     *
+     * The properties only limit the size of the pool and the lifetime of idle connections.
+     * Whether a pooled connection keeps its NTLM/CredSSP authentication for the next requests
+     * depends on the HTTP client and on the WinRM service, it is not guaranteed by these settings.
      */
-    private static synchronized void initBus() {
-        busUsageCount++;
-        LOG.ok("bus init (usage count = {0})", busUsageCount);
-        // make sure that the bus is created here while we are synchronized
-        BusFactory.getDefaultBus(true);
-    }
-
-    private static synchronized void disposeBus() {
-        busUsageCount--;
-        LOG.ok("bus dispose (usage count = {0})", busUsageCount);
-        if (busUsageCount == 0) {
-            Bus bus = BusFactory.getDefaultBus(false);
-            if (bus != null) {
-                LOG.ok("Shutting down WinRm CXF bus {0}", bus);
-                bus.shutdown(true);
-                LOG.ok("Bus shut down");
-            }
+    private Map<String,Object> getBusProperties() {
+        Map<String,Object> properties = new HashMap<>();
+        if (!AuthSchemes.BASIC.equals(getAuthenticationScheme())) {
+            properties.put(BUS_PROPERTY_USE_ASYNC, Boolean.TRUE);
+        }
+        if (configuration.getWinRmMaxConnections() > 0) {
+            properties.put(BUS_PROPERTY_MAX_CONNECTIONS, String.valueOf(configuration.getWinRmMaxConnections()));
+            // There is just one endpoint for each bus
+            properties.put(BUS_PROPERTY_MAX_PER_HOST_CONNECTIONS, String.valueOf(configuration.getWinRmMaxConnections()));
+        }
+        if (configuration.getWinRmConnectionIdleTimeout() > 0) {
+            properties.put(BUS_PROPERTY_CONNECTION_MAX_IDLE, String.valueOf(configuration.getWinRmConnectionIdleTimeout()));
         }
+        return properties;
     }
 
-    private String getWinRmHost() {
-        return configuration.getWinRmHost();
+    /**
+     * Returns list of WinRM hosts. The winRmHosts property takes precedence over winRmHost.
+     */
+    private List<String> getWinRmHosts() {
+        String[] winRmHosts = configuration.getWinRmHosts();
+        if (winRmHosts != null && winRmHosts.length > 0) {
+            return Arrays.asList(winRmHosts);
+        }
+        return Collections.singletonList(configuration.getWinRmHost());
     }
 
     private String getWinRmUsername() {
@@ -387,7 +1650,14 @@ public class PowerShellConnector implements PoolableConnector, TestOp, ScriptOnR
         return new String(accessor.getClearChars());
     }
 
-    private String getWinRmEndpointUrl() {
+    /**
+     * Returns endpoint of the host (URL including scheme and port), which identifies the host across connector instances.
+     */
+    private String getHostEndpoint(String host) {
+        return isScriptingLocal() ? LOCAL_HOST : getWinRmEndpointUrl(host);
+    }
+
+    private String getWinRmEndpointUrl(String winRmHost) {
         StringBuilder sb = new StringBuilder();
         if (configuration.isWinRmUseHttps()) {
             sb.append("https://");
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.ArgumentStyle;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Utility methods for composing PowerShell script text on the connector side.
+ */
+public class PowerShellScriptUtil {
+
+    /**
+     * Returns PowerShell literal for the value. Strings are single-quoted, therefore
+     * no variable expansion or escape sequences are processed by PowerShell.
+     */
+    public static String toLiteral(Object value) {
+        if (value == null) {
+            return "$null";
+        }
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? "$true" : "$false";
+        }
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        if (value instanceof Collection) {
+            StringBuilder sb = new StringBuilder("@(");
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (!first) {
+                    sb.append(",");
+                }
+                sb.append(toLiteral(item));
+                first = false;
+            }
+            return sb.append(")").toString();
+        }
+        if (value.getClass().isArray() && !(value instanceof char[])) {
+            StringBuilder sb = new StringBuilder("@(");
+            int length = Array.getLength(value);
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    sb.append(",");
+                }
+                sb.append(toLiteral(Array.get(value, i)));
+            }
+            return sb.append(")").toString();
+        }
+        String stringValue = value instanceof char[] ? new String((char[]) value) : value.toString();
+        return quote(stringValue);
+    }
+
+    /**
+     * Single-quotes the string for PowerShell.
+     */
+    public static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            sb.append(c);
+            // PowerShell also treats typographic single quotes as quotes
+            if (c == '\'' || c == '\u2018' || c == '\u2019' || c == '\u201A' || c == '\u201B') {
+                sb.append(c);
+            }
+        }
+        sb.append('\'');
+        return sb.toString();
+    }
+
+    /**
+     * Returns the command with the arguments applied according to the argument style.
+     */
+    public static String applyArguments(String command, Map<String, Object> arguments, ArgumentStyle argumentStyle) {
+        if (arguments == null || arguments.isEmpty()) {
+            return command;
+        }
+        StringBuilder sb = new StringBuilder();
+        if (argumentStyle == ArgumentStyle.VARIABLES) {
+            for (Map.Entry<String, Object> argument : arguments.entrySet()) {
+                sb.append("$").append(argument.getKey()).append(" = ").append(toLiteral(argument.getValue())).append("\n");
+            }
+            sb.append(command);
+        } else {
+            sb.append(command);
+            for (Map.Entry<String, Object> argument : arguments.entrySet()) {
+                if (argumentStyle == ArgumentStyle.PARAMETERS_SLASH) {
+                    sb.append(" /").append(argument.getKey()).append(":");
+                } else {
+                    sb.append(" -").append(argument.getKey()).append(" ");
+                }
+                sb.append(toLiteral(argument.getValue()));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns true for languages that use long-running session (PowerHell loop).
+     */
+    public static boolean isLoopLanguage(String scriptLanguage) {
+        return PowerShellConfiguration.SCRIPT_LANGUAGE_POWERHELL.equals(scriptLanguage)
+                || PowerShellConfiguration.SCRIPT_LANGUAGE_EXCHANGE.equals(scriptLanguage);
+    }
+
+    public static boolean isPowerShellLanguage(String scriptLanguage) {
+        return PowerShellConfiguration.SCRIPT_LANGUAGE_POWERSHELL.equals(scriptLanguage)
+                || PowerShellConfiguration.SCRIPT_LANGUAGE_POWERHELL.equals(scriptLanguage)
+                || PowerShellConfiguration.SCRIPT_LANGUAGE_EXCHANGE.equals(scriptLanguage);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.ArgumentStyle;
+import org.identityconnectors.framework.common.objects.ScriptContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Several PowerShell scripts framed into a single script, so they can be executed in one round trip.
+ *
+ * Each script is executed in its own script block with $ErrorActionPreference set to 'Stop',
+ * therefore a failure of one script is reported as an error of that script and the
+ * following scripts are still executed. Output of each script is delimited by marker lines
+ * that contain a random token, so the output of the scripts cannot be mistaken for the markers.
+ */
+public class ScriptBatch {
+
+    private static final String MARKER_BEGIN = "BEGIN";
+    private static final String MARKER_ERROR = "ERROR";
+    private static final String MARKER_END = "END";
+
+    private final List<ScriptContext> scriptContexts;
+    private final String marker;
+
+    public ScriptBatch(List<ScriptContext> scriptContexts) {
+        this.scriptContexts = scriptContexts;
+        this.marker = "#PSBATCH-" + UUID.randomUUID().toString();
+    }
+
+    /**
+     * Splits the scripts into batches of at most maxSize scripts. If maxLength is positive then the length
+     * of the batch script is limited too. Script that is longer than maxLength on its own is put in a batch alone.
+     */
+    public static List<ScriptBatch> split(List<ScriptContext> scriptContexts, int maxSize, int maxLength, ArgumentStyle argumentStyle) {
+        List<ScriptBatch> batches = new ArrayList<>();
+        int start = 0;
+        int length = 0;
+        for (int i = 0; i < scriptContexts.size(); i++) {
+            int scriptLength = maxLength > 0 ? getFramedLength(scriptContexts.get(i), i, argumentStyle) : 0;
+            if (i > start && (i - start >= maxSize || (maxLength > 0 && length + scriptLength > maxLength))) {
+                batches.add(new ScriptBatch(scriptContexts.subList(start, i)));
+                start = i;
+                length = 0;
+            }
+            length += scriptLength;
+        }
+        if (start < scriptContexts.size()) {
+            batches.add(new ScriptBatch(scriptContexts.subList(start, scriptContexts.size())));
+        }
+        return batches;
+    }
+
+    /**
+     * Returns length of the script framed for the batch. All the markers have the same length,
+     * therefore the length does not depend on the actual marker.
+     */
+    private static int getFramedLength(ScriptContext scriptCtx, int index, ArgumentStyle argumentStyle) {
+        StringBuilder sb = new StringBuilder();
+        appendScript(sb, "#PSBATCH-" + new UUID(0, 0).toString(), index, scriptCtx, argumentStyle);
+        return sb.length();
+    }
+
+    public int size() {
+        return scriptContexts.size();
+    }
+
+    public String getScriptText(ArgumentStyle argumentStyle) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < scriptContexts.size(); i++) {
+            appendScript(sb, marker, i, scriptContexts.get(i), argumentStyle);
+        }
+        return sb.toString();
+    }
+
+    private static void appendScript(StringBuilder sb, String marker, int index, ScriptContext scriptCtx, ArgumentStyle argumentStyle) {
+        String command = PowerShellScriptUtil.applyArguments(scriptCtx.getScriptText(), scriptCtx.getScriptArguments(), argumentStyle);
+        sb.append("Write-Output '").append(markerLine(marker, MARKER_BEGIN, index)).append("'\n");
+        sb.append("try {\n");
+        sb.append("& {\n");
+        sb.append("$ErrorActionPreference = 'Stop'\n");
+        sb.append(command).append("\n");
+        sb.append("} | Out-String\n");
+        sb.append("} catch {\n");
+        sb.append("Write-Output '").append(markerLine(marker, MARKER_ERROR, index)).append("'\n");
+        sb.append("Write-Output ($_ | Out-String)\n");
+        sb.append("}\n");
+        sb.append("Write-Output '").append(markerLine(marker, MARKER_END, index)).append("'\n");
+    }
+
+    /**
+     * Splits the output of the batch script into results of individual scripts.
+     * Scripts that were not reached (e.g. because the whole batch was interrupted) are reported as errors.
+     */
+    public List<ScriptBatchResult> parseOutput(String output) {
+        List<ScriptBatchResult> results = new ArrayList<>(scriptContexts.size());
+        for (int i = 0; i < scriptContexts.size(); i++) {
+            results.add(null);
+        }
+        if (output != null) {
+            int index = -1;
+            boolean error = false;
+            StringBuilder itemOutput = new StringBuilder();
+            for (String line : output.split("\r?\n", -1)) {
+                if (line.startsWith(marker + ":")) {
+                    String[] parts = line.trim().split(":");
+                    int markerIndex = Integer.parseInt(parts[2]);
+                    switch (parts[1]) {
+                        case MARKER_BEGIN:
+                            index = markerIndex;
+                            error = false;
+                            itemOutput.setLength(0);
+                            break;
+                        case MARKER_ERROR:
+                            error = true;
+                            itemOutput.setLength(0);
+                            break;
+                        case MARKER_END:
+                            String text = itemOutput.toString();
+                            results.set(markerIndex, error ? ScriptBatchResult.error(text.trim()) : ScriptBatchResult.success(text));
+                            index = -1;
+                            itemOutput.setLength(0);
+                            break;
+                        default:
+                            throw new IllegalStateException("Unknown batch marker "+line);
+                    }
+                } else if (index >= 0) {
+                    if (itemOutput.length() > 0) {
+                        itemOutput.append("\n");
+                    }
+                    itemOutput.append(line);
+                }
+            }
+        }
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) == null) {
+                results.set(i, ScriptBatchResult.error("Script was not executed, the batch was interrupted"));
+            }
+        }
+        return results;
+    }
+
+    private static String markerLine(String marker, String type, int index) {
+        return marker + ":" + type + ":" + index;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import java.io.Serializable;
+
+/**
+ * Result of a single script in a script batch.
+ * Either the output or the error message is set.
+ */
+public class ScriptBatchResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String output;
+    private final String errorMessage;
+
+    private ScriptBatchResult(String output, String errorMessage) {
+        this.output = output;
+        this.errorMessage = errorMessage;
+    }
+
+    public static ScriptBatchResult success(String output) {
+        return new ScriptBatchResult(output, null);
+    }
+
+    public static ScriptBatchResult error(String errorMessage) {
+        return new ScriptBatchResult(null, errorMessage);
+    }
+
+    public boolean isSuccess() {
+        return errorMessage == null;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    @Override
+    public String toString() {
+        if (isSuccess()) {
+            return "ScriptBatchResult(success, " + (output == null ? 0 : output.length()) + " chars)";
+        } else {
+            return "ScriptBatchResult(error: " + errorMessage + ")";
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Scripts registered as PowerShell functions in a long-running session.
+ *
+ * The script body is sent to the session only once, as a global function named by hash
+ * of the script text. Subsequent executions of the same script just invoke the function,
+ * so PowerShell does not need to parse and compile the script again. Each session has its
+ * own registry, therefore the functions are defined again automatically when the session
+ * is re-created.
+ *
+ * Script is executed in the function scope instead of the global scope of the session.
+ * Therefore variables created by the script do not survive the script execution.
+ */
+public class ScriptFunctionRegistry {
+
+    private static final String FUNCTION_NAME_PREFIX = "ConnectorScript_";
+    private static final int HASH_LENGTH = 16;
+
+    private final Set<String> definedFunctions = new HashSet<>();
+
+    public static String getFunctionName(String scriptText) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(scriptText.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(FUNCTION_NAME_PREFIX);
+            for (int i = 0; i < HASH_LENGTH / 2; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported: "+e.getMessage(), e);
+        }
+    }
+
+    public synchronized boolean isDefined(String functionName) {
+        return definedFunctions.contains(functionName);
+    }
+
+    public synchronized void markDefined(String functionName) {
+        definedFunctions.add(functionName);
+    }
+
+    /**
+     * Returns command that invokes the script. The command also defines the function if it is not defined yet.
+     * Arguments are expected to be appended to the command (dashed) or prepended as variables.
+     */
+    public String getInvocationCommand(String functionName, String scriptText) {
+        if (isDefined(functionName)) {
+            return functionName;
+        }
+        return "function global:" + functionName + " {\n" + scriptText + "\n}\n" + functionName;
+    }
+
+    public synchronized int size() {
+        return definedFunctions.size();
+    }
+}
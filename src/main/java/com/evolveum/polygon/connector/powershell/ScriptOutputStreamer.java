@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.PowerHellCommunicationException;
+import com.evolveum.powerhell.PowerHellExecutionException;
+import com.evolveum.powerhell.PowerHellSecurityException;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Executes PowerShell script and transfers its output in bounded chunks.
+ *
+ * The PowerHell API returns the complete output of a command as a single String.
+ * Therefore output that does not fit in one chunk is written to a temporary file on the resource
+ * and then read by a sequence of commands, each of them returning one base64-encoded
+ * chunk of the file. Memory used on the connector side is proportional to the chunk
+ * size, not the output size. The first chunk is returned together with the script
+ * execution, so output that fits in one chunk needs just one round trip and no temporary file.
+ * The temporary file is deleted when the last chunk is read.
+ * Error stream of the script is not redirected to the file, therefore failed scripts
+ * are detected in the same way as when the output is not streamed.
+ */
+public class ScriptOutputStreamer {
+
+    private static final Log LOG = Log.getLog(ScriptOutputStreamer.class);
+
+    private final PowerHellSession session;
+    private final int chunkSize;
+    private final String pathExpression;
+
+    public ScriptOutputStreamer(PowerHellSession session, int chunkSize) {
+        this.session = session;
+        this.chunkSize = chunkSize;
+        this.pathExpression = "(Join-Path $env:TEMP 'connector-powershell-" + UUID.randomUUID().toString() + ".out')";
+    }
+
+    /**
+     * Executes the command (with arguments already applied) and passes the output to the consumer.
+     *
+     * @return length of the output in bytes (UTF-8)
+     */
+    public long run(String command, ScriptOutputConsumer consumer) throws PowerHellExecutionException, PowerHellSecurityException, PowerHellCommunicationException {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        boolean complete = false;
+        try {
+            String firstResponse = session.runCommand(createExecuteScript(command), null);
+            if (firstResponse == null) {
+                throw new ConnectorException("No response from streamed script");
+            }
+            firstResponse = firstResponse.trim();
+            int newline = firstResponse.indexOf('\n');
+            String lengthPart = newline < 0 ? firstResponse : firstResponse.substring(0, newline);
+            long length = Long.parseLong(lengthPart.trim());
+            String firstChunk = newline < 0 ? "" : firstResponse.substring(newline + 1);
+            LOG.ok("Streamed script produced {0} bytes of output", length);
+
+            ByteBuffer pending = ByteBuffer.allocate(0);
+            pending = decodeChunk(firstChunk, pending, decoder, consumer, true);
+            for (long offset = chunkSize; offset < length; offset += chunkSize) {
+                boolean last = offset + chunkSize >= length;
+                String chunk = session.runCommand(createReadScript(offset, last), null);
+                pending = decodeChunk(chunk, pending, decoder, consumer, false);
+            }
+            CharBuffer rest = CharBuffer.allocate(16);
+            decoder.decode(pending, rest, true);
+            decoder.flush(rest);
+            rest.flip();
+            if (rest.hasRemaining()) {
+                consumer.consume(rest.toString());
+            }
+            complete = true;
+            return length;
+        } catch (NumberFormatException e) {
+            throw new ConnectorException("Unexpected response from streamed script: "+e.getMessage(), e);
+        } finally {
+            if (!complete) {
+                cleanup();
+            }
+        }
+    }
+
+    private ByteBuffer decodeChunk(String base64, ByteBuffer pending, CharsetDecoder decoder, ScriptOutputConsumer consumer, boolean first) {
+        byte[] bytes = Base64.getMimeDecoder().decode(base64 == null ? "" : base64.trim());
+        ByteBuffer in = ByteBuffer.allocate(pending.remaining() + bytes.length);
+        in.put(pending).put(bytes).flip();
+        if (first && in.remaining() >= 3 && (in.get(0) & 0xFF) == 0xEF && (in.get(1) & 0xFF) == 0xBB && (in.get(2) & 0xFF) == 0xBF) {
+            // Windows PowerShell writes byte order mark to UTF-8 files
+            in.position(3);
+        }
+        CharBuffer out = CharBuffer.allocate(in.remaining());
+        decoder.decode(in, out, false);
+        out.flip();
+        if (out.hasRemaining()) {
+            consumer.consume(out.toString());
+        }
+        // Incomplete multi-byte sequence at the end of the chunk, it will be completed by next chunk
+        return in.slice();
+    }
+
+    private String createExecuteScript(String command) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("$__connectorOutputPath = ").append(pathExpression).append("\n");
+        // Only the output is captured. Errors are reported by the shell as errors of any other script.
+        sb.append("$__connectorBytes = [System.Text.Encoding]::UTF8.GetBytes((@(& {\n").append(command)
+                .append("\n} | Out-String -Stream -Width 4096) | ForEach-Object { $_ + [Environment]::NewLine }) -join '')\n");
+        sb.append("$__connectorOutputLength = $__connectorBytes.Length\n");
+        // Output that fits in the first chunk does not need the file
+        sb.append("if ($__connectorOutputLength -gt ").append(chunkSize)
+                .append(") { [System.IO.File]::WriteAllBytes($__connectorOutputPath, $__connectorBytes) }\n");
+        sb.append("Write-Output $__connectorOutputLength\n");
+        sb.append("Write-Output ([Convert]::ToBase64String($__connectorBytes, 0, [Math]::Min($__connectorOutputLength, ")
+                .append(chunkSize).append(")))\n");
+        sb.append("$__connectorBytes = $null\n");
+        return sb.toString();
+    }
+
+    private String createReadScript(long offset, boolean last) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("$__connectorOutputPath = ").append(pathExpression).append("\n");
+        sb.append(readChunkScript("$__connectorOutputPath", offset));
+        if (last) {
+            sb.append("Remove-Item -LiteralPath $__connectorOutputPath -ErrorAction SilentlyContinue\n");
+        }
+        return sb.toString();
+    }
+
+    private String readChunkScript(String path, long offset) {
+        return "$__connectorStream = [System.IO.File]::OpenRead(" + path + ")\n"
+                + "try {\n"
+                + "$null = $__connectorStream.Seek(" + offset + ", [System.IO.SeekOrigin]::Begin)\n"
+                + "$__connectorBuffer = New-Object byte[] " + chunkSize + "\n"
+                + "$__connectorRead = $__connectorStream.Read($__connectorBuffer, 0, " + chunkSize + ")\n"
+                + "Write-Output ([Convert]::ToBase64String($__connectorBuffer, 0, $__connectorRead))\n"
+                + "} finally {\n"
+                + "$__connectorStream.Close()\n"
+                + "}\n";
+    }
+
+    private void cleanup() {
+        try {
+            session.runCommand("Remove-Item -LiteralPath " + pathExpression + " -ErrorAction SilentlyContinue", null);
+        } catch (Exception e) {
+            LOG.warn("Cannot remove temporary output file on the resource: {0}", e.getMessage());
+        }
+    }
+}
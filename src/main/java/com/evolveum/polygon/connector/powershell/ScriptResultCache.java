@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.framework.common.objects.ScriptContext;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of outputs of read-only scripts. The entries expire after the time-to-live
+ * and the least recently used entries are evicted when the cache is full. The cache is full
+ * when it has the maximal number of entries or when the entries take the maximal number of bytes.
+ * Outputs larger than the maximal entry size are not cached at all, so that one large output
+ * does not evict everything else. Sizes are estimated as two bytes per character of the key and the output.
+ * Zero byte limits mean no limit.
+ *
+ * The key is script language, script text and the arguments. The arguments are
+ * normalized (sorted by name, values converted to PowerShell literals), therefore
+ * the order of arguments does not matter.
+ */
+public class ScriptResultCache implements ScriptResultCacheMXBean {
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // Access-ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, CachedOutput> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0; // guarded by entries
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    public ScriptResultCache(int maxSize, long timeToLive, long maxBytes, long maxEntryBytes) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    public static String createKey(ScriptContext scriptCtx) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(scriptCtx.getScriptLanguage()).append('\n');
+        sb.append(scriptCtx.getScriptText()).append('\n');
+        if (scriptCtx.getScriptArguments() != null) {
+            for (Map.Entry<String, Object> argument : new TreeMap<>(scriptCtx.getScriptArguments()).entrySet()) {
+                sb.append(argument.getKey()).append('=').append(PowerShellScriptUtil.toLiteral(argument.getValue())).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns cached output or null if there is no valid cached output.
+     */
+    public String get(String key) {
+        synchronized (entries) {
+            CachedOutput entry = entries.get(key);
+            if (entry != null && entry.expires > System.currentTimeMillis()) {
+                hits.incrementAndGet();
+                return entry.output;
+            }
+            if (entry != null) {
+                remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the output, unless it is larger than the maximal entry size.
+     * Least recently used entries are evicted to make room for the output.
+     */
+    public void put(String key, String output) {
+        long entryBytes = 2L * (key.length() + output.length());
+        synchronized (entries) {
+            // Outdated output is not kept, even if the new output is not cached
+            remove(key);
+            if (maxEntryBytes > 0 && entryBytes > maxEntryBytes) {
+                skipped.incrementAndGet();
+                return;
+            }
+            entries.put(key, new CachedOutput(output, System.currentTimeMillis() + timeToLive, entryBytes));
+            bytes += entryBytes;
+            Iterator<CachedOutput> iterator = entries.values().iterator();
+            while (entries.size() > maxSize || (maxBytes > 0 && bytes > maxBytes)) {
+                bytes -= iterator.next().bytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        CachedOutput removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= removed.bytes;
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptResultCache(" + getSize() + "/" + maxSize + " entries, " + getBytes() + " bytes, "
+                + getHits() + " hits, " + getMisses() + " misses)";
+    }
+
+    private static class CachedOutput {
+        private final String output;
+        private final long expires;
+        private final long bytes;
+
+        private CachedOutput(String output, long expires, long bytes) {
+            this.output = output;
+            this.expires = expires;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+/**
+ * JMX view of the script result cache. Sizes are estimated in bytes.
+ */
+public interface ScriptResultCacheMXBean {
+
+    int getSize();
+
+    int getMaxSize();
+
+    long getBytes();
+
+    long getMaxBytes();
+
+    long getMaxEntryBytes();
+
+    long getHits();
+
+    long getMisses();
+
+    /**
+     * Number of outputs that were not cached because they were larger than the maximal entry size.
+     */
+    long getSkipped();
+
+    void clear();
+}
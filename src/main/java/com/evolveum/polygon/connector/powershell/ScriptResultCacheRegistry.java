@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of script result caches, one cache for each connector configuration.
+ *
+ * All the connector instances with the same configuration (i.e. the instances in the connector pool
+ * of one resource) share one cache, so a cached output is returned regardless of the instance that
+ * executes the script. The cache is reference-counted, it is cleared and forgotten when the last
+ * connector instance releases it.
+ *
+ * If metrics are enabled, the shared cache is exposed as one MBean, registered by the registry
+ * for as long as the cache is used.
+ */
+public class ScriptResultCacheRegistry {
+
+    private static final Log LOG = Log.getLog(ScriptResultCacheRegistry.class);
+
+    private static final Map<String, SharedCache> CACHES = new HashMap<>();
+
+    /**
+     * Returns the cache for the configuration, creating it if needed.
+     *
+     * @param key key of the configuration, see {@link SharedSessionRegistry#createKey(String)}
+     */
+    public static ScriptResultCache acquire(String key, PowerShellConfiguration configuration) {
+        synchronized (CACHES) {
+            SharedCache sharedCache = CACHES.get(key);
+            if (sharedCache == null) {
+                sharedCache = new SharedCache(configuration);
+                CACHES.put(key, sharedCache);
+                LOG.ok("Created script result cache {0}", key);
+            }
+            sharedCache.usageCount++;
+            return sharedCache.cache;
+        }
+    }
+
+    public static void release(String key) {
+        SharedCache sharedCache;
+        synchronized (CACHES) {
+            sharedCache = CACHES.get(key);
+            if (sharedCache == null) {
+                LOG.warn("Attempt to release unknown script result cache {0}", key);
+                return;
+            }
+            sharedCache.usageCount--;
+            LOG.ok("script result cache {0} release (usage count = {1})", key, sharedCache.usageCount);
+            if (sharedCache.usageCount > 0) {
+                return;
+            }
+            CACHES.remove(key);
+        }
+        sharedCache.close();
+    }
+
+    /**
+     * Returns number of caches that were acquired and not yet released.
+     */
+    public static int getCacheCount() {
+        synchronized (CACHES) {
+            return CACHES.size();
+        }
+    }
+
+    private static class SharedCache {
+
+        private final ScriptResultCache cache;
+        private final ConnectorMetrics metrics;
+        private int usageCount = 0; // guarded by CACHES
+
+        private SharedCache(PowerShellConfiguration configuration) {
+            cache = new ScriptResultCache(configuration.getScriptResultCacheSize(), configuration.getScriptResultCacheTtl(),
+                    configuration.getScriptResultCacheMaxBytes(), configuration.getScriptResultCacheMaxEntryBytes());
+            if (configuration.isMetricsEnabled()) {
+                metrics = new ConnectorMetrics();
+                metrics.registerCache(cache);
+            } else {
+                metrics = null;
+            }
+        }
+
+        private void close() {
+            if (metrics != null) {
+                metrics.close();
+            }
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Retries idempotent operations after communication failures. The broken session is already
+ * discarded when the operation fails, therefore the retry uses a fresh session (possibly on another host).
+ * Exponential backoff with jitter is used, so that the clients do not retry all at the same time.
+ *
+ * Operations rejected because all the hosts are ejected ({@link HostsUnavailableException}) are not retried.
+ * They did not reach any host, a retry would be rejected in the same way while the circuits are open.
+ */
+public class ScriptRetryPolicy {
+
+    private static final Log LOG = Log.getLog(ScriptRetryPolicy.class);
+
+    private final int retryCount;
+    private final long initialDelay;
+    private final long maxDelay;
+
+    public ScriptRetryPolicy(int retryCount, long initialDelay, long maxDelay) {
+        this.retryCount = retryCount;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    public <T> T execute(Supplier<T> operation) {
+        int retry = 0;
+        while (true) {
+            try {
+                return operation.get();
+            } catch (HostsUnavailableException e) {
+                throw e;
+            } catch (ConnectorIOException e) {
+                if (retry >= retryCount) {
+                    throw e;
+                }
+                retry++;
+                long delay = getDelay(retry);
+                LOG.warn("Communication failure, retrying idempotent script in {0} ms (retry {1} of {2}): {3}",
+                        delay, retry, retryCount, e.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    long getDelay(int retry) {
+        long delay = initialDelay;
+        for (int i = 1; i < retry && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        // Random jitter, between half of the delay and the full delay
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.ConnectorSecurityException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Script execution statistics for one host and script language.
+ * The statistics are kept by the session owner, therefore they are shared by the connector instances
+ * that share the sessions, but not by connector instances of other resources.
+ *
+ * Latency of each kind of operation is a separate series. Single scripts, batches and streamed scripts
+ * take very different time, a common series would not say much about any of them.
+ */
+public class ScriptStatistics implements ScriptStatisticsMXBean {
+
+    private final String host;
+    private final String scriptLanguage;
+
+    private final Map<OperationKind, Histogram> latencies = new EnumMap<>(OperationKind.class);
+    private final Histogram connectTime = new Histogram(Histogram.DURATION_BOUNDS);
+    private final Histogram outputSize = new Histogram(Histogram.SIZE_BOUNDS);
+
+    private final LongAdder successCount = new LongAdder();
+    private final LongAdder executionFailureCount = new LongAdder();
+    private final LongAdder securityFailureCount = new LongAdder();
+    private final LongAdder communicationFailureCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder connectFailureCount = new LongAdder();
+
+    public ScriptStatistics(String host, String scriptLanguage) {
+        this.host = host;
+        this.scriptLanguage = scriptLanguage;
+        for (OperationKind kind : OperationKind.values()) {
+            latencies.put(kind, new Histogram(Histogram.DURATION_BOUNDS));
+        }
+    }
+
+    public void recordSuccess(OperationKind kind, long duration) {
+        latencies.get(kind).record(duration);
+        successCount.increment();
+    }
+
+    /**
+     * Records failed execution. The failure is classified by the type of ConnId exception.
+     * Timeouts are counted separately, they are not failures of the script.
+     */
+    public void recordFailure(OperationKind kind, long duration, RuntimeException e) {
+        latencies.get(kind).record(duration);
+        if (e instanceof OperationTimeoutException) {
+            timeoutCount.increment();
+        } else if (e instanceof ConnectorIOException) {
+            communicationFailureCount.increment();
+        } else if (e instanceof ConnectorSecurityException) {
+            securityFailureCount.increment();
+        } else {
+            executionFailureCount.increment();
+        }
+    }
+
+    public void recordConnect(long duration) {
+        connectTime.record(duration);
+    }
+
+    public void recordConnectFailure() {
+        connectFailureCount.increment();
+    }
+
+    public void recordOutputSize(long size) {
+        outputSize.record(size);
+    }
+
+    @Override
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public String getScriptLanguage() {
+        return scriptLanguage;
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return successCount.sum();
+    }
+
+    @Override
+    public long getExecutionFailureCount() {
+        return executionFailureCount.sum();
+    }
+
+    @Override
+    public long getSecurityFailureCount() {
+        return securityFailureCount.sum();
+    }
+
+    @Override
+    public long getCommunicationFailureCount() {
+        return communicationFailureCount.sum();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    @Override
+    public LatencySummary getScriptLatency() {
+        return getLatency(OperationKind.SCRIPT);
+    }
+
+    @Override
+    public LatencySummary getJsonScriptLatency() {
+        return getLatency(OperationKind.JSON_SCRIPT);
+    }
+
+    @Override
+    public LatencySummary getBatchLatency() {
+        return getLatency(OperationKind.BATCH);
+    }
+
+    @Override
+    public LatencySummary getStreamedScriptLatency() {
+        return getLatency(OperationKind.STREAMED);
+    }
+
+    public LatencySummary getLatency(OperationKind kind) {
+        return LatencySummary.of(latencies.get(kind));
+    }
+
+    @Override
+    public long getConnectCount() {
+        return connectTime.getCount();
+    }
+
+    @Override
+    public long getConnectFailureCount() {
+        return connectFailureCount.sum();
+    }
+
+    @Override
+    public double getConnectTimeMean() {
+        return connectTime.getMean();
+    }
+
+    @Override
+    public long getConnectTimeMax() {
+        return connectTime.getMax();
+    }
+
+    @Override
+    public long getConnectTime95thPercentile() {
+        return connectTime.getPercentile(95);
+    }
+
+    @Override
+    public double getOutputSizeMean() {
+        return outputSize.getMean();
+    }
+
+    @Override
+    public long getOutputSizeMax() {
+        return outputSize.getMax();
+    }
+
+    @Override
+    public long getOutputSize95thPercentile() {
+        return outputSize.getPercentile(95);
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram latency : latencies.values()) {
+            latency.reset();
+        }
+        connectTime.reset();
+        outputSize.reset();
+        successCount.reset();
+        executionFailureCount.reset();
+        securityFailureCount.reset();
+        communicationFailureCount.reset();
+        timeoutCount.reset();
+        connectFailureCount.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptStatistics(" + host + ", " + scriptLanguage + ", " + getSuccessCount() + " successes, "
+                + (getExecutionFailureCount() + getSecurityFailureCount() + getCommunicationFailureCount()) + " failures, "
+                + getTimeoutCount() + " timeouts)";
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+/**
+ * JMX view of script execution statistics for one host and script language.
+ * Durations are in milliseconds, output sizes in characters.
+ */
+public interface ScriptStatisticsMXBean {
+
+    String getHost();
+
+    String getScriptLanguage();
+
+    long getSuccessCount();
+
+    long getExecutionFailureCount();
+
+    long getSecurityFailureCount();
+
+    long getCommunicationFailureCount();
+
+    long getTimeoutCount();
+
+    /**
+     * Latency of single scripts.
+     */
+    LatencySummary getScriptLatency();
+
+    /**
+     * Latency of single scripts with JSON output.
+     */
+    LatencySummary getJsonScriptLatency();
+
+    LatencySummary getBatchLatency();
+
+    /**
+     * Latency of scripts with streamed output, including the processing of the output.
+     */
+    LatencySummary getStreamedScriptLatency();
+
+    long getConnectCount();
+
+    long getConnectFailureCount();
+
+    double getConnectTimeMean();
+
+    long getConnectTimeMax();
+
+    long getConnectTime95thPercentile();
+
+    double getOutputSizeMean();
+
+    long getOutputSizeMax();
+
+    long getOutputSize95thPercentile();
+
+    void reset();
+}
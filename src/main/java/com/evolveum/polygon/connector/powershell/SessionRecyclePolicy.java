@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+/**
+ * Decides when a session should be replaced by a fresh one.
+ *
+ * Long-running sessions accumulate memory and state on the server side (especially
+ * with Exchange snap-ins), which makes the commands slower over time. Sessions are
+ * recycled after a number of commands, after maximum age, or when the average command
+ * latency grows above the baseline latency measured when the session was fresh.
+ * Zero values disable the respective criterion.
+ */
+public class SessionRecyclePolicy {
+
+    private final long maxCommands;
+    private final long maxAge;
+    private final double latencyFactor;
+
+    public SessionRecyclePolicy(long maxCommands, long maxAge, double latencyFactor) {
+        this.maxCommands = maxCommands;
+        this.maxAge = maxAge;
+        this.latencyFactor = latencyFactor;
+    }
+
+    public boolean isEnabled() {
+        return maxCommands > 0 || maxAge > 0 || latencyFactor > 0;
+    }
+
+    /**
+     * Returns the reason why the session should be recycled, or null if the session is fine.
+     */
+    public String getRecycleReason(PowerHellSession session) {
+        if (maxCommands > 0 && session.getCommandCount() >= maxCommands) {
+            return "executed " + session.getCommandCount() + " commands";
+        }
+        if (maxAge > 0) {
+            long age = System.currentTimeMillis() - session.getCreateTimestamp();
+            if (age >= maxAge) {
+                return "age " + age + " ms";
+            }
+        }
+        if (latencyFactor > 0) {
+            double baselineLatency = session.getBaselineLatency();
+            double averageLatency = session.getAverageLatency();
+            // Ignore sub-millisecond baseline, the ratio would be meaningless
+            if (baselineLatency >= 1 && averageLatency > baselineLatency * latencyFactor) {
+                return String.format("average latency %.0f ms, baseline latency %.0f ms", averageLatency, baselineLatency);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionRecyclePolicy(maxCommands=" + maxCommands + ", maxAge=" + maxAge + ", latencyFactor=" + latencyFactor + ")";
+    }
+}
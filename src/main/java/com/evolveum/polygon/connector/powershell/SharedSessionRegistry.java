@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Registry of sessions shared by connector instances with the same configuration.
+ *
+ * ConnId pools several connector instances for each resource. Without sharing, each of them
+ * would have its own session pools, therefore the number of remote sessions would follow
+ * the size of the connector pool. With sharing, the sessions are owned by a private connector
+ * instance (session owner) and the connector instances lease sessions from the pools of the owner.
+ * The number of remote sessions follows the actual number of concurrently executed scripts.
+ *
+ * The owner is reference-counted and it is disposed when the last connector instance releases it.
+ * The key is a hash of the effective configuration (hosts, port, credentials, authentication scheme, ...),
+ * connector instances with different configuration do not share anything. The password is part
+ * of the configuration only as a keyed digest (see {@link #digestPassword(GuardedString)}).
+ *
+ * The owner is initialized outside of the registry lock, so a slow initialization does not block
+ * the connector instances of other resources. Connector instances that need the same owner
+ * wait for its initialization.
+ */
+public class SharedSessionRegistry {
+
+    private static final Log LOG = Log.getLog(SharedSessionRegistry.class);
+
+    private static final String PASSWORD_DIGEST_ALGORITHM = "HmacSHA256";
+
+    private static final Map<String, SessionOwner> OWNERS = new HashMap<>();
+
+    // Random key of the password digest. It is never stored, so the digests are meaningful only in this process.
+    private static final byte[] PASSWORD_DIGEST_KEY = new byte[32];
+
+    static {
+        new SecureRandom().nextBytes(PASSWORD_DIGEST_KEY);
+    }
+
+    /**
+     * Returns session owner for the configuration, creating it if needed.
+     *
+     * @param key key created by {@link #createKey(String)}
+     */
+    public static PowerShellConnector acquire(String key, PowerShellConfiguration configuration) {
+        SessionOwner owner;
+        boolean create = false;
+        synchronized (OWNERS) {
+            owner = OWNERS.get(key);
+            if (owner == null) {
+                owner = new SessionOwner();
+                OWNERS.put(key, owner);
+                create = true;
+            }
+            owner.usageCount++;
+        }
+        if (create) {
+            try {
+                PowerShellConnector connector = new PowerShellConnector(true);
+                connector.init(configuration);
+                owner.connector.complete(connector);
+                LOG.ok("Created shared session owner {0}", key);
+            } catch (RuntimeException | Error e) {
+                synchronized (OWNERS) {
+                    // Next acquire will try again
+                    OWNERS.remove(key, owner);
+                }
+                owner.connector.completeExceptionally(e);
+                throw e;
+            }
+        }
+        try {
+            return owner.connector.join();
+        } catch (CompletionException e) {
+            // Initialization by another connector instance failed. The owner is already removed.
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ConnectorException("Cannot create shared session owner: "+cause.getMessage(), cause);
+        }
+    }
+
+    public static void release(String key) {
+        SessionOwner owner;
+        synchronized (OWNERS) {
+            owner = OWNERS.get(key);
+            if (owner == null) {
+                LOG.warn("Attempt to release unknown shared session owner {0}", key);
+                return;
+            }
+            owner.usageCount--;
+            LOG.ok("Shared session owner {0} release (usage count = {1})", key, owner.usageCount);
+            if (owner.usageCount > 0) {
+                return;
+            }
+            OWNERS.remove(key);
+        }
+        owner.connector.join().dispose();
+    }
+
+    /**
+     * Returns number of session owners that were acquired and not yet released.
+     */
+    public static int getOwnerCount() {
+        synchronized (OWNERS) {
+            return OWNERS.size();
+        }
+    }
+
+    /**
+     * Creates registry key from the description of the effective configuration.
+     */
+    public static String createKey(String effectiveConfiguration) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return toHex(digest.digest(effectiveConfiguration.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported: "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns keyed digest (HMAC) of the password, suitable for the description of the effective configuration.
+     * The digest is computed inside the GuardedString access callback, the password is never converted to String.
+     * The key is random for each process, therefore the digest cannot be used to guess the password offline.
+     */
+    public static String digestPassword(GuardedString password) {
+        if (password == null) {
+            return null;
+        }
+        Mac mac;
+        try {
+            mac = Mac.getInstance(PASSWORD_DIGEST_ALGORITHM);
+            mac.init(new SecretKeySpec(PASSWORD_DIGEST_KEY, PASSWORD_DIGEST_ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(PASSWORD_DIGEST_ALGORITHM+" is not supported: "+e.getMessage(), e);
+        }
+        password.access(chars -> {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(chars));
+            mac.update(bytes.duplicate());
+            // Encoder output is a heap buffer, clear it including the unused capacity
+            Arrays.fill(bytes.array(), (byte) 0);
+        });
+        return toHex(mac.doFinal());
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static class SessionOwner {
+
+        private final CompletableFuture<PowerShellConnector> connector = new CompletableFuture<>();
+        private int usageCount = 0; // guarded by OWNERS
+    }
+}
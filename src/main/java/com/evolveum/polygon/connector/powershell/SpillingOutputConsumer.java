@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keeps script output in memory up to a threshold. Larger output is written
+ * to a local temporary file, so the memory use stays bounded.
+ */
+public class SpillingOutputConsumer implements ScriptOutputConsumer {
+
+    private final int threshold;
+    private final File directory;
+
+    private final StringBuilder buffer = new StringBuilder();
+    private File file;
+    private Writer writer;
+    private long length = 0;
+
+    /**
+     * @param directory directory for the temporary file. Null means default temporary directory.
+     */
+    public SpillingOutputConsumer(int threshold, File directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    @Override
+    public void consume(String chunk) {
+        length += chunk.length();
+        try {
+            if (writer == null && buffer.length() + chunk.length() <= threshold) {
+                buffer.append(chunk);
+                return;
+            }
+            if (writer == null) {
+                file = File.createTempFile("powershell-output-", ".txt", directory);
+                writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+                writer.write(buffer.toString());
+                buffer.setLength(0);
+                buffer.trimToSize();
+            }
+            writer.write(chunk);
+        } catch (IOException e) {
+            close();
+            throw new ConnectorIOException("Cannot write script output to "+file+": "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Finishes writing. Must be called before the result is used.
+     */
+    public void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                throw new ConnectorIOException("Cannot write script output to "+file+": "+e.getMessage(), e);
+            } finally {
+                writer = null;
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary file (if there is any). Used when the output is not going to be used.
+     */
+    public void discard() {
+        close();
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the output as String if it fits under the threshold. Otherwise returns the File that contains the output.
+     * The file is not deleted automatically, the caller has to delete it (or call {@link #discard()}) when it is processed.
+     */
+    public Object getResult() {
+        if (file != null) {
+            return file;
+        }
+        return buffer.toString();
+    }
+}
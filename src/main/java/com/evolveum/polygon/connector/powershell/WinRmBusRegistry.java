@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.apache.cxf.Bus;
+import org.apache.cxf.BusFactory;
+import org.identityconnectors.common.logging.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Registry of CXF buses used by WinRM clients, one bus for each resource (endpoint and user)
+ * and bus properties.
+ *
+ * All the connector instances that talk to the same resource with the same bus properties share one bus.
+ * Connector instances with different properties (e.g. connection limits) get different buses. The bus is
+ * reference-counted and it is shut down when the last connector instance releases it.
+ * Connector instances for different resources do not share anything, therefore creating
+ * or shutting down a bus for one resource does not interfere with other resources.
+ * The bus is set as the thread default bus while PowerHell operations run (see {@link PowerHellSession}).
+ */
+public class WinRmBusRegistry {
+
+    private static final Log LOG = Log.getLog(WinRmBusRegistry.class);
+
+    private static final Map<String, SharedBus> BUSES = new HashMap<>();
+
+    /**
+     * Creates the key of the bus. The properties are part of the key, so the properties
+     * of the bus always match the properties requested by the caller.
+     */
+    public static String createKey(String resource, Map<String, Object> properties) {
+        return resource + "|" + new TreeMap<>(properties);
+    }
+
+    /**
+     * Returns the bus for the resource, creating it if needed.
+     *
+     * @param key key created by {@link #createKey(String, Map)} with the same properties
+     */
+    public static Bus acquire(String key, Map<String, Object> properties) {
+        SharedBus sharedBus;
+        synchronized (BUSES) {
+            sharedBus = BUSES.get(key);
+            if (sharedBus == null) {
+                sharedBus = new SharedBus(key, properties);
+                BUSES.put(key, sharedBus);
+            }
+            sharedBus.usageCount++;
+        }
+        try {
+            return sharedBus.getBus();
+        } catch (RuntimeException e) {
+            // The caller does not get the bus, therefore it will not release it
+            release(key);
+            throw e;
+        }
+    }
+
+    public static void release(String key) {
+        SharedBus sharedBus;
+        synchronized (BUSES) {
+            sharedBus = BUSES.get(key);
+            if (sharedBus == null) {
+                LOG.warn("Attempt to release unknown bus {0}", key);
+                return;
+            }
+            sharedBus.usageCount--;
+            LOG.ok("bus {0} release (usage count = {1})", key, sharedBus.usageCount);
+            if (sharedBus.usageCount > 0) {
+                return;
+            }
+            BUSES.remove(key);
+        }
+        sharedBus.shutdown();
+    }
+
+    /**
+     * Returns number of buses that were acquired and not yet released.
+     */
+    public static int getBusCount() {
+        synchronized (BUSES) {
+            return BUSES.size();
+        }
+    }
+
+    private static class SharedBus {
+
+        private final String key;
+        private final Map<String, Object> properties;
+        private int usageCount = 0; // guarded by BUSES
+        private volatile Bus bus;
+
+        private SharedBus(String key, Map<String, Object> properties) {
+            this.key = key;
+            this.properties = properties;
+        }
+
+        /**
+         * Bus is created lazily outside the registry lock, so creating a bus
+         * for one resource does not block other resources. Once it is created,
+         * it is returned without locking.
+         */
+        private Bus getBus() {
+            Bus current = bus;
+            if (current != null) {
+                return current;
+            }
+            synchronized (this) {
+                if (bus == null) {
+                    Bus newBus = BusFactory.newInstance().createBus();
+                    for (Map.Entry<String, Object> property : properties.entrySet()) {
+                        newBus.setProperty(property.getKey(), property.getValue());
+                    }
+                    LOG.ok("Created WinRm CXF bus {0} for {1}", newBus, key);
+                    bus = newBus;
+                }
+                return bus;
+            }
+        }
+
+        private synchronized void shutdown() {
+            if (bus != null) {
+                LOG.ok("Shutting down WinRm CXF bus {0} for {1}", bus, key);
+                bus.shutdown(true);
+                bus = null;
+                LOG.ok("Bus shut down");
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Selects the host for new sessions when scripts are spread over several hosts.
+ * There is a circuit breaker for each host endpoint, shared by all the connector instances
+ * that use the endpoint (see {@link HostCircuitBreaker}).
+ *
+ * New sessions are created on the healthy host (closed circuit) with the lowest number of sessions.
+ * The circuit opens (the host is ejected) after the specified number of consecutive communication
+ * failures or timeouts. The host is not used for the ejection period, requests fail fast if all
+ * the hosts are ejected. After that period the circuit is half-open: one trial (a probe or a real request)
+ * is allowed. If the trial succeeds, the circuit closes and the host is used again. If it fails,
+ * the circuit opens again.
+ *
+ * Sessions that are connected to an ejected host are not used (see {@link #isAvailable(String)}),
+ * they are discarded when they are checked out.
+ *
+ * Hosts are ejected only if there are several hosts. A single host has nowhere to fail over, ejecting it
+ * would only make the requests (and their retries) fail fast until the ejection period ends. Therefore
+ * a single-host selector neither records failures in the shared breaker nor respects the breaker state,
+ * so it does not eject the host for the other resources and they do not eject it for this resource.
+ *
+ * The selector must be closed when it is no longer used, so that the breakers are released.
+ */
+public class WinRmHostSelector {
+
+    private static final Log LOG = Log.getLog(WinRmHostSelector.class);
+
+    private final long ejectionPeriod;
+    private final int failureThreshold;
+    private final boolean ejectionEnabled;
+    private final Map<String, HostState> hostStates = new LinkedHashMap<>();
+    private boolean closed = false;
+
+    /**
+     * @param endpointResolver returns endpoint of the host. Hosts with the same endpoint share the circuit breaker.
+     */
+    public WinRmHostSelector(List<String> hosts, Function<String, String> endpointResolver, long ejectionPeriod, int failureThreshold) {
+        this.ejectionPeriod = ejectionPeriod;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        for (String host : hosts) {
+            if (!hostStates.containsKey(host)) {
+                hostStates.put(host, new HostState(HostCircuitBreaker.acquire(endpointResolver.apply(host))));
+            }
+        }
+        this.ejectionEnabled = hostStates.size() > 1;
+    }
+
+    public synchronized List<String> getHosts() {
+        return new ArrayList<>(hostStates.keySet());
+    }
+
+    /**
+     * Selects host for a new session.
+     */
+    public synchronized String selectHost() {
+        long now = System.currentTimeMillis();
+        String selectedHost = null;
+        HostState selectedState = null;
+        for (Map.Entry<String, HostState> entry : hostStates.entrySet()) {
+            HostState state = entry.getValue();
+            if (ejectionEnabled && state.breaker.isOpen()) {
+                continue;
+            }
+            if (selectedState == null || state.sessions < selectedState.sessions) {
+                selectedHost = entry.getKey();
+                selectedState = state;
+            }
+        }
+        if (selectedHost != null) {
+            return selectedHost;
+        }
+        // All circuits are open. Try the host that was ejected for the longest time, if its circuit is half-open.
+        List<Map.Entry<String, HostState>> candidates = new ArrayList<>(hostStates.entrySet());
+        candidates.sort((a, b) -> Long.compare(a.getValue().breaker.getOpenUntil(), b.getValue().breaker.getOpenUntil()));
+        for (Map.Entry<String, HostState> entry : candidates) {
+            if (entry.getValue().breaker.startTrial(now, ejectionPeriod)) {
+                LOG.ok("All hosts are ejected, trying {0}", entry.getKey());
+                return entry.getKey();
+            }
+        }
+        throw new HostsUnavailableException("All hosts are unavailable: "+hostStates.keySet());
+    }
+
+    /**
+     * Fails fast if all the hosts are ejected and none of them can be tried.
+     * This is checked before waiting for a session, so the callers do not wait
+     * for the sessions of hosts that are known to be unavailable.
+     */
+    public synchronized void checkAvailable() {
+        if (!ejectionEnabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (HostState state : hostStates.values()) {
+            if (!state.breaker.isOpen() || state.breaker.isTrialAllowed(now)) {
+                return;
+            }
+        }
+        throw new HostsUnavailableException("All hosts are unavailable: "+hostStates.keySet());
+    }
+
+    public synchronized void sessionCreated(String host) {
+        HostState state = hostStates.get(host);
+        if (state != null) {
+            state.sessions++;
+        }
+    }
+
+    public synchronized void sessionClosed(String host) {
+        HostState state = hostStates.get(host);
+        if (state != null) {
+            state.sessions--;
+        }
+    }
+
+    /**
+     * Records communication failure or timeout. Ejects the host (opens the circuit)
+     * after too many consecutive failures or if the trial of half-open circuit fails.
+     */
+    public synchronized void recordFailure(String host) {
+        HostState state = hostStates.get(host);
+        if (state == null) {
+            return;
+        }
+        if (!ejectionEnabled) {
+            LOG.ok("Communication failure of host {0}, not ejecting the only host", host);
+            return;
+        }
+        int failures = state.breaker.recordFailure(failureThreshold, ejectionPeriod);
+        LOG.ok("Communication failure of host {0} ({1} consecutive, threshold {2})", host, failures, failureThreshold);
+    }
+
+    /**
+     * Re-admits the host after successful communication (closes the circuit).
+     */
+    public synchronized void recordSuccess(String host) {
+        HostState state = hostStates.get(host);
+        if (state != null) {
+            state.breaker.recordSuccess();
+        }
+    }
+
+    /**
+     * Returns false if the host is ejected. Sessions connected to the host should not be used,
+     * new session to the host is created only as the trial of half-open circuit.
+     */
+    public synchronized boolean isAvailable(String host) {
+        HostState state = hostStates.get(host);
+        return state == null || !ejectionEnabled || !state.breaker.isOpen();
+    }
+
+    /**
+     * Returns ejected hosts whose circuit is half-open. These should be probed.
+     * The probe is the trial, no other trial is allowed until the probe finishes.
+     */
+    public synchronized List<String> getHostsToProbe() {
+        long now = System.currentTimeMillis();
+        List<String> hosts = new ArrayList<>();
+        if (!ejectionEnabled) {
+            return hosts;
+        }
+        for (Map.Entry<String, HostState> entry : hostStates.entrySet()) {
+            if (entry.getValue().breaker.startTrial(now, ejectionPeriod)) {
+                hosts.add(entry.getKey());
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Releases the circuit breakers.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (HostState state : hostStates.values()) {
+            HostCircuitBreaker.release(state.breaker);
+        }
+    }
+
+    private static class HostState {
+        private final HostCircuitBreaker breaker;
+        private int sessions = 0;
+
+        private HostState(HostCircuitBreaker breaker) {
+            this.breaker = breaker;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class AdaptiveTimeoutTest {
+
+    private static void record(AdaptiveTimeout timeout, long latency, int count) {
+        for (int i = 0; i < count; i++) {
+            timeout.record(latency);
+        }
+    }
+
+    @Test
+    public void testMaxTimeoutBeforeEnoughObservations() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(1000, 60000, 3);
+        assertEquals(timeout.getTimeout(), 60000);
+        record(timeout, 100, 19);
+        assertEquals(timeout.getTimeout(), 60000);
+        timeout.record(100);
+        assertEquals(timeout.getTimeout(), 1000);
+    }
+
+    @Test
+    public void testPercentile() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(100, 60000, 2);
+        record(timeout, 1000, 98);
+        timeout.record(5000);
+        timeout.record(9000);
+        // 99th percentile of 100 observations is the second largest
+        assertEquals(timeout.getTimeout(), 10000);
+    }
+
+    @Test
+    public void testLimits() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(5000, 20000, 3);
+        record(timeout, 100, 20);
+        assertEquals(timeout.getTimeout(), 5000);
+        record(timeout, 100000, 100);
+        assertEquals(timeout.getTimeout(), 20000);
+
+        // Minimal timeout never exceeds the maximal timeout
+        AdaptiveTimeout inverted = new AdaptiveTimeout(5000, 2000, 3);
+        record(inverted, 100, 20);
+        assertEquals(inverted.getTimeout(), 2000);
+    }
+
+    @Test
+    public void testWindow() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(100, 60000, 2);
+        record(timeout, 10000, 100);
+        assertEquals(timeout.getTimeout(), 20000);
+        // Old observations leave the window
+        record(timeout, 1000, 100);
+        assertEquals(timeout.getTimeout(), 2000);
+    }
+
+    @Test
+    public void testTimeoutsExtendTimeout() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(1000, 60000, 2);
+        record(timeout, 1000, 100);
+        assertEquals(timeout.getTimeout(), 2000);
+        // Host became slower, scripts time out
+        timeout.recordTimeout(2000);
+        timeout.recordTimeout(2000);
+        assertEquals(timeout.getTimeout(), 4000);
+    }
+}
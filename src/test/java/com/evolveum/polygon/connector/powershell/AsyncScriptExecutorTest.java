@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Executors and host limits are shared by endpoint, so each test uses its own endpoints.
+ */
+public class AsyncScriptExecutorTest {
+
+    private final List<AsyncScriptExecutor> executors = new ArrayList<>();
+    private String endpoint1;
+    private String endpoint2;
+    private int initialExecutorCount;
+
+    @BeforeMethod
+    public void init() {
+        String prefix = "https://" + UUID.randomUUID() + ".";
+        endpoint1 = prefix + "host1:5986";
+        endpoint2 = prefix + "host2:5986";
+        initialExecutorCount = AsyncScriptExecutor.getExecutorCount();
+    }
+
+    @AfterMethod
+    public void releaseExecutors() {
+        for (AsyncScriptExecutor executor : executors) {
+            executor.release();
+        }
+        executors.clear();
+        assertEquals(AsyncScriptExecutor.getExecutorCount(), initialExecutorCount);
+    }
+
+    private AsyncScriptExecutor acquire(int maxInFlight, String... endpoints) {
+        AsyncScriptExecutor executor = AsyncScriptExecutor.acquire(Arrays.asList(endpoints), maxInFlight, 100);
+        executors.add(executor);
+        return executor;
+    }
+
+    @Test
+    public void testCurrentExecutor() throws Exception {
+        AsyncScriptExecutor executor = acquire(1, endpoint1);
+        assertNull(AsyncScriptExecutor.getCurrent());
+        assertSame(executor.submit(AsyncScriptExecutor::getCurrent).get(5, TimeUnit.SECONDS), executor);
+    }
+
+    @Test
+    public void testLeastLoadedHost() {
+        AsyncScriptExecutor executor = acquire(2, endpoint1, endpoint2);
+        List<String> endpoints = Arrays.asList(endpoint1, endpoint2);
+        AsyncScriptExecutor.HostPermit first = executor.enterHost(endpoints);
+        AsyncScriptExecutor.HostPermit second = executor.enterHost(endpoints);
+        assertEquals(first.getEndpoint(), endpoint1);
+        assertEquals(second.getEndpoint(), endpoint2);
+        assertEquals(executor.getInFlight(endpoint1), 1);
+
+        // Permit can be released only once
+        first.release();
+        first.release();
+        assertEquals(executor.getInFlight(endpoint1), 0);
+        second.release();
+
+        // Only candidate hosts are used, unknown hosts are not limited
+        assertEquals(executor.enterHost(Collections.singletonList(endpoint2)).getEndpoint(), endpoint2);
+        assertNull(executor.enterHost(Collections.singletonList("https://unknown:5986")));
+    }
+
+    @Test
+    public void testHostLimit() throws Exception {
+        AsyncScriptExecutor executor = acquire(1, endpoint1);
+        List<String> endpoints = Collections.singletonList(endpoint1);
+        AsyncScriptExecutor.HostPermit permit = executor.enterHost(endpoints);
+        CountDownLatch waiting = new CountDownLatch(1);
+        CompletableFuture<String> blocked = CompletableFuture.supplyAsync(() -> {
+            waiting.countDown();
+            AsyncScriptExecutor.HostPermit next = executor.enterHost(endpoints);
+            next.release();
+            return next.getEndpoint();
+        });
+        waiting.await();
+        Thread.sleep(100);
+        assertFalse(blocked.isDone());
+        permit.release();
+        assertEquals(blocked.get(5, TimeUnit.SECONDS), endpoint1);
+    }
+
+    @Test
+    public void testSharedHostLimit() {
+        // Executors with different sets of hosts share the limit of the common host
+        AsyncScriptExecutor both = acquire(1, endpoint1, endpoint2);
+        AsyncScriptExecutor single = acquire(1, endpoint1);
+        AsyncScriptExecutor.HostPermit permit = single.enterHost(Collections.singletonList(endpoint1));
+        assertEquals(both.getInFlight(endpoint1), 1);
+        assertEquals(both.enterHost(Arrays.asList(endpoint1, endpoint2)).getEndpoint(), endpoint2);
+        permit.release();
+    }
+
+    @Test
+    public void testSubmitLimitsHost() throws Exception {
+        AsyncScriptExecutor executor = acquire(2, endpoint1);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(executor.submit(() -> {
+                AsyncScriptExecutor.HostPermit permit = AsyncScriptExecutor.getCurrent().enterHost(Collections.singletonList(endpoint1));
+                try {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    Thread.sleep(20);
+                    inFlight.decrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    permit.release();
+                }
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        assertTrue(maxInFlight.get() <= 2, "Too many scripts in flight: " + maxInFlight.get());
+        assertEquals(executor.getInFlight(endpoint1), 0);
+    }
+}
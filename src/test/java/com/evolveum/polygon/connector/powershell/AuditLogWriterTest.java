@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class AuditLogWriterTest {
+
+    /**
+     * Record that remembers the threads that wrote it. It waits for the latch, if there is one.
+     */
+    private static class TestRecord extends AuditLogRecord {
+        private final List<Thread> writers;
+        private final CountDownLatch latch;
+
+        private TestRecord(List<Thread> writers, CountDownLatch latch) {
+            super(false, "test", new Object[0], 0);
+            this.writers = writers;
+            this.latch = latch;
+        }
+
+        @Override
+        public void write() {
+            writers.add(Thread.currentThread());
+            if (latch != null) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static void waitFor(List<Thread> writers, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writers.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(writers.size(), count);
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        List<Thread> writers = new CopyOnWriteArrayList<>();
+        AuditLogWriter writer = AuditLogWriter.acquire(10);
+        for (int i = 0; i < 5; i++) {
+            writer.enqueue(new TestRecord(writers, null), false);
+        }
+        waitFor(writers, 5);
+        assertFalse(writers.contains(Thread.currentThread()));
+        writer.release();
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        List<Thread> writers = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        AuditLogWriter writer = AuditLogWriter.acquire(1);
+        try {
+            // The writer thread waits in the first record, the second record fills the queue
+            writer.enqueue(new TestRecord(writers, latch), false);
+            waitFor(writers, 1);
+            writer.enqueue(new TestRecord(writers, null), false);
+            writer.enqueue(new TestRecord(writers, null), false);
+            assertEquals(writer.getDroppedCount(), 1);
+            assertEquals(writer.getQueueSize(), 1);
+        } finally {
+            latch.countDown();
+            writer.release();
+        }
+        waitFor(writers, 2);
+    }
+
+    @Test
+    public void testEnqueueAfterRelease() {
+        List<Thread> writers = new CopyOnWriteArrayList<>();
+        AuditLogWriter writer = AuditLogWriter.acquire(10);
+        writer.release();
+        writer.enqueue(new TestRecord(writers, null), true);
+        // The writer is stopped, the record is written by the calling thread
+        assertEquals(writers.size(), 1);
+        assertEquals(writers.get(0), Thread.currentThread());
+    }
+
+    @Test
+    public void testReleaseWakesBlockedEnqueue() throws Exception {
+        List<Thread> writers = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        AuditLogWriter writer = AuditLogWriter.acquire(1);
+        Thread blocked;
+        try {
+            writer.enqueue(new TestRecord(writers, latch), true);
+            waitFor(writers, 1);
+            writer.enqueue(new TestRecord(writers, null), true);
+            blocked = new Thread(() -> writer.enqueue(new TestRecord(writers, null), true));
+            blocked.start();
+            blocked.join(200);
+            assertTrue(blocked.isAlive());
+
+            writer.release();
+            blocked.join(5000);
+            assertFalse(blocked.isAlive());
+            // The blocked record was written by its own thread, the writer thread is still busy
+            waitFor(writers, 2);
+            assertEquals(writers.get(1), blocked);
+        } finally {
+            latch.countDown();
+        }
+        waitFor(writers, 3);
+        assertEquals(writer.getDroppedCount(), 0);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.testng.annotations.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class ConnectorMetricsTest {
+
+    private static Set<ObjectName> queryNames(String properties) throws Exception {
+        return ManagementFactory.getPlatformMBeanServer().queryNames(
+                new ObjectName(ConnectorMetrics.JMX_DOMAIN + ":" + properties + ",*"), null);
+    }
+
+    @Test
+    public void testRegisterAndClose() throws Exception {
+        ConnectorMetrics metrics = new ConnectorMetrics();
+        PowerHellPool pool = new PowerHellPool("Test", (scriptLanguage, host) -> {
+            throw new UnsupportedOperationException();
+        }, 0, 1, 100);
+        try {
+            ScriptStatistics statistics = metrics.getScriptStatistics("host1", "Test");
+            assertSame(metrics.getScriptStatistics("host1", "Test"), statistics);
+            metrics.registerPool(pool);
+            assertEquals(queryNames("type=ScriptStatistics,host=\"host1\",language=\"Test\"").size(), 1);
+            assertEquals(queryNames("type=SessionPool,language=\"Test\"").size(), 1);
+        } finally {
+            metrics.close();
+            pool.close();
+        }
+        assertTrue(queryNames("type=ScriptStatistics,host=\"host1\",language=\"Test\"").isEmpty());
+        assertTrue(queryNames("type=SessionPool,language=\"Test\"").isEmpty());
+    }
+
+    @Test
+    public void testNoOp() throws Exception {
+        assertNull(ConnectorMetrics.NO_OP.getScriptStatistics("host2", "Test"));
+        assertTrue(queryNames("type=ScriptStatistics,host=\"host2\"").isEmpty());
+    }
+
+    @Test
+    public void testLatencySeries() throws Exception {
+        ConnectorMetrics metrics = new ConnectorMetrics();
+        try {
+            ScriptStatistics statistics = metrics.getScriptStatistics("host3", "Test");
+            statistics.recordSuccess(OperationKind.SCRIPT, 10);
+            statistics.recordSuccess(OperationKind.SCRIPT, 20);
+            statistics.recordSuccess(OperationKind.BATCH, 5000);
+            statistics.recordFailure(OperationKind.JSON_SCRIPT, 60000, new OperationTimeoutException("timeout"));
+
+            // Batches do not affect the latency of single scripts
+            assertEquals(statistics.getScriptLatency().getCount(), 2);
+            assertEquals(statistics.getScriptLatency().getMax(), 20);
+            assertEquals(statistics.getBatchLatency().getCount(), 1);
+            assertEquals(statistics.getBatchLatency().getMax(), 5000);
+            assertEquals(statistics.getJsonScriptLatency().getCount(), 1);
+            assertEquals(statistics.getStreamedScriptLatency().getCount(), 0);
+            assertEquals(statistics.getSuccessCount(), 3);
+            assertEquals(statistics.getTimeoutCount(), 1);
+
+            // The series are exposed as composite data
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = queryNames("type=ScriptStatistics,host=\"host3\"").iterator().next();
+            CompositeData batchLatency = (CompositeData) server.getAttribute(name, "BatchLatency");
+            assertEquals(batchLatency.get("count"), 1L);
+            assertEquals(batchLatency.get("max"), 5000L);
+
+            statistics.reset();
+            assertEquals(statistics.getBatchLatency().getCount(), 0);
+        } finally {
+            metrics.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.testng.annotations.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class JsonOutputParserTest {
+
+    private static List<Object> parse(String... chunks) {
+        JsonOutputParser parser = new JsonOutputParser();
+        for (String chunk : chunks) {
+            parser.consume(chunk);
+        }
+        return parser.getResult();
+    }
+
+    @Test
+    public void testSingleObject() {
+        List<Object> result = parse("{\n  \"Name\": \"jack\",\n  \"Enabled\": true,\n  \"Manager\": null,\n  \"Groups\": [\"a\", \"b\"]\n}\n");
+        assertEquals(result.size(), 1);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> object = (Map<String, Object>) result.get(0);
+        assertEquals(object.keySet(), new LinkedHashSet<>(Arrays.asList("Name", "Enabled", "Manager", "Groups")));
+        assertEquals(object.get("Name"), "jack");
+        assertEquals(object.get("Enabled"), Boolean.TRUE);
+        assertNull(object.get("Manager"));
+        assertEquals(object.get("Groups"), Arrays.asList("a", "b"));
+    }
+
+    @Test
+    public void testTopLevelArrayFlattened() {
+        assertEquals(parse("[1, 2, 3]"), Arrays.asList(1L, 2L, 3L));
+        assertEquals(parse("[]"), Collections.emptyList());
+        assertEquals(parse("[[1], [2]]"), Arrays.asList(Collections.singletonList(1L), Collections.singletonList(2L)));
+    }
+
+    @Test
+    public void testNumbers() {
+        assertEquals(parse("[0, -12, 1.5, 2e3, 123456789012345678901234567890]"),
+                Arrays.asList(0L, -12L, 1.5, 2000.0, new BigInteger("123456789012345678901234567890")));
+        // Top-level number is terminated by the end of the output
+        assertEquals(parse("42"), Collections.singletonList(42L));
+    }
+
+    @Test
+    public void testStringEscapes() {
+        assertEquals(parse("\"a\\\"b\\\\c\\/d\\n\\t\\u00e9\""), Collections.singletonList("a\"b\\c/d\n\t\u00e9"));
+    }
+
+    @Test
+    public void testChunksSplitTokens() {
+        String json = "[{\"Name\": \"jack\", \"Count\": 12345, \"Flag\": false, \"Text\": \"\\u0041\\n\"}, null]";
+        List<Object> expected = parse(json);
+        for (int split = 1; split < json.length(); split++) {
+            assertEquals(parse(json.substring(0, split), json.substring(split)), expected, "Split at " + split);
+        }
+        // One character at a time
+        String[] chars = new String[json.length()];
+        for (int i = 0; i < json.length(); i++) {
+            chars[i] = json.substring(i, i + 1);
+        }
+        assertEquals(parse(chars), expected);
+    }
+
+    @Test
+    public void testSeveralTopLevelValues() {
+        assertEquals(parse("{\"a\": 1}\n", "[2, 3]\n", "\"x\""),
+                Arrays.asList(Collections.singletonMap("a", 1L), 2L, 3L, "x"));
+    }
+
+    @Test
+    public void testEmptyOutput() {
+        assertTrue(parse("").isEmpty());
+        assertTrue(parse(" \r\n").isEmpty());
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testIncomplete() {
+        parse("[{\"a\": 1}");
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testInvalid() {
+        parse("{\"a\" 1}");
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testInvalidLiteral() {
+        parse("[tru]");
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.ArgumentStyle;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class LargeArgumentTransferTest {
+
+    private static final Pattern CHUNK_PATTERN = Pattern.compile("\\.Append\\('([^']*)'\\)");
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static Map<String, Object> arguments(Object... namesAndValues) {
+        Map<String, Object> arguments = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            arguments.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return arguments;
+    }
+
+    /**
+     * Joins the chunks of all the transfer commands and decodes them.
+     */
+    private static byte[] getTransferredData(List<String> commands, boolean compressed) throws IOException {
+        StringBuilder encoded = new StringBuilder();
+        for (String command : commands) {
+            Matcher matcher = CHUNK_PATTERN.matcher(command);
+            while (matcher.find()) {
+                encoded.append(matcher.group(1));
+            }
+        }
+        byte[] data = Base64.getDecoder().decode(encoded.toString());
+        if (!compressed) {
+            return data;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testNotNeeded() {
+        LargeArgumentTransfer transfer = new LargeArgumentTransfer(arguments("name", "jack", "count", 3), 100, 10, false);
+        assertFalse(transfer.isNeeded());
+        assertTrue(transfer.getTransferCommands().isEmpty());
+        assertFalse(new LargeArgumentTransfer(null, 100, 10, false).isNeeded());
+    }
+
+    @Test
+    public void testStringTransferredInChunks() throws Exception {
+        String value = repeat('a', 1000) + "\u00e9";
+        LargeArgumentTransfer transfer = new LargeArgumentTransfer(arguments("name", "jack", "data", value), 100, 300, false);
+        assertTrue(transfer.isNeeded());
+
+        List<String> commands = transfer.getTransferCommands();
+        int encodedLength = Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8)).length();
+        assertEquals(transfer.getTransferredLength(), encodedLength);
+        assertEquals(commands.size(), (encodedLength + 299) / 300);
+        assertTrue(commands.get(0).startsWith("$global:ConnectorArgument_0 = New-Object System.Text.StringBuilder"));
+        assertTrue(commands.get(commands.size() - 1).contains("FromBase64String"));
+        assertEquals(new String(getTransferredData(commands, false), StandardCharsets.UTF_8), value);
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+        String value = repeat('b', 10000);
+        LargeArgumentTransfer transfer = new LargeArgumentTransfer(arguments("data", value), 100, 1000, true);
+        assertTrue(transfer.getTransferredLength() < 1000, "Not compressed: " + transfer);
+        assertTrue(transfer.getTransferCommands().get(0).contains("GZipStream"));
+        assertEquals(new String(getTransferredData(transfer.getTransferCommands(), true), StandardCharsets.UTF_8), value);
+    }
+
+    @Test
+    public void testBytesAndLiterals() throws Exception {
+        byte[] bytes = new byte[500];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        List<String> list = Arrays.asList(repeat('c', 200));
+        LargeArgumentTransfer bytesTransfer = new LargeArgumentTransfer(arguments("bytes", bytes), 100, 10000, false);
+        assertTrue(Arrays.equals(getTransferredData(bytesTransfer.getTransferCommands(), false), bytes));
+
+        LargeArgumentTransfer listTransfer = new LargeArgumentTransfer(arguments("list", list), 100, 10000, false);
+        String transferred = new String(getTransferredData(listTransfer.getTransferCommands(), false), StandardCharsets.UTF_8);
+        assertEquals(transferred, "$global:ConnectorArgument_0 = " + PowerShellScriptUtil.toLiteral(list));
+        assertTrue(listTransfer.getTransferCommands().get(0).contains("Invoke-Expression"));
+    }
+
+    @Test
+    public void testCommandWithParameters() {
+        LargeArgumentTransfer transfer = new LargeArgumentTransfer(arguments("name", "jack", "data", repeat('a', 200)), 100, 1000, false);
+        assertEquals(transfer.getCommand("Set-Data", ArgumentStyle.PARAMETERS_DASH),
+                "try {\nSet-Data -name 'jack' -data $global:ConnectorArgument_0\n} finally {\n"
+                        + "Remove-Variable -Scope Global -ErrorAction SilentlyContinue -Name ConnectorArgument_0\n}");
+        assertEquals(transfer.getCommand("Set-Data", ArgumentStyle.PARAMETERS_SLASH),
+                "try {\nSet-Data /name:'jack' /data:$global:ConnectorArgument_0\n} finally {\n"
+                        + "Remove-Variable -Scope Global -ErrorAction SilentlyContinue -Name ConnectorArgument_0\n}");
+    }
+
+    @Test
+    public void testCommandWithVariables() {
+        LargeArgumentTransfer transfer = new LargeArgumentTransfer(
+                arguments("first", repeat('a', 200), "name", "jack", "second", repeat('b', 200)), 100, 1000, false);
+        assertEquals(transfer.getCommand("Set-Data", ArgumentStyle.VARIABLES),
+                "try {\n$first = $global:ConnectorArgument_0\n$second = $global:ConnectorArgument_1\n$name = 'jack'\nSet-Data\n} finally {\n"
+                        + "Remove-Variable -Scope Global -ErrorAction SilentlyContinue -Name ConnectorArgument_0,ConnectorArgument_1\n}");
+    }
+
+    @Test
+    public void testCleanupCommand() {
+        LargeArgumentTransfer transfer = new LargeArgumentTransfer(
+                arguments("first", repeat('a', 200), "name", "jack", "second", repeat('b', 200)), 100, 50, false);
+        // Removes all the variables, whichever chunk failed
+        assertEquals(transfer.getCleanupCommand(),
+                "Remove-Variable -Scope Global -ErrorAction SilentlyContinue -Name ConnectorArgument_0,ConnectorArgument_1");
+        assertTrue(transfer.getCommand("Set-Data", ArgumentStyle.VARIABLES).endsWith("} finally {\n" + transfer.getCleanupCommand() + "\n}"));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.PowerHellExecutionException;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Local loop with powershell framing. Skipped if PowerShell (pwsh) is not installed.
+ */
+public class PowerHellLocalLoopImplPowerShellTest {
+
+    private String pwsh;
+
+    @BeforeMethod
+    public void checkShell() {
+        pwsh = findPwsh();
+        if (pwsh == null) {
+            throw new SkipException("pwsh is not available");
+        }
+    }
+
+    private static String findPwsh() {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            for (String name : Arrays.asList("pwsh", "pwsh.exe")) {
+                File file = new File(dir, name);
+                if (file.canExecute()) {
+                    return file.getAbsolutePath();
+                }
+            }
+        }
+        return null;
+    }
+
+    private PowerHellLocalLoopImpl createLoop() {
+        PowerHellLocalLoopImpl loop = new PowerHellLocalLoopImpl();
+        loop.setShellCommand(Arrays.asList(pwsh, "-NoLogo", "-NoProfile", "-NonInteractive", "-Command", "-"));
+        loop.setFraming(PowerHellLocalLoopImpl.FRAMING_POWERSHELL);
+        return loop;
+    }
+
+    @Test
+    public void testRunCommand() throws Exception {
+        PowerHellLocalLoopImpl loop = createLoop();
+        loop.connect();
+        try {
+            assertEquals(loop.runCommand("Write-Output hello", null).trim(), "hello");
+            // Multi-line scripts are executed as a whole
+            assertEquals(loop.runCommand("$a = 1\n$b = 2\nWrite-Output ($a + $b)", null).trim(), "3");
+            // Variables are kept between the commands
+            assertEquals(loop.runCommand("Write-Output $a", null).trim(), "1");
+        } finally {
+            loop.disconnect();
+        }
+    }
+
+    @Test
+    public void testNonTerminatingError() throws Exception {
+        PowerHellLocalLoopImpl loop = createLoop();
+        loop.connect();
+        try {
+            loop.runCommand("Write-Output before; Write-Error 'broken thing'; Write-Output after", null);
+            fail("Unexpected success");
+        } catch (PowerHellExecutionException e) {
+            assertTrue(e.getMessage().contains("broken thing"), "Unexpected message: " + e.getMessage());
+        } finally {
+            loop.disconnect();
+        }
+    }
+
+    @Test
+    public void testTerminatingError() throws Exception {
+        PowerHellLocalLoopImpl loop = createLoop();
+        loop.connect();
+        try {
+            loop.runCommand("throw 'fatal thing'", null);
+            fail("Unexpected success");
+        } catch (PowerHellExecutionException e) {
+            assertTrue(e.getMessage().contains("fatal thing"), "Unexpected message: " + e.getMessage());
+        }
+        try {
+            // The shell is still usable after the error
+            assertEquals(loop.runCommand("Write-Output fine", null).trim(), "fine");
+        } finally {
+            loop.disconnect();
+        }
+    }
+
+    @Test
+    public void testSuppressedError() throws Exception {
+        PowerHellLocalLoopImpl loop = createLoop();
+        loop.connect();
+        try {
+            // Errors suppressed by the script are in $Error, but they do not fail the command
+            String output = loop.runCommand("Get-Item -LiteralPath '/nonexistent/connector-test' -ErrorAction SilentlyContinue;"
+                    + " Write-Output done", null);
+            assertEquals(output.trim(), "done");
+            output = loop.runCommand("try { Get-Item -LiteralPath '/nonexistent/connector-test' -ErrorAction Stop }"
+                    + " catch { Write-Output caught }", null);
+            assertEquals(output.trim(), "caught");
+        } finally {
+            loop.disconnect();
+        }
+    }
+}
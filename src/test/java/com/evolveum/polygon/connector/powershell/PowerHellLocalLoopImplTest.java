@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.PowerHellCommunicationException;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Local loop with plain framing, using /bin/sh as a stand-in shell.
+ */
+public class PowerHellLocalLoopImplTest {
+
+    private static final String SHELL = "/bin/sh";
+
+    @BeforeMethod
+    public void checkShell() {
+        if (!new File(SHELL).canExecute()) {
+            throw new SkipException(SHELL + " is not available");
+        }
+    }
+
+    private PowerHellLocalLoopImpl createLoop() {
+        PowerHellLocalLoopImpl loop = new PowerHellLocalLoopImpl();
+        loop.setShellCommand(Arrays.asList(SHELL));
+        loop.setFraming(PowerHellLocalLoopImpl.FRAMING_PLAIN);
+        return loop;
+    }
+
+    @Test
+    public void testRunCommand() throws Exception {
+        PowerHellLocalLoopImpl loop = createLoop();
+        loop.connect();
+        try {
+            assertEquals(loop.runCommand("echo hello", null), "hello");
+            assertEquals(loop.runCommand("echo one; echo two", null), "one\ntwo");
+            assertEquals(loop.runCommand("true", null), "");
+        } finally {
+            loop.disconnect();
+        }
+    }
+
+    @Test
+    public void testStateKeptBetweenCommands() throws Exception {
+        PowerHellLocalLoopImpl loop = createLoop();
+        loop.setInitScriptlet("GREETING=hello");
+        loop.connect();
+        try {
+            loop.runCommand("NAME=world", null);
+            assertEquals(loop.runCommand("echo \"$GREETING $NAME\"", null), "hello world");
+        } finally {
+            loop.disconnect();
+        }
+    }
+
+    @Test
+    public void testOutputWithoutTrailingNewline() throws Exception {
+        PowerHellLocalLoopImpl loop = createLoop();
+        loop.connect();
+        try {
+            assertEquals(loop.runCommand("printf 'first\\nsecond'", null), "first\nsecond");
+        } finally {
+            loop.disconnect();
+        }
+    }
+
+    @Test
+    public void testFailedInitScriptlet() throws Exception {
+        PowerHellLocalLoopImpl loop = createLoop();
+        loop.setInitScriptlet("exit 3");
+        try {
+            loop.connect();
+            fail("Unexpected success");
+        } catch (PowerHellCommunicationException e) {
+            assertTrue(e.getMessage().contains("terminated unexpectedly"), "Unexpected message: " + e.getMessage());
+        }
+        assertFalse(loop.isConnected(), "Shell kept after failed connect");
+
+        // The loop can be connected again once the problem is fixed
+        loop.setInitScriptlet(null);
+        loop.connect();
+        try {
+            assertEquals(loop.runCommand("echo again", null), "again");
+        } finally {
+            loop.disconnect();
+        }
+    }
+
+    @Test
+    public void testDisconnect() throws Exception {
+        PowerHellLocalLoopImpl loop = createLoop();
+        loop.connect();
+        assertTrue(loop.isConnected());
+        loop.disconnect();
+        assertFalse(loop.isConnected());
+        // Second disconnect is harmless
+        loop.disconnect();
+        try {
+            loop.runCommand("echo hello", null);
+            fail("Unexpected success");
+        } catch (PowerHellCommunicationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDisconnectRunningCommand() throws Exception {
+        PowerHellLocalLoopImpl loop = createLoop();
+        loop.connect();
+        CompletableFuture<String> hung = CompletableFuture.supplyAsync(() -> {
+            try {
+                // Waits for input that never comes, in the shell process itself
+                return loop.runCommand("read NEVER", null);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(200);
+        assertFalse(hung.isDone(), "Command finished too early");
+
+        // Must not wait for the running command
+        long start = System.currentTimeMillis();
+        loop.disconnect();
+        assertTrue(System.currentTimeMillis() - start < 2000, "Disconnect waited for the running command");
+        assertFalse(loop.isConnected());
+        try {
+            hung.get(10, TimeUnit.SECONDS);
+            fail("Unexpected success");
+        } catch (ExecutionException e) {
+            assertNotNull(e.getCause().getCause());
+            assertTrue(e.getCause().getCause() instanceof PowerHellCommunicationException, "Unexpected exception: " + e.getCause());
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Session pool with sessions that are never connected, so only the pool bookkeeping is tested.
+ */
+public class PowerHellPoolTest {
+
+    private static final String LANGUAGE = "Test";
+
+    private final List<PowerHellSession> createdSessions = Collections.synchronizedList(new ArrayList<>());
+    private final List<PowerHellSession> disconnectedSessions = Collections.synchronizedList(new ArrayList<>());
+    private PowerHellPool pool;
+    // If set, session creation waits for the latch
+    private volatile CountDownLatch createLatch = null;
+
+    @AfterMethod
+    public void closePool() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+        createdSessions.clear();
+        disconnectedSessions.clear();
+        createLatch = null;
+    }
+
+    private PowerHellPool createPool(int minSize, int maxSize, long maxWait) {
+        pool = new PowerHellPool(LANGUAGE, (scriptLanguage, host) -> {
+            CountDownLatch latch = createLatch;
+            if (latch != null) {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            PowerHellSession session = new PowerHellSession(scriptLanguage, host != null ? host : "localhost", new PowerHellLocalLoopImpl(), null);
+            session.setDisconnectListener(() -> disconnectedSessions.add(session));
+            createdSessions.add(session);
+            return session;
+        }, minSize, maxSize, maxWait);
+        return pool;
+    }
+
+    @Test
+    public void testCheckoutCheckin() {
+        createPool(0, 2, 100);
+        PowerHellSession first = pool.checkout();
+        PowerHellSession second = pool.checkout();
+        assertNotSame(first, second);
+        assertEquals(pool.getTotalSessions(), 2);
+        assertEquals(pool.getActiveSessions(), 2);
+
+        pool.checkin(first);
+        assertEquals(pool.getIdleSessions(), 1);
+        // Most recently used session is reused
+        assertSame(pool.checkout(), first);
+        assertEquals(createdSessions.size(), 2);
+        assertTrue(disconnectedSessions.isEmpty());
+    }
+
+    @Test
+    public void testWaitTimeout() {
+        createPool(0, 1, 100);
+        pool.checkout();
+        try {
+            pool.checkout();
+            fail("Expected timeout");
+        } catch (OperationTimeoutException e) {
+            // expected
+        }
+        assertEquals(pool.getTotalSessions(), 1);
+        assertEquals(pool.getWaitingThreads(), 0);
+    }
+
+    @Test
+    public void testWaitForCheckin() throws Exception {
+        createPool(0, 1, 5000);
+        PowerHellSession session = pool.checkout();
+        Thread thread = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pool.checkin(session);
+        });
+        thread.start();
+        assertSame(pool.checkout(), session);
+        thread.join();
+        assertEquals(createdSessions.size(), 1);
+    }
+
+    @Test
+    public void testHighPriorityReserve() {
+        createPool(0, 2, 100);
+        pool.setHighPriorityReservedSize(1);
+        PowerHellSession normal = pool.checkout(false);
+        try {
+            pool.checkout(false);
+            fail("Expected timeout, the last session is reserved");
+        } catch (OperationTimeoutException e) {
+            // expected
+        }
+        PowerHellSession highPriority = pool.checkout(true);
+        assertNotSame(highPriority, normal);
+        assertEquals(pool.getTotalSessions(), 2);
+
+        // Returned reserved session does not raise the normal-priority limit
+        pool.checkin(highPriority);
+        try {
+            pool.checkout(false);
+            fail("Expected timeout, the last session is reserved");
+        } catch (OperationTimeoutException e) {
+            // expected
+        }
+        pool.checkin(normal);
+        pool.checkout(false);
+    }
+
+    @Test
+    public void testRecycle() throws Exception {
+        createPool(0, 1, 100);
+        pool.setRecyclePolicy(new SessionRecyclePolicy(2, 0, 0));
+        PowerHellSession session = pool.checkout();
+        session.recordCommand();
+        pool.checkin(session);
+        assertSame(pool.checkout(), session);
+        session.recordCommand();
+        pool.checkin(session);
+
+        waitFor(() -> disconnectedSessions.contains(session));
+        assertEquals(pool.getTotalSessions(), 1);
+        PowerHellSession replacement = pool.checkout();
+        assertNotSame(replacement, session);
+        assertEquals(createdSessions.size(), 2);
+    }
+
+    @Test
+    public void testRecycleCheckedOut() throws Exception {
+        createPool(0, 1, 100);
+        pool.setRecyclePolicy(new SessionRecyclePolicy(1, 0, 0));
+        PowerHellSession session = pool.checkout();
+        session.recordCommand();
+        pool.checkin(session);
+        // Old session may be checked out again before its replacement is ready
+        PowerHellSession current = pool.checkout();
+        waitFor(() -> createdSessions.size() == 2);
+        pool.checkin(current);
+
+        waitFor(() -> disconnectedSessions.contains(session));
+        assertEquals(pool.getTotalSessions(), 1);
+        assertSame(pool.checkout(), createdSessions.get(1));
+    }
+
+    @Test
+    public void testReapIdle() throws Exception {
+        createPool(1, 3, 100);
+        pool.fill(3);
+        assertEquals(pool.getIdleSessions(), 3);
+        assertEquals(pool.reapIdle(60000), 0);
+
+        Thread.sleep(10);
+        assertEquals(pool.reapIdle(5), 2);
+        assertEquals(pool.getTotalSessions(), 1);
+        assertEquals(disconnectedSessions.size(), 2);
+    }
+
+    @Test
+    public void testValidateIdle() throws Exception {
+        createPool(0, 2, 100);
+        pool.fill(2);
+        PowerHellSession invalid = createdSessions.get(0);
+        Thread.sleep(10);
+
+        assertEquals(pool.validateIdle(session -> session != invalid, 5), 1);
+        assertEquals(pool.getTotalSessions(), 1);
+        assertEquals(pool.getIdleSessions(), 1);
+        assertEquals(disconnectedSessions, Collections.singletonList(invalid));
+
+        // Recently verified sessions are skipped
+        assertEquals(pool.validateIdle(session -> false, 60000), 0);
+        assertEquals(pool.getIdleSessions(), 1);
+    }
+
+    @Test
+    public void testValidateIdleRecycled() throws Exception {
+        createPool(0, 1, 100);
+        pool.setRecyclePolicy(new SessionRecyclePolicy(1, 0, 0));
+        PowerHellSession session = pool.checkout();
+        session.recordCommand();
+        createLatch = new CountDownLatch(1);
+        pool.checkin(session);
+
+        // The session is replaced while it is being validated
+        assertEquals(pool.validateIdle(validated -> {
+            createLatch.countDown();
+            try {
+                waitFor(() -> pool.getTotalSessions() == 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }, 0), 0);
+
+        assertTrue(disconnectedSessions.contains(session));
+        assertEquals(pool.getTotalSessions(), 1);
+        assertEquals(pool.getIdleSessions(), 1);
+        assertSame(pool.checkout(), createdSessions.get(1));
+    }
+
+    @Test
+    public void testReapValidated() throws Exception {
+        createPool(0, 1, 100);
+        PowerHellSession session = pool.checkout();
+        session.recordCommand();
+        pool.checkin(session);
+        Thread.sleep(50);
+
+        // Validation proves that the session works, but it is not use of the session
+        assertEquals(pool.validateIdle(validated -> {
+            validated.markVerified();
+            return true;
+        }, 0), 0);
+        assertEquals(pool.reapIdle(20), 1);
+        assertEquals(disconnectedSessions, Collections.singletonList(session));
+        assertEquals(pool.getTotalSessions(), 0);
+    }
+
+    @Test
+    public void testDiscard() {
+        createPool(0, 1, 100);
+        PowerHellSession session = pool.checkout();
+        pool.discard(session);
+        assertEquals(pool.getTotalSessions(), 0);
+        assertNotSame(pool.checkout(), session);
+        // Discarded session is disconnected by the caller
+        assertFalse(disconnectedSessions.contains(session));
+    }
+
+    @Test
+    public void testCheckoutHost() {
+        createPool(0, 2, 100);
+        PowerHellSession first = pool.checkout(false, "host1");
+        PowerHellSession second = pool.checkout(false, "host2");
+        pool.checkin(second);
+        pool.checkin(first);
+        assertSame(pool.checkout(false, "host2"), second);
+        pool.checkin(second);
+
+        // Pool is full, least recently used idle session of another host is replaced
+        pool.checkout(false, "host1");
+        PowerHellSession third = pool.checkout(false, "host3");
+        assertEquals(third.getHost(), "host3");
+        assertEquals(disconnectedSessions, Collections.singletonList(second));
+        assertEquals(pool.getTotalSessions(), 2);
+    }
+
+    @Test
+    public void testCheckoutValidator() {
+        createPool(0, 2, 100);
+        PowerHellSession invalid = pool.checkout();
+        pool.checkin(invalid);
+        pool.setCheckoutValidator(session -> session != invalid);
+        PowerHellSession session = pool.checkout();
+        assertNotSame(session, invalid);
+        assertEquals(disconnectedSessions, Collections.singletonList(invalid));
+        assertEquals(pool.getTotalSessions(), 1);
+    }
+
+    @Test
+    public void testCheckoutClosed() {
+        createPool(0, 1, 100);
+        pool.close();
+        try {
+            pool.checkout();
+            fail("Expected exception");
+        } catch (ConnectorException e) {
+            assertFalse(e instanceof OperationTimeoutException, "Unexpected timeout: " + e);
+        }
+    }
+
+    @Test
+    public void testCheckinClosed() {
+        createPool(0, 2, 100);
+        PowerHellSession active = pool.checkout();
+        PowerHellSession idle = pool.checkout();
+        pool.checkin(idle);
+        pool.close();
+        assertEquals(disconnectedSessions, Collections.singletonList(idle));
+
+        pool.checkin(active);
+        assertTrue(disconnectedSessions.contains(active));
+        assertEquals(pool.getTotalSessions(), 0);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition was not met in time");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
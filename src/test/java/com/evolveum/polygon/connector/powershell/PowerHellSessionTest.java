@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.PowerHell;
+import org.apache.cxf.Bus;
+import org.apache.cxf.BusFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+/**
+ * PowerHell operations run with the bus of the resource as the thread default bus.
+ */
+public class PowerHellSessionTest {
+
+    private String busKey;
+    private Bus bus;
+
+    @BeforeMethod
+    public void acquireBus() {
+        busKey = WinRmBusRegistry.createKey("https://" + UUID.randomUUID() + ":5986/wsman|user", Collections.emptyMap());
+        bus = WinRmBusRegistry.acquire(busKey, Collections.emptyMap());
+    }
+
+    @AfterMethod
+    public void releaseBus() {
+        WinRmBusRegistry.release(busKey);
+        BusFactory.setThreadDefaultBus(null);
+    }
+
+    @Test
+    public void testOperationsUseBus() throws Exception {
+        BusRecordingPowerHell powerHell = new BusRecordingPowerHell();
+        PowerHellSession session = new PowerHellSession(PowerShellConfiguration.SCRIPT_LANGUAGE_POWERSHELL, "host", powerHell, bus);
+        session.connect();
+        session.runCommand("Get-Date", null);
+        session.disconnect();
+        assertEquals(powerHell.buses.size(), 3);
+        for (Bus used : powerHell.buses) {
+            assertSame(used, bus);
+        }
+        assertNull(BusFactory.getThreadDefaultBus(false));
+    }
+
+    @Test
+    public void testPreviousBusRestored() throws Exception {
+        Bus previous = BusFactory.newInstance().createBus();
+        BusFactory.setThreadDefaultBus(previous);
+        BusRecordingPowerHell powerHell = new BusRecordingPowerHell();
+        PowerHellSession session = new PowerHellSession(PowerShellConfiguration.SCRIPT_LANGUAGE_POWERSHELL, "host", powerHell, bus);
+        session.runCommand("Get-Date", null);
+        assertSame(powerHell.buses.get(0), bus);
+        assertSame(BusFactory.getThreadDefaultBus(false), previous);
+    }
+
+    @Test
+    public void testSharedBus() {
+        // Connector instances of the same resource get the same bus, until it is shut down
+        Bus shared = WinRmBusRegistry.acquire(busKey, Collections.emptyMap());
+        assertSame(shared, bus);
+        WinRmBusRegistry.release(busKey);
+
+        String otherKey = WinRmBusRegistry.createKey("https://" + UUID.randomUUID() + ":5986/wsman|user", Collections.emptyMap());
+        Bus other = WinRmBusRegistry.acquire(otherKey, Collections.emptyMap());
+        assertNotSame(other, bus);
+        WinRmBusRegistry.release(otherKey);
+    }
+
+    @Test
+    public void testLocalSessionWithoutBus() throws Exception {
+        Bus previous = BusFactory.newInstance().createBus();
+        BusFactory.setThreadDefaultBus(previous);
+        BusRecordingPowerHell powerHell = new BusRecordingPowerHell();
+        PowerHellSession session = new PowerHellSession(PowerShellConfiguration.SCRIPT_LANGUAGE_POWERSHELL, "localhost", powerHell, null);
+        session.runCommand("Get-Date", null);
+        // Thread default bus is left alone
+        assertSame(powerHell.buses.get(0), previous);
+        assertFalse(session.abort());
+    }
+
+    private static class BusRecordingPowerHell implements PowerHell {
+
+        private final List<Bus> buses = new ArrayList<>();
+
+        @Override
+        public String getImplementationName() {
+            return "Bus recording";
+        }
+
+        @Override
+        public void connect() {
+            buses.add(BusFactory.getThreadDefaultBus(false));
+        }
+
+        @Override
+        public String runCommand(String command, Map<String, Object> arguments) {
+            buses.add(BusFactory.getThreadDefaultBus(false));
+            return "";
+        }
+
+        @Override
+        public void disconnect() {
+            buses.add(BusFactory.getThreadDefaultBus(false));
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.identityconnectors.framework.common.objects.ScriptContext;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Script execution through the connector, using local loop with /bin/sh as a stand-in shell.
+ */
+public class PowerShellConnectorTest {
+
+    private static final String SHELL = "/bin/sh";
+
+    private PowerShellConnector connector;
+
+    @BeforeMethod
+    public void checkShell() {
+        if (!new File(SHELL).canExecute()) {
+            throw new SkipException(SHELL + " is not available");
+        }
+    }
+
+    @AfterMethod
+    public void disposeConnector() {
+        if (connector != null) {
+            connector.dispose();
+            connector = null;
+        }
+    }
+
+    private static PowerShellConfiguration createConfiguration() {
+        PowerShellConfiguration configuration = new PowerShellConfiguration();
+        configuration.setScriptExecutionMechanism(PowerShellConfiguration.SCRIPT_EXECUTION_MECHANISM_LOCAL);
+        configuration.setLocalShellCommand(new String[] { SHELL });
+        configuration.setLocalShellFraming(PowerHellLocalLoopImpl.FRAMING_PLAIN);
+        return configuration;
+    }
+
+    private PowerShellConnector createConnector(PowerShellConfiguration configuration) {
+        configuration.validate();
+        connector = new PowerShellConnector();
+        connector.init(configuration);
+        return connector;
+    }
+
+    private Object runScript(String scriptText) {
+        return connector.runScriptOnResource(new ScriptContext(PowerShellConfiguration.SCRIPT_LANGUAGE_POWERHELL,
+                scriptText, Collections.emptyMap()), null);
+    }
+
+    @Test
+    public void testRunScript() {
+        createConnector(createConfiguration());
+        assertEquals(runScript("echo hello"), "hello");
+        // The session is kept, so is the shell state
+        runScript("NAME=world");
+        assertEquals(runScript("echo $NAME"), "world");
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        File startLog = File.createTempFile("powershell-connector-warmup", ".log");
+        try {
+            PowerShellConfiguration configuration = createConfiguration();
+            // Every started shell writes a line to the log
+            configuration.setLocalShellCommand(new String[] { SHELL, "-c", "echo started >> '" + startLog + "'; exec " + SHELL });
+            configuration.setWarmUpScriptLanguages(new String[] { PowerShellConfiguration.SCRIPT_LANGUAGE_POWERHELL });
+            configuration.setSessionPoolMinSize(2);
+            configuration.setSessionPoolMaxSize(2);
+            createConnector(configuration);
+
+            // Sessions are created in background, without any script
+            long deadline = System.currentTimeMillis() + 5000;
+            while (countLines(startLog) < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(countLines(startLog), 2);
+
+            // The script uses a warm session
+            assertEquals(runScript("echo hello"), "hello");
+            assertEquals(countLines(startLog), 2);
+        } finally {
+            startLog.delete();
+        }
+    }
+
+    @Test
+    public void testFailedWarmUp() {
+        PowerShellConfiguration configuration = createConfiguration();
+        configuration.setLocalShellCommand(new String[] { "/nonexistent/shell" });
+        configuration.setWarmUpScriptLanguages(new String[] { PowerShellConfiguration.SCRIPT_LANGUAGE_POWERHELL });
+        // Failed warm-up is not fatal, the error is reported to the script
+        createConnector(configuration);
+        try {
+            runScript("echo hello");
+            fail("Unexpected success");
+        } catch (ConnectorException e) {
+            assertTrue(e.getMessage().contains("/nonexistent/shell"), "Unexpected message: " + e.getMessage());
+        }
+    }
+
+    private static int countLines(File file) throws IOException {
+        return Files.readAllLines(file.toPath()).size();
+    }
+
+    @Test
+    public void testMaintenanceOptIn() {
+        createConnector(createConfiguration());
+        // Nothing to maintain
+        assertFalse(connector.isMaintenanceRunning());
+        connector.dispose();
+
+        PowerShellConfiguration configuration = createConfiguration();
+        configuration.setSessionIdleTimeouts(new String[] { "powerhell=600000" });
+        createConnector(configuration);
+        assertTrue(connector.isMaintenanceRunning());
+    }
+
+    @Test
+    public void testIdleSessionReapedWhileProbed() throws Exception {
+        PowerShellConfiguration configuration = createConfiguration();
+        configuration.setCheckAliveInterval(50);
+        configuration.setSessionKeepAliveIntervals(new String[] { "powerhell=50" });
+        configuration.setSessionIdleTimeouts(new String[] { "powerhell=500" });
+        configuration.setSessionMaintenanceInterval(50);
+        createConnector(configuration);
+        runScript("NAME=world");
+        assertEquals(runScript("echo $NAME"), "world");
+
+        // Probes and keepalives run several times, but they do not keep the session
+        Thread.sleep(1500);
+        assertEquals(runScript("echo ${NAME:-fresh}"), "fresh");
+    }
+
+    @Test
+    public void testTimeout() {
+        PowerShellConfiguration configuration = createConfiguration();
+        configuration.setScriptTimeouts(new String[] { "powerhell=1000" });
+        configuration.setScriptTimeoutMin(100);
+        createConnector(configuration);
+        runScript("NAME=world");
+
+        long start = System.currentTimeMillis();
+        try {
+            // Builtin, so no child process keeps the shell output open when the shell is killed
+            runScript("read NEVER");
+            fail("Script did not time out");
+        } catch (OperationTimeoutException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        // Session of the script that timed out is not used again
+        assertEquals(runScript("echo ${NAME:-fresh}"), "fresh");
+    }
+
+    @Test
+    public void testRetryIdempotent() throws Exception {
+        File marker = File.createTempFile("connector-retry", ".marker");
+        assertTrue(marker.delete());
+        PowerShellConfiguration configuration = createConfiguration();
+        configuration.setScriptRetryCount(2);
+        configuration.setScriptRetryInitialDelay(10);
+        configuration.setScriptRetryMaxDelay(100);
+        createConnector(configuration);
+        try {
+            // The first execution terminates the shell, which is a communication failure
+            String script = "if [ -f " + marker + " ]; then echo retried; else touch " + marker + "; exit; fi";
+            assertEquals(runScript(PowerShellConnector.SCRIPT_PREFIX_IDEMPOTENT + "\n" + script), "retried");
+        } finally {
+            marker.delete();
+        }
+    }
+
+    @Test
+    public void testCache() {
+        PowerShellConfiguration configuration = createConfiguration();
+        configuration.setScriptResultCacheSize(10);
+        createConnector(configuration);
+        runScript("COUNT=0");
+        String script = PowerShellConnector.SCRIPT_PREFIX_CACHEABLE + "\nCOUNT=$((COUNT+1)); echo $COUNT";
+        assertEquals(runScript(script), "1");
+        // Cached output, the script is not executed again
+        assertEquals(runScript(script), "1");
+        assertEquals(runScript("echo $COUNT"), "1");
+        assertEquals(connector.getScriptResultCache().getHits(), 1);
+        assertEquals(connector.getScriptResultCache().getMisses(), 1);
+    }
+
+    @Test
+    public void testCacheSharedByConfiguration() throws Exception {
+        PowerShellConfiguration configuration = createConfiguration();
+        configuration.setScriptResultCacheSize(10);
+        configuration.setMetricsEnabled(true);
+        ObjectName cacheNames = new ObjectName(ConnectorMetrics.JMX_DOMAIN + ":type=ScriptResultCache,*");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        int cacheCount = ScriptResultCacheRegistry.getCacheCount();
+        int registeredCount = server.queryNames(cacheNames, null).size();
+        createConnector(configuration);
+        PowerShellConnector first = connector;
+        PowerShellConnector second = new PowerShellConnector();
+        second.init(configuration);
+        try {
+            String script = PowerShellConnector.SCRIPT_PREFIX_CACHEABLE + "\necho $$";
+            Object output = runScript(script);
+            // Another connector instance (with another shell) gets the cached output
+            assertEquals(second.runScriptOnResource(new ScriptContext(PowerShellConfiguration.SCRIPT_LANGUAGE_POWERHELL,
+                    script, Collections.emptyMap()), null), output);
+            assertSame(second.getScriptResultCache(), first.getScriptResultCache());
+            assertEquals(ScriptResultCacheRegistry.getCacheCount(), cacheCount + 1);
+            assertEquals(server.queryNames(cacheNames, null).size(), registeredCount + 1);
+        } finally {
+            second.dispose();
+        }
+        // Still used by the first instance
+        assertEquals(ScriptResultCacheRegistry.getCacheCount(), cacheCount + 1);
+        first.dispose();
+        connector = null;
+        assertEquals(ScriptResultCacheRegistry.getCacheCount(), cacheCount);
+        assertEquals(server.queryNames(cacheNames, null).size(), registeredCount);
+    }
+}
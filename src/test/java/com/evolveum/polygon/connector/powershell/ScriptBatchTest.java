@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.ArgumentStyle;
+import org.identityconnectors.framework.common.objects.ScriptContext;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ScriptBatchTest {
+
+    private static final Pattern MARKER_PATTERN = Pattern.compile("Write-Output '(#PSBATCH-[^:]+):BEGIN:0'");
+
+    private static ScriptContext script(String text) {
+        return new ScriptContext(PowerShellConfiguration.SCRIPT_LANGUAGE_POWERSHELL, text, Collections.emptyMap());
+    }
+
+    private static ScriptBatch batch(int size) {
+        List<ScriptContext> scripts = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            scripts.add(script("Get-Item " + i));
+        }
+        return new ScriptBatch(scripts);
+    }
+
+    /**
+     * Marker is random, it is taken from the batch script, as the output of the real script would contain it.
+     */
+    private static String getMarker(ScriptBatch batch) {
+        Matcher matcher = MARKER_PATTERN.matcher(batch.getScriptText(ArgumentStyle.PARAMETERS_DASH));
+        assertTrue(matcher.find(), "No marker in batch script");
+        return matcher.group(1);
+    }
+
+    @Test
+    public void testParseOutput() {
+        ScriptBatch batch = batch(3);
+        String marker = getMarker(batch);
+        String output = marker + ":BEGIN:0\r\n"
+                + "first\r\n"
+                + "  indented\r\n"
+                + marker + ":END:0\r\n"
+                + marker + ":BEGIN:1\n"
+                + marker + ":ERROR:1\n"
+                + "\nAccess denied\n\n"
+                + marker + ":END:1\n"
+                + marker + ":BEGIN:2\n"
+                + marker + ":END:2\n";
+
+        List<ScriptBatchResult> results = batch.parseOutput(output);
+        assertEquals(results.size(), 3);
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(results.get(0).getOutput(), "first\n  indented");
+        assertFalse(results.get(1).isSuccess());
+        assertEquals(results.get(1).getErrorMessage(), "Access denied");
+        assertTrue(results.get(2).isSuccess());
+        assertEquals(results.get(2).getOutput(), "");
+    }
+
+    @Test
+    public void testParseInterruptedOutput() {
+        ScriptBatch batch = batch(3);
+        String marker = getMarker(batch);
+        String output = marker + ":BEGIN:0\n"
+                + "first\n"
+                + marker + ":END:0\n"
+                + marker + ":BEGIN:1\n"
+                + "partial\n";
+
+        List<ScriptBatchResult> results = batch.parseOutput(output);
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(results.get(0).getOutput(), "first");
+        assertFalse(results.get(1).isSuccess());
+        assertFalse(results.get(2).isSuccess());
+
+        for (ScriptBatchResult result : batch.parseOutput(null)) {
+            assertFalse(result.isSuccess());
+        }
+    }
+
+    @Test
+    public void testParseOutputIgnoresForeignMarkers() {
+        ScriptBatch batch = batch(1);
+        String marker = getMarker(batch);
+        String foreignMarker = getMarker(batch(1));
+        String output = marker + ":BEGIN:0\n"
+                + foreignMarker + ":END:0\n"
+                + marker + ":END:0\n";
+
+        List<ScriptBatchResult> results = batch.parseOutput(output);
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(results.get(0).getOutput(), foreignMarker + ":END:0");
+    }
+
+    @Test
+    public void testSplitBySize() {
+        List<ScriptContext> scripts = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            scripts.add(script("Get-Item " + i));
+        }
+        List<ScriptBatch> batches = ScriptBatch.split(scripts, 3, 0, ArgumentStyle.PARAMETERS_DASH);
+        assertEquals(sizes(batches), Arrays.asList(3, 3, 1));
+        assertEquals(sizes(ScriptBatch.split(scripts, 10, 0, ArgumentStyle.PARAMETERS_DASH)), Collections.singletonList(7));
+    }
+
+    @Test
+    public void testSplitByLength() {
+        int framedLength = batch(1).getScriptText(ArgumentStyle.PARAMETERS_DASH).length();
+        List<ScriptContext> scripts = Arrays.asList(script("Get-Item 0"), script("Get-Item 1"), script("Get-Item 2"),
+                script(String.join("", Collections.nCopies(3 * framedLength, "x"))), script("Get-Item 4"));
+
+        List<ScriptBatch> batches = ScriptBatch.split(scripts, 10, 2 * framedLength, ArgumentStyle.PARAMETERS_DASH);
+        // Script longer than the limit is in a batch alone
+        assertEquals(sizes(batches), Arrays.asList(2, 1, 1, 1));
+        for (ScriptBatch batch : batches) {
+            if (batch.size() > 1) {
+                assertTrue(batch.getScriptText(ArgumentStyle.PARAMETERS_DASH).length() <= 2 * framedLength);
+            }
+        }
+    }
+
+    private static List<Integer> sizes(List<ScriptBatch> batches) {
+        List<Integer> sizes = new ArrayList<>();
+        for (ScriptBatch batch : batches) {
+            sizes.add(batch.size());
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ScriptFunctionRegistryTest {
+
+    @Test
+    public void testFunctionName() {
+        String name = ScriptFunctionRegistry.getFunctionName("Get-Mailbox $name");
+        assertEquals(ScriptFunctionRegistry.getFunctionName("Get-Mailbox $name"), name);
+        assertNotEquals(ScriptFunctionRegistry.getFunctionName("Get-Mailbox $Name"), name);
+        assertTrue(name.matches("ConnectorScript_[0-9a-f]{16}"), name);
+    }
+
+    @Test
+    public void testInvocationCommand() {
+        ScriptFunctionRegistry registry = new ScriptFunctionRegistry();
+        String name = ScriptFunctionRegistry.getFunctionName("Get-Mailbox");
+        assertFalse(registry.isDefined(name));
+        // The first invocation defines the function
+        assertEquals(registry.getInvocationCommand(name, "Get-Mailbox"),
+                "function global:" + name + " {\nGet-Mailbox\n}\n" + name);
+
+        registry.markDefined(name);
+        assertTrue(registry.isDefined(name));
+        assertEquals(registry.getInvocationCommand(name, "Get-Mailbox"), name);
+        assertEquals(registry.size(), 1);
+    }
+}
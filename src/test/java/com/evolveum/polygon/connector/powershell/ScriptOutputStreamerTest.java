@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.PowerHell;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * The resource side is simulated: the output file is kept in memory and the chunks are returned
+ * according to the offsets in the generated scripts.
+ */
+public class ScriptOutputStreamerTest {
+
+    private static final Pattern SEEK_PATTERN = Pattern.compile("Seek\\((\\d+),");
+
+    @Test
+    public void testSingleChunk() throws Exception {
+        FileSimulatingPowerHell powerHell = new FileSimulatingPowerHell("hello".getBytes(StandardCharsets.UTF_8), 100);
+        StringBuilder output = new StringBuilder();
+        long length = new ScriptOutputStreamer(createSession(powerHell), 100).run("Get-Hello", output::append);
+        assertEquals(output.toString(), "hello");
+        assertEquals(length, 5);
+        // Output and its length are returned together with the script execution
+        assertEquals(powerHell.commands.size(), 1);
+        assertTrue(powerHell.commands.get(0).contains("Get-Hello"));
+        // Short output is not written to the file
+        assertTrue(powerHell.commands.get(0).contains("if ($__connectorOutputLength -gt 100) { [System.IO.File]::WriteAllBytes("));
+    }
+
+    @Test
+    public void testChunks() throws Exception {
+        // Multi-byte characters are split between the chunks, Windows PowerShell writes byte order mark
+        byte[] text = "a\u010db\u20ac\u010dcd\u20ac".getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[text.length + 3];
+        data[0] = (byte) 0xEF;
+        data[1] = (byte) 0xBB;
+        data[2] = (byte) 0xBF;
+        System.arraycopy(text, 0, data, 3, text.length);
+        FileSimulatingPowerHell powerHell = new FileSimulatingPowerHell(data, 4);
+        List<String> chunks = new ArrayList<>();
+        long length = new ScriptOutputStreamer(createSession(powerHell), 4).run("Get-Text", chunks::add);
+        assertEquals(String.join("", chunks), "a\u010db\u20ac\u010dcd\u20ac");
+        assertEquals(length, data.length);
+        assertTrue(chunks.size() > 1, "Expected several chunks: " + chunks);
+        // The file is removed when the last chunk is read
+        String lastCommand = powerHell.commands.get(powerHell.commands.size() - 1);
+        assertTrue(lastCommand.contains("Seek(" + (data.length - 1) / 4 * 4 + ","));
+        assertTrue(lastCommand.contains("Remove-Item"));
+    }
+
+    @Test
+    public void testUnexpectedResponse() throws Exception {
+        FileSimulatingPowerHell powerHell = new FileSimulatingPowerHell(new byte[0], 100) {
+            @Override
+            public String runCommand(String command, Map<String, Object> arguments) {
+                commands.add(command);
+                return "WARNING: something else";
+            }
+        };
+        try {
+            new ScriptOutputStreamer(createSession(powerHell), 100).run("Get-Nothing", chunk -> { });
+            fail("Expected exception");
+        } catch (ConnectorException e) {
+            // expected
+        }
+        // The file on the resource is removed after failure
+        assertTrue(powerHell.commands.get(powerHell.commands.size() - 1).startsWith("Remove-Item"));
+    }
+
+    private PowerHellSession createSession(PowerHell powerHell) {
+        return new PowerHellSession(PowerShellConfiguration.SCRIPT_LANGUAGE_POWERSHELL, "host", powerHell, null);
+    }
+
+    private static class FileSimulatingPowerHell implements PowerHell {
+
+        private final byte[] data;
+        private final int chunkSize;
+        protected final List<String> commands = new ArrayList<>();
+
+        private FileSimulatingPowerHell(byte[] data, int chunkSize) {
+            this.data = data;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public String getImplementationName() {
+            return "File simulating";
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public String runCommand(String command, Map<String, Object> arguments) {
+            commands.add(command);
+            if (command.contains("$__connectorOutputLength")) {
+                // The script is executed, first chunk is returned directly
+                return data.length + "\r\n" + encodeChunk(0) + "\r\n";
+            }
+            Matcher matcher = SEEK_PATTERN.matcher(command);
+            if (!matcher.find()) {
+                return "";
+            }
+            return encodeChunk(Integer.parseInt(matcher.group(1))) + "\r\n";
+        }
+
+        private String encodeChunk(int offset) {
+            return Base64.getEncoder().encodeToString(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + chunkSize)));
+        }
+
+        @Override
+        public void disconnect() {
+        }
+    }
+}
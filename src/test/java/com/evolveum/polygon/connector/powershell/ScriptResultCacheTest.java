@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.framework.common.objects.ScriptContext;
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ScriptResultCacheTest {
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        ScriptResultCache cache = new ScriptResultCache(10, 60000, 0, 0);
+        assertNull(cache.get("a"));
+        cache.put("a", "output");
+        assertEquals(cache.get("a"), "output");
+        assertEquals(cache.getHits(), 1);
+        assertEquals(cache.getMisses(), 1);
+    }
+
+    @Test
+    public void testExpiration() {
+        ScriptResultCache cache = new ScriptResultCache(10, 0, 0, 0);
+        cache.put("a", "output");
+        assertNull(cache.get("a"));
+        assertEquals(cache.getSize(), 0);
+        assertEquals(cache.getBytes(), 0);
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        ScriptResultCache cache = new ScriptResultCache(2, 60000, 0, 0);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+        assertEquals(cache.getSize(), 2);
+        assertNull(cache.get("b"));
+        assertEquals(cache.get("a"), "1");
+        assertEquals(cache.get("c"), "3");
+    }
+
+    @Test
+    public void testEvictByBytes() {
+        // Each entry takes 2 * (1 + 99) = 200 bytes
+        ScriptResultCache cache = new ScriptResultCache(100, 60000, 500, 0);
+        cache.put("a", repeat('x', 99));
+        cache.put("b", repeat('x', 99));
+        assertEquals(cache.getBytes(), 400);
+        cache.put("c", repeat('x', 99));
+        assertEquals(cache.getSize(), 2);
+        assertEquals(cache.getBytes(), 400);
+        assertNull(cache.get("a"));
+
+        // Replaced entry is not counted twice
+        cache.put("c", "1");
+        assertEquals(cache.getBytes(), 204);
+    }
+
+    @Test
+    public void testSkipLargeEntry() {
+        ScriptResultCache cache = new ScriptResultCache(100, 60000, 10000, 100);
+        cache.put("a", "small");
+        cache.put("b", repeat('x', 100));
+        assertNull(cache.get("b"));
+        assertEquals(cache.getSkipped(), 1);
+        assertEquals(cache.get("a"), "small");
+
+        // Large output replaces the outdated small output, but it is not cached
+        cache.put("a", repeat('x', 100));
+        assertNull(cache.get("a"));
+        assertEquals(cache.getBytes(), 0);
+    }
+
+    @Test
+    public void testKeyIgnoresArgumentOrder() {
+        Map<String, Object> first = new LinkedHashMap<>();
+        first.put("a", 1);
+        first.put("b", "x");
+        Map<String, Object> second = new LinkedHashMap<>();
+        second.put("b", "x");
+        second.put("a", 1);
+        assertEquals(ScriptResultCache.createKey(new ScriptContext("powershell", "Get-Thing", first)),
+                ScriptResultCache.createKey(new ScriptContext("powershell", "Get-Thing", second)));
+        Map<String, Object> third = new HashMap<>(first);
+        third.put("a", 2);
+        assertNotEquals(ScriptResultCache.createKey(new ScriptContext("powershell", "Get-Thing", first)),
+                ScriptResultCache.createKey(new ScriptContext("powershell", "Get-Thing", third)));
+    }
+
+    @Test
+    public void testMXBean() throws Exception {
+        ConnectorMetrics metrics = new ConnectorMetrics();
+        ScriptResultCache cache = new ScriptResultCache(10, 60000, 0, 0);
+        try {
+            metrics.registerCache(cache);
+            cache.get("a");
+            ObjectName pattern = new ObjectName(ConnectorMetrics.JMX_DOMAIN + ":type=ScriptResultCache,*");
+            Set<ObjectName> names = ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null);
+            assertEquals(names.size(), 1);
+            assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(names.iterator().next(), "Misses"), 1L);
+        } finally {
+            metrics.close();
+        }
+        assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(
+                new ObjectName(ConnectorMetrics.JMX_DOMAIN + ":type=ScriptResultCache,*"), null).isEmpty());
+    }
+}
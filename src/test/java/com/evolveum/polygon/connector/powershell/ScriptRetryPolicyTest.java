@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * The operations record their results in a host selector, the same way as the connector does.
+ */
+public class ScriptRetryPolicyTest {
+
+    private static final ScriptRetryPolicy POLICY = new ScriptRetryPolicy(3, 1, 10);
+
+    private static WinRmHostSelector createSelector(String... hosts) {
+        String endpointPrefix = "https://" + UUID.randomUUID() + ".";
+        return new WinRmHostSelector(Arrays.asList(hosts), host -> endpointPrefix + host, 60000, 1);
+    }
+
+    /**
+     * Operation that fails with communication failure until the specified attempt.
+     */
+    private static String execute(WinRmHostSelector selector, AtomicInteger attempts, int successfulAttempt) {
+        selector.checkAvailable();
+        String host = selector.selectHost();
+        if (attempts.incrementAndGet() < successfulAttempt) {
+            selector.recordFailure(host);
+            throw new ConnectorIOException("Connection to " + host + " refused");
+        }
+        selector.recordSuccess(host);
+        return host;
+    }
+
+    @Test
+    public void testRetrySingleHost() {
+        WinRmHostSelector selector = createSelector("host1");
+        try {
+            AtomicInteger attempts = new AtomicInteger();
+            // The only host is not ejected, so the retries reach it
+            assertEquals(POLICY.execute(() -> execute(selector, attempts, 3)), "host1");
+            assertEquals(attempts.get(), 3);
+        } finally {
+            selector.close();
+        }
+    }
+
+    @Test
+    public void testRetryOtherHost() {
+        WinRmHostSelector selector = createSelector("host1", "host2");
+        try {
+            AtomicInteger attempts = new AtomicInteger();
+            assertEquals(POLICY.execute(() -> execute(selector, attempts, 2)), "host2");
+            assertEquals(attempts.get(), 2);
+        } finally {
+            selector.close();
+        }
+    }
+
+    @Test
+    public void testNoRetryWhenAllEjected() {
+        WinRmHostSelector selector = createSelector("host1", "host2");
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            POLICY.execute(() -> execute(selector, attempts, Integer.MAX_VALUE));
+            fail("Expected failure");
+        } catch (HostsUnavailableException e) {
+            // Both hosts failed and they are ejected, the rejected request is not retried
+            assertEquals(attempts.get(), 2);
+        } finally {
+            selector.close();
+        }
+    }
+
+    @Test
+    public void testRetryExhausted() {
+        WinRmHostSelector selector = createSelector("host1");
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            POLICY.execute(() -> execute(selector, attempts, Integer.MAX_VALUE));
+            fail("Expected failure");
+        } catch (ConnectorIOException e) {
+            assertEquals(attempts.get(), 4);
+        } finally {
+            selector.close();
+        }
+    }
+
+    @Test
+    public void testOtherFailureNotRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            POLICY.execute(() -> {
+                attempts.incrementAndGet();
+                throw new ConnectorException("Script failed");
+            });
+            fail("Expected failure");
+        } catch (ConnectorException e) {
+            assertEquals(attempts.get(), 1);
+        }
+    }
+
+    @Test
+    public void testDelay() {
+        ScriptRetryPolicy policy = new ScriptRetryPolicy(10, 100, 1000);
+        List<Long> maxDelays = Arrays.asList(100L, 200L, 400L, 800L, 1000L, 1000L);
+        for (int retry = 1; retry <= maxDelays.size(); retry++) {
+            long delay = policy.getDelay(retry);
+            long maxDelay = maxDelays.get(retry - 1);
+            assertTrue(delay >= maxDelay / 2 && delay <= maxDelay, "retry " + retry + ": " + delay);
+        }
+        assertEquals(new ScriptRetryPolicy(1, 0, 0).getDelay(1), 0L);
+    }
+}
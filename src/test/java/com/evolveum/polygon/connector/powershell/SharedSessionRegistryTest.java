@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ScriptContext;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class SharedSessionRegistryTest {
+
+    private static PowerShellConfiguration createConfiguration() {
+        PowerShellConfiguration configuration = new PowerShellConfiguration();
+        configuration.setScriptExecutionMechanism(PowerShellConfiguration.SCRIPT_EXECUTION_MECHANISM_LOCAL);
+        configuration.setLocalShellCommand(new String[] { "/bin/sh" });
+        configuration.setLocalShellFraming(PowerHellLocalLoopImpl.FRAMING_PLAIN);
+        configuration.setSessionSharingEnabled(true);
+        return configuration;
+    }
+
+    @Test
+    public void testAcquireRelease() {
+        String key = SharedSessionRegistry.createKey("testAcquireRelease");
+        int ownerCount = SharedSessionRegistry.getOwnerCount();
+        PowerShellConnector owner = SharedSessionRegistry.acquire(key, createConfiguration());
+        assertSame(SharedSessionRegistry.acquire(key, createConfiguration()), owner);
+        assertEquals(SharedSessionRegistry.getOwnerCount(), ownerCount + 1);
+
+        SharedSessionRegistry.release(key);
+        assertEquals(SharedSessionRegistry.getOwnerCount(), ownerCount + 1);
+        owner.checkAlive();
+
+        // The last release disposes the owner
+        SharedSessionRegistry.release(key);
+        assertEquals(SharedSessionRegistry.getOwnerCount(), ownerCount);
+        try {
+            owner.checkAlive();
+            fail("Disposed owner is alive");
+        } catch (ConnectorException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConnectorsShareOwner() {
+        int ownerCount = SharedSessionRegistry.getOwnerCount();
+        PowerShellConnector first = new PowerShellConnector();
+        first.init(createConfiguration());
+        PowerShellConnector second = new PowerShellConnector();
+        second.init(createConfiguration());
+        PowerShellConnector other = new PowerShellConnector();
+        PowerShellConfiguration otherConfiguration = createConfiguration();
+        otherConfiguration.setLocalShellCommand(new String[] { "/bin/bash" });
+        other.init(otherConfiguration);
+        try {
+            assertEquals(SharedSessionRegistry.getOwnerCount(), ownerCount + 2);
+        } finally {
+            first.dispose();
+            second.dispose();
+            other.dispose();
+        }
+        assertEquals(SharedSessionRegistry.getOwnerCount(), ownerCount);
+    }
+
+    @Test
+    public void testBehaviourDifferenceNotShared() {
+        int ownerCount = SharedSessionRegistry.getOwnerCount();
+        PowerShellConnector first = new PowerShellConnector();
+        first.init(createConfiguration());
+        PowerShellConnector other = new PowerShellConnector();
+        PowerShellConfiguration otherConfiguration = createConfiguration();
+        otherConfiguration.setScriptTimeouts(new String[] { "powerhell=1000" });
+        other.init(otherConfiguration);
+        try {
+            assertEquals(SharedSessionRegistry.getOwnerCount(), ownerCount + 2);
+        } finally {
+            first.dispose();
+            other.dispose();
+        }
+    }
+
+    @Test
+    public void testTestKeepsSharedSessions() {
+        // The test would disconnect the sessions, if they were not shared
+        PowerShellConnector first = new PowerShellConnector();
+        first.init(createConfiguration());
+        PowerShellConnector second = new PowerShellConnector();
+        second.init(createConfiguration());
+        try {
+            runScript(first, "NAME=world");
+            second.test();
+            // Still the same session
+            assertEquals(runScript(first, "echo $NAME"), "world");
+            assertEquals(runScript(second, "echo $NAME"), "world");
+        } finally {
+            first.dispose();
+            second.dispose();
+        }
+    }
+
+    @Test
+    public void testTestWhileScriptsRun() throws Exception {
+        PowerShellConfiguration configuration = createConfiguration();
+        configuration.setSessionPoolMaxSize(2);
+        PowerShellConnector first = new PowerShellConnector();
+        first.init(configuration);
+        PowerShellConnector second = new PowerShellConnector();
+        second.init(configuration);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        AtomicBoolean running = new AtomicBoolean(true);
+        try {
+            List<Future<Integer>> workers = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                workers.add(executor.submit(() -> {
+                    int count = 0;
+                    do {
+                        assertEquals(runScript(first, "echo hello"), "hello");
+                        count++;
+                    } while (running.get());
+                    return count;
+                }));
+            }
+            for (int i = 0; i < 10; i++) {
+                second.test();
+            }
+            running.set(false);
+            for (Future<Integer> worker : workers) {
+                // Scripts of the other connector instance do not fail
+                assertTrue(worker.get(30, TimeUnit.SECONDS) > 0);
+            }
+        } finally {
+            running.set(false);
+            executor.shutdownNow();
+            first.dispose();
+            second.dispose();
+        }
+    }
+
+    private static Object runScript(PowerShellConnector connector, String scriptText) {
+        return connector.runScriptOnResource(new ScriptContext(PowerShellConfiguration.SCRIPT_LANGUAGE_POWERHELL,
+                scriptText, Collections.emptyMap()), null);
+    }
+
+    @Test
+    public void testDigestPassword() {
+        String digest = SharedSessionRegistry.digestPassword(new GuardedString("secret".toCharArray()));
+        assertEquals(SharedSessionRegistry.digestPassword(new GuardedString("secret".toCharArray())), digest);
+        assertNotEquals(SharedSessionRegistry.digestPassword(new GuardedString("Secret".toCharArray())), digest);
+        assertNotEquals(digest, "secret");
+        assertNull(SharedSessionRegistry.digestPassword(null));
+    }
+
+    @Test
+    public void testCreateKey() {
+        assertEquals(SharedSessionRegistry.createKey("a|b"), SharedSessionRegistry.createKey("a|b"));
+        assertNotEquals(SharedSessionRegistry.createKey("a|b"), SharedSessionRegistry.createKey("a|c"));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class SpillingOutputConsumerTest {
+
+    private SpillingOutputConsumer consumer;
+
+    @AfterMethod
+    public void discard() {
+        if (consumer != null) {
+            consumer.discard();
+            consumer = null;
+        }
+    }
+
+    @Test
+    public void testInMemory() {
+        consumer = new SpillingOutputConsumer(10, null);
+        consumer.consume("abcde");
+        consumer.consume("fghij");
+        consumer.close();
+        assertFalse(consumer.isSpilled());
+        assertEquals(consumer.getResult(), "abcdefghij");
+        assertEquals(consumer.getLength(), 10);
+    }
+
+    @Test
+    public void testSpilled() throws Exception {
+        consumer = new SpillingOutputConsumer(10, null);
+        consumer.consume("abcdef");
+        consumer.consume("ghijk\u010d");
+        consumer.consume("lm");
+        consumer.close();
+        assertTrue(consumer.isSpilled());
+        assertEquals(consumer.getLength(), 14);
+        File file = (File) consumer.getResult();
+        assertEquals(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), "abcdefghijk\u010dlm");
+
+        consumer.discard();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testDirectory() throws Exception {
+        File directory = Files.createTempDirectory("spill-test").toFile();
+        try {
+            consumer = new SpillingOutputConsumer(0, directory);
+            consumer.consume("x");
+            consumer.close();
+            assertEquals(((File) consumer.getResult()).getParentFile(), directory);
+            consumer.discard();
+        } finally {
+            directory.delete();
+        }
+    }
+}
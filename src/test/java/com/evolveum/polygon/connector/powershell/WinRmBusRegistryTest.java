@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.powershell;
+
+import com.evolveum.powerhell.PowerHell;
+import org.apache.cxf.Bus;
+import org.apache.cxf.BusFactory;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+/**
+ * Buses are shared by resource, so each test uses its own resources.
+ */
+public class WinRmBusRegistryTest {
+
+    private static final String MAX_CONNECTIONS = "org.apache.cxf.transport.http.async.MAX_CONNECTIONS";
+
+    private static String createResource(String host) {
+        return "https://" + host + "." + UUID.randomUUID() + ":5986/wsman|user";
+    }
+
+    @Test
+    public void testBusPerEndpoint() {
+        Map<String, Object> properties = Collections.singletonMap(MAX_CONNECTIONS, "10");
+        String key1 = WinRmBusRegistry.createKey(createResource("host1"), properties);
+        String key2 = WinRmBusRegistry.createKey(createResource("host2"), properties);
+        int busCount = WinRmBusRegistry.getBusCount();
+
+        Bus bus1 = WinRmBusRegistry.acquire(key1, properties);
+        Bus bus2 = WinRmBusRegistry.acquire(key2, properties);
+        // Another connector instance for the same endpoint uses the same bus, i.e. the same connection pool
+        Bus bus1Again = WinRmBusRegistry.acquire(key1, properties);
+        try {
+            assertNotSame(bus1, bus2);
+            assertSame(bus1Again, bus1);
+            assertEquals(WinRmBusRegistry.getBusCount(), busCount + 2);
+            assertEquals(bus1.getProperty(MAX_CONNECTIONS), "10");
+            assertEquals(bus2.getProperty(MAX_CONNECTIONS), "10");
+        } finally {
+            WinRmBusRegistry.release(key1);
+            WinRmBusRegistry.release(key2);
+        }
+        // Still used by the other connector instance
+        assertEquals(WinRmBusRegistry.getBusCount(), busCount + 1);
+        WinRmBusRegistry.release(key1);
+        assertEquals(WinRmBusRegistry.getBusCount(), busCount);
+    }
+
+    @Test
+    public void testDifferentProperties() {
+        String resource = createResource("host");
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(MAX_CONNECTIONS, "10");
+        Map<String, Object> otherProperties = new HashMap<>();
+        otherProperties.put(MAX_CONNECTIONS, "20");
+        String key = WinRmBusRegistry.createKey(resource, properties);
+        String otherKey = WinRmBusRegistry.createKey(resource, otherProperties);
+
+        Bus bus = WinRmBusRegistry.acquire(key, properties);
+        Bus otherBus = WinRmBusRegistry.acquire(otherKey, otherProperties);
+        try {
+            // Connection limits of a bus always match the configuration
+            assertNotSame(bus, otherBus);
+            assertEquals(bus.getProperty(MAX_CONNECTIONS), "10");
+            assertEquals(otherBus.getProperty(MAX_CONNECTIONS), "20");
+        } finally {
+            WinRmBusRegistry.release(key);
+            WinRmBusRegistry.release(otherKey);
+        }
+    }
+
+    @Test
+    public void testSessionUsesBus() throws Exception {
+        Map<String, Object> properties = Collections.emptyMap();
+        String key = WinRmBusRegistry.createKey(createResource("host"), properties);
+        Bus bus = WinRmBusRegistry.acquire(key, properties);
+        try {
+            Bus[] commandBus = new Bus[1];
+            PowerHellSession session = new PowerHellSession(PowerShellConfiguration.SCRIPT_LANGUAGE_POWERSHELL, "host",
+                    new BusCapturingPowerHell(commandBus), bus);
+            session.runCommand("Get-Date", null);
+            // The command runs with the bus of its endpoint, the thread default bus is restored afterwards
+            assertSame(commandBus[0], bus);
+            assertNull(BusFactory.getThreadDefaultBus(false));
+        } finally {
+            WinRmBusRegistry.release(key);
+        }
+    }
+
+    private static class BusCapturingPowerHell implements PowerHell {
+
+        private final Bus[] commandBus;
+
+        private BusCapturingPowerHell(Bus[] commandBus) {
+            this.commandBus = commandBus;
+        }
+
+        @Override
+        public String getImplementationName() {
+            return "Bus capturing";
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public String runCommand(String command, Map<String, Object> arguments) {
+            commandBus[0] = BusFactory.getThreadDefaultBus(false);
+            return "";
+        }
+
+        @Override
+        public void disconnect() {
+        }
+    }
+}
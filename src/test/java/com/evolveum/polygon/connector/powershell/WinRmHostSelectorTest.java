@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2015-2020 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.evolveum.polygon.connector.powershell;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Circuit breakers are shared by endpoint, so each test uses its own endpoints.
+ */
+public class WinRmHostSelectorTest {
+
+    private static final String HOST1 = "host1";
+    private static final String HOST2 = "host2";
+    private static final String HOST3 = "host3";
+
+    private final List<WinRmHostSelector> selectors = new ArrayList<>();
+    private String endpointPrefix;
+    private int initialBreakerCount;
+
+    @BeforeMethod
+    public void init() {
+        endpointPrefix = "https://" + UUID.randomUUID() + ".";
+        initialBreakerCount = HostCircuitBreaker.getBreakerCount();
+    }
+
+    @AfterMethod
+    public void closeSelectors() {
+        for (WinRmHostSelector selector : selectors) {
+            selector.close();
+        }
+        selectors.clear();
+        assertEquals(HostCircuitBreaker.getBreakerCount(), initialBreakerCount);
+    }
+
+    private WinRmHostSelector createSelector(long ejectionPeriod, int failureThreshold, String... hosts) {
+        WinRmHostSelector selector = new WinRmHostSelector(Arrays.asList(hosts), host -> endpointPrefix + host, ejectionPeriod, failureThreshold);
+        selectors.add(selector);
+        return selector;
+    }
+
+    @Test
+    public void testLeastSessions() {
+        WinRmHostSelector selector = createSelector(60000, 2, HOST1, HOST2);
+        assertEquals(selector.selectHost(), HOST1);
+        selector.sessionCreated(HOST1);
+        assertEquals(selector.selectHost(), HOST2);
+        selector.sessionCreated(HOST2);
+        selector.sessionCreated(HOST2);
+        assertEquals(selector.selectHost(), HOST1);
+        selector.sessionClosed(HOST2);
+        selector.sessionClosed(HOST2);
+        selector.sessionCreated(HOST1);
+        assertEquals(selector.selectHost(), HOST2);
+    }
+
+    @Test
+    public void testSpread() {
+        WinRmHostSelector selector = createSelector(60000, 2, HOST1, HOST2, HOST3);
+        Map<String, Integer> sessions = new HashMap<>();
+        for (int i = 0; i < 9; i++) {
+            String host = selector.selectHost();
+            selector.sessionCreated(host);
+            sessions.merge(host, 1, Integer::sum);
+        }
+        assertEquals(sessions.get(HOST1), Integer.valueOf(3));
+        assertEquals(sessions.get(HOST2), Integer.valueOf(3));
+        assertEquals(sessions.get(HOST3), Integer.valueOf(3));
+    }
+
+    @Test
+    public void testFailover() {
+        WinRmHostSelector selector = createSelector(60000, 1, HOST1, HOST2, HOST3);
+        for (String host : Arrays.asList(HOST1, HOST2, HOST3)) {
+            selector.sessionCreated(host);
+        }
+        // Sessions of the failed host are discarded, new sessions go to the other hosts
+        selector.recordFailure(HOST2);
+        selector.sessionClosed(HOST2);
+        for (int i = 0; i < 4; i++) {
+            String host = selector.selectHost();
+            assertNotEquals(host, HOST2);
+            selector.sessionCreated(host);
+        }
+        selector.checkAvailable();
+
+        // Recovered host has the least sessions, it is used again
+        selector.recordSuccess(HOST2);
+        assertEquals(selector.selectHost(), HOST2);
+    }
+
+    @Test
+    public void testEjection() {
+        WinRmHostSelector selector = createSelector(60000, 2, HOST1, HOST2);
+        selector.recordFailure(HOST1);
+        assertTrue(selector.isAvailable(HOST1));
+        // Success resets the consecutive failures
+        selector.recordSuccess(HOST1);
+        selector.recordFailure(HOST1);
+        assertTrue(selector.isAvailable(HOST1));
+        selector.recordFailure(HOST1);
+        assertFalse(selector.isAvailable(HOST1));
+
+        selector.sessionCreated(HOST2);
+        assertEquals(selector.selectHost(), HOST2);
+        selector.checkAvailable();
+
+        selector.recordSuccess(HOST1);
+        assertTrue(selector.isAvailable(HOST1));
+        assertEquals(selector.selectHost(), HOST1);
+    }
+
+    @Test
+    public void testAllEjected() {
+        WinRmHostSelector selector = createSelector(60000, 1, HOST1, HOST2);
+        selector.recordFailure(HOST1);
+        selector.recordFailure(HOST2);
+        try {
+            selector.checkAvailable();
+            fail("Expected fail fast");
+        } catch (ConnectorIOException e) {
+            // expected
+        }
+        try {
+            selector.selectHost();
+            fail("Expected fail fast");
+        } catch (ConnectorIOException e) {
+            // expected
+        }
+        assertTrue(selector.getHostsToProbe().isEmpty());
+    }
+
+    @Test
+    public void testHalfOpenTrial() throws Exception {
+        WinRmHostSelector selector = createSelector(50, 1, HOST1, HOST2);
+        selector.recordFailure(HOST2);
+        Thread.sleep(5);
+        selector.recordFailure(HOST1);
+        Thread.sleep(100);
+
+        selector.checkAvailable();
+        // Host that was ejected for the longest time is tried first, only one trial for each host
+        assertEquals(selector.selectHost(), HOST2);
+        assertEquals(selector.selectHost(), HOST1);
+        try {
+            selector.checkAvailable();
+            fail("Expected fail fast, trials are running");
+        } catch (ConnectorIOException e) {
+            // expected
+        }
+
+        // Failed trial ejects the host again, successful trial re-admits it
+        selector.recordFailure(HOST2);
+        selector.recordSuccess(HOST1);
+        assertTrue(selector.isAvailable(HOST1));
+        assertFalse(selector.isAvailable(HOST2));
+        assertEquals(selector.selectHost(), HOST1);
+    }
+
+    @Test
+    public void testHostsToProbe() throws Exception {
+        WinRmHostSelector selector = createSelector(50, 1, HOST1, HOST2);
+        selector.recordFailure(HOST1);
+        assertTrue(selector.getHostsToProbe().isEmpty());
+        Thread.sleep(100);
+        assertEquals(selector.getHostsToProbe(), Collections.singletonList(HOST1));
+        // Probe is the trial, host is not probed again until the probe finishes
+        assertTrue(selector.getHostsToProbe().isEmpty());
+    }
+
+    @Test
+    public void testSingleHostNotEjected() {
+        WinRmHostSelector selector = createSelector(60000, 1, HOST1);
+        for (int i = 0; i < 5; i++) {
+            selector.recordFailure(HOST1);
+        }
+        // There is nowhere to fail over, the requests keep trying the only host
+        assertTrue(selector.isAvailable(HOST1));
+        selector.checkAvailable();
+        assertEquals(selector.selectHost(), HOST1);
+        assertTrue(selector.getHostsToProbe().isEmpty());
+    }
+
+    @Test
+    public void testSingleHostEjectedByOthers() {
+        WinRmHostSelector multi = createSelector(60000, 1, HOST1, HOST2);
+        WinRmHostSelector single = createSelector(60000, 1, HOST1);
+        multi.recordFailure(HOST1);
+        assertFalse(multi.isAvailable(HOST1));
+        // Ejection by a resource that can fail over does not make the single-host resource fail fast
+        assertTrue(single.isAvailable(HOST1));
+        single.checkAvailable();
+        assertEquals(single.selectHost(), HOST1);
+    }
+
+    @Test
+    public void testSharedBreaker() {
+        WinRmHostSelector first = createSelector(60000, 1, HOST1, HOST2);
+        WinRmHostSelector second = createSelector(60000, 1, HOST2, HOST1);
+        assertEquals(HostCircuitBreaker.getBreakerCount(), initialBreakerCount + 2);
+
+        first.recordFailure(HOST1);
+        assertFalse(second.isAvailable(HOST1));
+        assertEquals(second.selectHost(), HOST2);
+
+        // Failures recorded by a single-host selector do not eject the host for the others
+        WinRmHostSelector single = createSelector(60000, 1, HOST2);
+        single.recordFailure(HOST2);
+        assertTrue(single.isAvailable(HOST2));
+        assertTrue(first.isAvailable(HOST2));
+
+        first.close();
+        first.close();
+        assertEquals(HostCircuitBreaker.getBreakerCount(), initialBreakerCount + 2);
+    }
+}